@@ -0,0 +1,163 @@
+package com.dixon.catalog;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
+
+/**
+ * Numbers the stock changes of the catalog and lets readers take a consistent view of every product between them,
+ * without making the changes wait. Two counters work like a sequence lock shared by any number of writers: a change
+ * increments the started counter before it touches any stock and the finished counter after, so the counters are
+ * equal only while no change is in flight. A reader waits for them to be equal, reads, and keeps what it read only if
+ * no change started meanwhile, in which case the started counter is the version of what it read. Only a reader that
+ * keeps being overtaken by changes, or that waits too long for the changes in flight to finish, pauses them for the
+ * length of one read, so it cannot starve.
+ */
+public class CatalogSequencer {
+    /**
+     * Number of reads overtaken by a change before the changes are paused
+     */
+    private static final int OPTIMISTIC_ATTEMPTS = 64;
+
+    /**
+     * Number of busy spins while waiting for the changes in flight to finish, before yielding the processor instead
+     */
+    private static final int WAIT_SPINS = 100;
+
+    /**
+     * Longest time a read waits in total for the changes in flight to finish before the changes are paused
+     */
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Number of changes started
+     */
+    private final AtomicLong started;
+
+    /**
+     * Number of changes finished
+     */
+    private final AtomicLong finished;
+
+    /**
+     * Whether a reader has paused the changes
+     */
+    private volatile boolean paused;
+
+    /**
+     * Lock held by a reader while the changes are paused, and briefly taken by the changes waiting on it
+     */
+    private final ReentrantLock pauseLock = new ReentrantLock();
+
+    /**
+     * Number of reads that paused the changes
+     */
+    private final LongAdder pauses = new LongAdder();
+
+    /**
+     * Instantiates a CatalogSequencer
+     * @param version The version of the catalog, after which the changes are numbered
+     */
+    public CatalogSequencer(long version) {
+        this.started = new AtomicLong(version);
+        this.finished = new AtomicLong(version);
+    }
+
+    /**
+     * Marks the start of a change, waiting while a reader has paused the changes.
+     * Must be followed by endChange once the change is applied or abandoned.
+     * @return The version of the change, which snapshots of a later version include
+     */
+    public long beginChange() {
+        while (true) {
+            if (paused) {
+                // Wait for the paused reader to finish
+                pauseLock.lock();
+                pauseLock.unlock();
+            }
+            long version = started.incrementAndGet();
+            if (!paused) {
+                return version;
+            }
+            // A reader paused the changes after the check, back out without touching any stock
+            finished.incrementAndGet();
+        }
+    }
+
+    /**
+     * Marks the end of a change
+     */
+    public void endChange() {
+        finished.incrementAndGet();
+    }
+
+    /**
+     * Gives the version of the catalog, the number of changes started so far
+     * @return The version
+     */
+    public long getVersion() {
+        return started.get();
+    }
+
+    /**
+     * Gives the number of reads that paused the changes, having been overtaken or kept waiting by them too long
+     * @return The number of reads
+     */
+    public long getPauses() {
+        return pauses.sum();
+    }
+
+    /**
+     * Reads the catalog between changes
+     * @param reader Reads the catalog, given the version it reads, and may be called more than once
+     * @return What the last call of the reader returned, read while no change was in flight
+     * @param <T> The type of what is read
+     */
+    public <T> T read(LongFunction<T> reader) {
+        int overtaken = 0;
+        int spins = 0;
+        boolean waiting = false;
+        long waitStart = 0;
+        while (overtaken < OPTIMISTIC_ATTEMPTS) {
+            // Finished is read first, so equal counters mean no change was in flight when started was read
+            long finishedBefore = finished.get();
+            long version = started.get();
+            if (version != finishedBefore) {
+                // Wait for the changes in flight, spinning briefly and then yielding, for a bounded time
+                if (!waiting) {
+                    waiting = true;
+                    waitStart = System.nanoTime();
+                } else if (System.nanoTime() - waitStart > MAX_WAIT_NANOS) {
+                    break;
+                }
+                if (spins++ < WAIT_SPINS) {
+                    Thread.onSpinWait();
+                } else {
+                    Thread.yield();
+                }
+                continue;
+            }
+            T result = reader.apply(version);
+            if (started.get() == version) {
+                return result;
+            }
+            overtaken++;
+        }
+
+        // Pause the changes, wait for those in flight to finish, and read once
+        pauseLock.lock();
+        pauses.increment();
+        try {
+            paused = true;
+            while (started.get() != finished.get()) {
+                Thread.onSpinWait();
+            }
+            return reader.apply(started.get());
+        } finally {
+            paused = false;
+            pauseLock.unlock();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.dixon.catalog;
 
 import com.dixon.*;
 import com.dixon.common.Address;
+import com.dixon.common.ExecutorFactory;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.stub.StreamObserver;
@@ -9,8 +10,6 @@ import org.apache.commons.cli.*;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -28,6 +27,16 @@ public class CatalogServiceServer {
      */
     private static ProductCatalog productCatalog;
 
+    /**
+     * Publisher pushing stock changes to the gateways subscribed to the invalidation and replication streams
+     */
+    private static ChangePublisher changePublisher;
+
+    /**
+     * Log of the catalog's stock changes, null if disabled
+     */
+    private static ChangeLog changeLog;
+
     /**
      * Boolean to indicate whether test mode is activated to show response before sending
      */
@@ -37,15 +46,15 @@ public class CatalogServiceServer {
      * Starts the server
      * @param port Port that the server will listen on
      * @param maxThreads Maximum number of threads in the dynamic thread pool
+     * @param executorMode Whether requests run on the dynamic pool ("pool") or on virtual threads ("virtual")
      * @throws IOException
      */
-    private void start(int port, int maxThreads) throws IOException {
+    private void start(int port, int maxThreads, String executorMode) throws IOException {
 
-        // Build server with dynamic pool
+        // Build server with dynamic pool or virtual threads
         server = ServerBuilder.forPort(port)
                 .addService(new CatalogServiceImpl(testMode))
-                .executor(new ThreadPoolExecutor(0, maxThreads,
-                        60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>()))
+                .executor(ExecutorFactory.create(executorMode, maxThreads))
                 .build()
                 .start();
 
@@ -56,6 +65,18 @@ public class CatalogServiceServer {
                 // Use stderr here since the logger may have been reset by its JVM shutdown hook.
                 System.err.println("*** shutting down catalog service server since JVM is shutting down");
 
+                // Stop taking calls and end the invalidation and replication streams so the server does not wait on
+                // them, then let the calls in flight finish, so that every acknowledged change is logged
+                if (server != null) {
+                    server.shutdown();
+                }
+                changePublisher.close();
+                try {
+                    CatalogServiceServer.this.stop();
+                } catch (InterruptedException e) {
+                    e.printStackTrace(System.err);
+                }
+
                 // When the application is shutting down, write the final inventory into the file
                 try {
                     productCatalog.persistToFile();
@@ -63,11 +84,9 @@ public class CatalogServiceServer {
                     throw new RuntimeException(e);
                 }
 
-                // stop the server
-                try {
-                    CatalogServiceServer.this.stop();
-                } catch (InterruptedException e) {
-                    e.printStackTrace(System.err);
+                // Write and sync the changes still pending in the change log
+                if (changeLog != null) {
+                    changeLog.close();
                 }
                 System.err.println("*** server shut down");
             }
@@ -102,13 +121,20 @@ public class CatalogServiceServer {
         Options options = new Options();
         options.addOption("p", "port", true, "port");
         options.addOption("m", "maxThreads", true, "maximum number of threads in dynamic pool");
+        options.addOption("em", "executorMode", true, "request executor (pool or virtual)");
         options.addOption("f", "filePath", true, "file path to the inventory.csv file");
         options.addOption("ut", "updateTime", true, "frequency in seconds of db writes to disk");
+        options.addOption("pm", "persistMode", true, "how changed records are written to the inventory file (rewrite or positional)");
         options.addOption("rt", "restockTime", true, "frequency in seconds of restocks");
         options.addOption("te", "test", false, "testing mode activated");
         options.addOption("fs", "gatewayServer", true, "gateway server address");
         options.addOption("fp", "gatewayPort", true, "gateway server port");
         options.addOption("ec", "enableCache", false, "enables sending cache invalidation");
+        options.addOption("iw", "invalidationWindow", true, "milliseconds over which stock changes are coalesced before being streamed to gateways");
+        options.addOption("cl", "changeLog", true, "file path of the log of stock changes, which enables the log");
+        options.addOption("sp", "syncPolicy", true, "when the change log is synced to disk (always, interval or never)");
+        options.addOption("si", "syncInterval", true, "milliseconds between syncs of the change log under the interval sync policy");
+        options.addOption("cb", "compactBytes", true, "size in bytes beyond which the change log is compacted into a snapshot, 0 to never compact");
 
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
@@ -122,12 +148,19 @@ public class CatalogServiceServer {
         // Parse command line arguments
         int port = Integer.parseInt(cmd.getOptionValue("port", "1765"));
         int maxThreads = Integer.parseInt(cmd.getOptionValue("maxThreads", "50"));
+        String executorMode = cmd.getOptionValue("executorMode", ExecutorFactory.POOL_MODE);
         int updateTime = Integer.parseInt(cmd.getOptionValue("updateTime", "600"));
+        String persistMode = cmd.getOptionValue("persistMode", ProductCatalog.PERSIST_REWRITE);
         int restockTime = Integer.parseInt(cmd.getOptionValue("restockTime", "10"));
         InetAddress gatewayServerName = InetAddress.getByName(cmd.getOptionValue("gatewayServer", "localhost"));
         int gatewayPort = Integer.parseInt(cmd.getOptionValue("gatewayPort", "1764"));
         testMode = cmd.hasOption("te");
         boolean isCacheEnabled = cmd.hasOption("ec");
+        long invalidationWindow = Long.parseLong(cmd.getOptionValue("invalidationWindow", "20"));
+        String changeLogPath = cmd.getOptionValue("changeLog");
+        String syncPolicy = cmd.getOptionValue("syncPolicy", ChangeLog.SYNC_ALWAYS);
+        long syncInterval = Long.parseLong(cmd.getOptionValue("syncInterval", "100"));
+        long compactBytes = Long.parseLong(cmd.getOptionValue("compactBytes", "1048576"));
 
         // Define gateway address
         Address gatewayAddress = Address.builder().host(gatewayServerName.getHostName()).port(gatewayPort).build();
@@ -147,12 +180,17 @@ public class CatalogServiceServer {
             catalogFilePath = cmd.getOptionValue("filePath", "/data/inventory.csv");
         }
 
-        // Initialize the product catalog
-        productCatalog = new ProductCatalog(catalogFilePath, updateTime, restockTime, gatewayAddress, isCacheEnabled);
+        // Initialize the change publisher, the optional change log and the product catalog
+        changePublisher = new ChangePublisher(invalidationWindow, testMode);
+        if (changeLogPath != null) {
+            changeLog = new ChangeLog(changeLogPath, syncPolicy, syncInterval, compactBytes);
+        }
+        productCatalog = new ProductCatalog(catalogFilePath, updateTime, persistMode, restockTime, gatewayAddress,
+                isCacheEnabled, changePublisher, changeLog);
 
         // Create and start server
         final CatalogServiceServer server = new CatalogServiceServer();
-        server.start(port, maxThreads);
+        server.start(port, maxThreads, executorMode);
         System.out.println("Catalog Service started, listening on port " + port);
         server.blockUntilShutdown();
     }
@@ -197,6 +235,52 @@ public class CatalogServiceServer {
             responseObserver.onCompleted();
         }
 
+        /**
+         * Query's the catalog for the cost and stock of several items
+         * @param req Client request
+         * @param responseObserver Response observer
+         */
+        @Override
+        public void queryBatch(CatalogBatchQueryRequest req, StreamObserver<CatalogBatchQueryResponse> responseObserver) {
+            // Query catalog
+            CatalogBatchQueryResponse reply = productCatalog.queryBatch(req);
+
+            // Optionally print response object
+            if (testMode) {
+                System.out.println("Batch query response object:");
+                System.out.println(reply);
+            }
+
+            // Send response
+            responseObserver.onNext(reply);
+            responseObserver.onCompleted();
+        }
+
+        /**
+         * Lists the cost and stock of every item in the catalog, as of one version of the catalog
+         * @param req Client request
+         * @param responseObserver Response observer
+         */
+        @Override
+        public void listCatalog(CatalogListRequest req, StreamObserver<CatalogListResponse> responseObserver) {
+            // Snapshot catalog
+            CatalogSnapshot snapshot = productCatalog.snapshot();
+            CatalogListResponse reply = CatalogListResponse.newBuilder()
+                    .setVersion(snapshot.getVersion())
+                    .addAllProducts(snapshot.getProducts())
+                    .build();
+
+            // Optionally print response object
+            if (testMode) {
+                System.out.println("List response object:");
+                System.out.println(reply);
+            }
+
+            // Send response
+            responseObserver.onNext(reply);
+            responseObserver.onCompleted();
+        }
+
         /**
          * Changes an item stock from the catalog
          * @param req Client request
@@ -217,5 +301,61 @@ public class CatalogServiceServer {
             responseObserver.onNext(reply);
             responseObserver.onCompleted();
         }
+
+        /**
+         * Subscribes a gateway to the names of items whose stock changes, streamed until the gateway disconnects
+         * @param req Client request
+         * @param responseObserver Response observer
+         */
+        @Override
+        public void subscribeInvalidations(InvalidationSubscription req, StreamObserver<InvalidationEvent> responseObserver) {
+            System.out.println("Gateway " + req.getSubscriberName() + " subscribed to invalidations");
+            changePublisher.subscribe(responseObserver, (sequenceNumber, names, oldestChangeMillis) ->
+                    InvalidationEvent.newBuilder()
+                            .setSequenceNumber(sequenceNumber)
+                            .addAllNames(names)
+                            .build());
+        }
+
+        /**
+         * Subscribes a gateway to a snapshot of the catalog followed by the price and stock of the items whose stock
+         * changes, streamed until the gateway disconnects
+         * @param req Client request
+         * @param responseObserver Response observer
+         */
+        @Override
+        public void subscribeCatalog(CatalogSubscription req, StreamObserver<CatalogUpdate> responseObserver) {
+            System.out.println("Gateway " + req.getSubscriberName() + " subscribed to catalog updates");
+            changePublisher.subscribe(responseObserver, (sequenceNumber, names, oldestChangeMillis) ->
+                    CatalogUpdate.newBuilder()
+                            .setSequenceNumber(sequenceNumber)
+                            .setSnapshot(sequenceNumber == 0)
+                            .addAllProducts(sequenceNumber == 0
+                                    ? productCatalog.readAllProducts()
+                                    : productCatalog.readProducts(names))
+                            .setOldestChangeMillis(oldestChangeMillis)
+                            .build());
+        }
+
+        /**
+         * Changes the stock of several items from the catalog, atomically or each on its own
+         * @param req Client request
+         * @param responseObserver Response observer
+         */
+        @Override
+        public void changeStockBatch(CatalogBatchChangeRequest req, StreamObserver<CatalogBatchChangeResponse> responseObserver) {
+            // Attempt every change from catalog
+            CatalogBatchChangeResponse reply = productCatalog.changeItems(req);
+
+            // Optionally print response object
+            if (testMode) {
+                System.out.println("Batch buy response object:");
+                System.out.println(reply);
+            }
+
+            // Send response
+            responseObserver.onNext(reply);
+            responseObserver.onCompleted();
+        }
     }
 }
@@ -0,0 +1,32 @@
+package com.dixon.catalog;
+
+import com.dixon.CatalogProduct;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * The price and stock of every product as they all were at one version of the catalog
+ */
+@Getter
+public class CatalogSnapshot {
+    /**
+     * Version of the catalog, which grows with every stock change
+     */
+    private final long version;
+
+    /**
+     * The price and stock of every product
+     */
+    private final List<CatalogProduct> products;
+
+    /**
+     * Instantiates a CatalogSnapshot
+     * @param version Version of the catalog
+     * @param products The price and stock of every product
+     */
+    public CatalogSnapshot(long version, List<CatalogProduct> products) {
+        this.version = version;
+        this.products = List.copyOf(products);
+    }
+}
@@ -0,0 +1,525 @@
+package com.dixon.catalog;
+
+import com.dixon.CatalogProduct;
+import com.dixon.common.CSVFileHandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Append-only log of the catalog's stock changes, so that changes made since the last snapshot survive a crash.
+ * Each change is one line holding its version, as numbered by the CatalogSequencer, and the stock difference of every
+ * product it changed. Changes are handed to a single writer thread, which writes everything appended since its last
+ * write in one go and syncs it to disk according to the sync policy, so many concurrent changes share one write and
+ * one sync. The cost of the log therefore grows with the rate of changes rather than with the size of the catalog.
+ * <p>
+ * Once the log grows beyond a size, the writer moves it aside and starts a new one, and a background thread writes a
+ * snapshot of the whole catalog, with the version it was taken at, to a sidecar file through a temporary file and a
+ * rename, then deletes the old log. On startup, the stock is read from the sidecar and every logged change with a
+ * later version is applied on top of it. A change cut short by a crash is an incomplete last line, which is ignored.
+ * <p>
+ * If a write or a sync fails, the log fails for good: the changes waiting on it are told they may not be on disk,
+ * and the writer thread stops, so that no later change is acknowledged without being logged.
+ */
+public class ChangeLog {
+    /**
+     * Sync policy under which every write is synced, and a change waits until it is on disk
+     */
+    public static final String SYNC_ALWAYS = "always";
+
+    /**
+     * Sync policy under which writes are synced periodically, and a change does not wait for it
+     */
+    public static final String SYNC_INTERVAL = "interval";
+
+    /**
+     * Sync policy under which writes are never synced, and left to the operating system
+     */
+    public static final String SYNC_NEVER = "never";
+
+    /**
+     * Separator of the values within a line
+     */
+    private static final String DELIMITER = ",";
+
+    /**
+     * Path of the log
+     */
+    private final Path logPath;
+
+    /**
+     * Path of the log moved aside while a snapshot is written
+     */
+    private final Path rolledPath;
+
+    /**
+     * Path of the snapshot sidecar
+     */
+    private final Path snapshotPath;
+
+    /**
+     * Path the snapshot is written to before being renamed
+     */
+    private final Path snapshotTempPath;
+
+    /**
+     * The sync policy, one of SYNC_ALWAYS, SYNC_INTERVAL and SYNC_NEVER
+     */
+    private final String syncPolicy;
+
+    /**
+     * Time in nanoseconds between syncs under SYNC_INTERVAL
+     */
+    private final long syncIntervalNanos;
+
+    /**
+     * Size in bytes beyond which the log is compacted into a snapshot, 0 to never compact
+     */
+    private final long compactBytes;
+
+    /**
+     * Lock guarding the pending changes and the counts of appended and written changes
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when a change is appended or the log is closed
+     */
+    private final Condition changeAppended = lock.newCondition();
+
+    /**
+     * Signalled when appended changes have been written
+     */
+    private final Condition changesWritten = lock.newCondition();
+
+    /**
+     * Lines appended but not written yet
+     */
+    private final StringBuilder pending = new StringBuilder();
+
+    /**
+     * Number of changes appended
+     */
+    private long appendedCount;
+
+    /**
+     * Number of changes written, and synced under SYNC_ALWAYS
+     */
+    private long writtenCount;
+
+    /**
+     * Whether the log was closed
+     */
+    private boolean closed;
+
+    /**
+     * The failure of a write or sync that stopped the log, null while the log works
+     */
+    private volatile IOException failure;
+
+    /**
+     * The open log, only used by the writer thread
+     */
+    private FileChannel channel;
+
+    /**
+     * Size in bytes of the open log
+     */
+    private long logBytes;
+
+    /**
+     * Whether bytes were written since the last sync
+     */
+    private boolean unsynced;
+
+    /**
+     * System.nanoTime() value of the last sync
+     */
+    private long lastSyncNanos;
+
+    /**
+     * Whether a snapshot is being written from a log moved aside
+     */
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    /**
+     * Takes snapshots of the catalog for compaction
+     */
+    private Supplier<CatalogSnapshot> snapshotter;
+
+    /**
+     * Thread writing the appended changes
+     */
+    private Thread writer;
+
+    /**
+     * Thread writing the snapshots
+     */
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "change-log-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Instantiates a ChangeLog
+     * @param filePath Path of the log, next to which the snapshot sidecar is kept
+     * @param syncPolicy The sync policy, one of SYNC_ALWAYS, SYNC_INTERVAL and SYNC_NEVER
+     * @param syncIntervalMillis Time in milliseconds between syncs under SYNC_INTERVAL
+     * @param compactBytes Size in bytes beyond which the log is compacted into a snapshot, 0 to never compact
+     */
+    public ChangeLog(String filePath, String syncPolicy, long syncIntervalMillis, long compactBytes) {
+        if (!SYNC_ALWAYS.equals(syncPolicy) && !SYNC_INTERVAL.equals(syncPolicy) && !SYNC_NEVER.equals(syncPolicy)) {
+            throw new IllegalArgumentException("Unknown sync policy " + syncPolicy);
+        }
+        this.logPath = Paths.get(filePath);
+        this.rolledPath = Paths.get(filePath + ".old");
+        this.snapshotPath = Paths.get(filePath + ".snapshot");
+        this.snapshotTempPath = Paths.get(filePath + ".snapshot.tmp");
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+        this.compactBytes = compactBytes;
+    }
+
+    /**
+     * Restores the stock of the products from the snapshot sidecar and the logged changes made after it
+     * @param products The products of the catalog, by name, whose stock is restored
+     * @return The version of the last change restored, or of the snapshot if no later change was logged
+     * @throws IOException
+     */
+    public long recover(Map<String, ProductCatalogRecord> products) throws IOException {
+        long snapshotVersion = 0;
+        if (Files.exists(snapshotPath)) {
+            List<String> lines = Files.readAllLines(snapshotPath, StandardCharsets.UTF_8);
+            snapshotVersion = Long.parseLong(lines.get(0));
+            for (String line : lines.subList(1, lines.size())) {
+                String[] values = line.split(DELIMITER);
+                ProductCatalogRecord productRecord = products.get(values[0]);
+                if (productRecord != null) {
+                    productRecord.setStock(Integer.valueOf(values[1]));
+                }
+            }
+        }
+
+        // The log moved aside holds older changes than the current log, if a compaction did not finish
+        long version = snapshotVersion;
+        int replayed = 0;
+        for (Path path : List.of(rolledPath, logPath)) {
+            if (!Files.exists(path)) {
+                continue;
+            }
+            String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+            // The text after the last line break is a change cut short by a crash
+            String[] lines = content.split("\n", -1);
+            for (int i = 0; i < lines.length - 1; i++) {
+                String[] values = lines[i].split(DELIMITER);
+                long changeVersion = Long.parseLong(values[0]);
+                if (changeVersion <= snapshotVersion) {
+                    continue;
+                }
+                for (int j = 1; j + 1 < values.length; j += 2) {
+                    ProductCatalogRecord productRecord = products.get(values[j]);
+                    if (productRecord != null) {
+                        productRecord.addStock(Integer.parseInt(values[j + 1]));
+                    }
+                }
+                version = Math.max(version, changeVersion);
+                replayed++;
+            }
+        }
+        System.out.println("Recovered catalog version " + version + " replaying " + replayed + " logged changes");
+        return version;
+    }
+
+    /**
+     * Writes a snapshot of the recovered catalog, starts a new log and starts the writer thread
+     * @param snapshotter Takes snapshots of the catalog for compaction
+     * @throws IOException
+     */
+    public void start(Supplier<CatalogSnapshot> snapshotter) throws IOException {
+        this.snapshotter = snapshotter;
+        writeSnapshot(snapshotter.get());
+        Files.deleteIfExists(rolledPath);
+        channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        CSVFileHandler.syncParentDirectory(logPath);
+        lastSyncNanos = System.nanoTime();
+
+        writer = new Thread(this::writeChanges, "change-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends a change, to be written by the writer thread. Must be called while the change is being made, between
+     * the CatalogSequencer's beginChange and endChange, so that a snapshot taken after the log is moved aside
+     * includes every change of the old log.
+     * @param version The version of the change
+     * @param stockChanges The stock difference of every product the change changed
+     * @return The ticket to wait on with awaitWritten
+     */
+    public long append(long version, Map<String, Integer> stockChanges) {
+        StringBuilder line = new StringBuilder().append(version);
+        stockChanges.forEach((toyName, difference) -> line.append(DELIMITER).append(toyName)
+                .append(DELIMITER).append(difference));
+        line.append('\n');
+
+        lock.lock();
+        try {
+            pending.append(line);
+            changeAppended.signal();
+            return ++appendedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until an appended change is on disk under SYNC_ALWAYS, or returns right away under the other policies
+     * unless the log has failed
+     * @param ticket The ticket returned by append
+     * @throws IOException if the log failed or was closed before the change was written, so that the change may
+     * not be on disk
+     */
+    public void awaitWritten(long ticket) throws IOException {
+        lock.lock();
+        try {
+            if (SYNC_ALWAYS.equals(syncPolicy)) {
+                while (writtenCount < ticket && failure == null && !closed) {
+                    changesWritten.awaitUninterruptibly();
+                }
+            }
+            if (writtenCount >= ticket) {
+                return;
+            }
+            if (failure != null) {
+                throw new IOException("Change log failed", failure);
+            }
+            if (closed) {
+                throw new IOException("Change log closed");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives whether a write or sync failed and the log stopped, in which case no change may be made
+     * @return True if the log failed
+     */
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Writes the remaining changes, syncs them and stops the writer thread
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            changeAppended.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writer thread loop, writing the changes appended since its last write as one group, until the log is closed
+     * or a write or sync fails
+     */
+    private void writeChanges() {
+        try {
+            while (true) {
+                String group;
+                long groupCount;
+                lock.lock();
+                try {
+                    while (pending.length() == 0 && !closed) {
+                        if (SYNC_INTERVAL.equals(syncPolicy) && unsynced) {
+                            long remainingNanos = lastSyncNanos + syncIntervalNanos - System.nanoTime();
+                            if (remainingNanos <= 0) {
+                                break;
+                            }
+                            changeAppended.awaitNanos(remainingNanos);
+                        } else {
+                            changeAppended.await();
+                        }
+                    }
+                    group = pending.toString();
+                    pending.setLength(0);
+                    groupCount = appendedCount;
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    lock.unlock();
+                }
+
+                if (!group.isEmpty()) {
+                    write(group);
+                }
+                if (SYNC_ALWAYS.equals(syncPolicy) || (SYNC_INTERVAL.equals(syncPolicy)
+                        && System.nanoTime() - lastSyncNanos >= syncIntervalNanos)) {
+                    sync();
+                }
+
+                // Only changes that were written, and synced under SYNC_ALWAYS, are acknowledged
+                boolean stop;
+                lock.lock();
+                try {
+                    writtenCount = groupCount;
+                    changesWritten.signalAll();
+                    stop = closed && pending.length() == 0;
+                } finally {
+                    lock.unlock();
+                }
+                if (stop) {
+                    sync();
+                    channel.close();
+                    return;
+                }
+                if (compactBytes > 0 && logBytes >= compactBytes) {
+                    roll();
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Stops the log after a failed write or sync, failing every change waiting on it
+     * @param e The failure
+     */
+    private void fail(IOException e) {
+        System.out.println("Unable to write to change log, no more changes will be accepted.");
+        System.out.println(e);
+        lock.lock();
+        try {
+            failure = e;
+            changesWritten.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            channel.close();
+        } catch (IOException closeFailure) {
+            // The log is already failed
+        }
+    }
+
+    /**
+     * Writes a group of lines to the log
+     * @param group The lines
+     * @throws IOException
+     */
+    private void write(String group) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(group.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            logBytes += channel.write(buffer);
+        }
+        unsynced = true;
+    }
+
+    /**
+     * Syncs the log to disk if anything was written since the last sync
+     * @throws IOException
+     */
+    private void sync() throws IOException {
+        if (!unsynced) {
+            return;
+        }
+        channel.force(false);
+        unsynced = false;
+        lastSyncNanos = System.nanoTime();
+    }
+
+    /**
+     * Moves the log aside, starts a new one and has the compactor thread snapshot the catalog,
+     * unless the previous snapshot is still being written. The log is moved while still open, so if the move fails
+     * the writer keeps writing to it and the roll is tried again after the next write. The directory is synced once
+     * the new log is created, so that no change written to the new log is acknowledged before the move is durable.
+     * @throws IOException if the log cannot be synced or a new log cannot be started
+     */
+    private void roll() throws IOException {
+        if (!compacting.compareAndSet(false, true)) {
+            return;
+        }
+        sync();
+        try {
+            Files.move(logPath, rolledPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Unable to roll change log.");
+            System.out.println(e);
+            compacting.set(false);
+            return;
+        }
+
+        // The old log's records are in the moved file, which the snapshot replaces, so a failure here stops the log
+        FileChannel rolledChannel = channel;
+        channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        rolledChannel.close();
+        CSVFileHandler.syncParentDirectory(logPath);
+        logBytes = 0;
+        compactor.execute(this::compact);
+    }
+
+    /**
+     * Writes a snapshot of the catalog, which includes every change of the log moved aside, and deletes that log
+     */
+    private void compact() {
+        try {
+            writeSnapshot(snapshotter.get());
+            Files.deleteIfExists(rolledPath);
+        } catch (IOException e) {
+            System.out.println("Unable to compact change log.");
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    /**
+     * Writes a snapshot to the sidecar through a temporary file, so a crash leaves either the old or the new snapshot,
+     * and syncs the directory so the rename is durable before the log moved aside is deleted
+     * @param snapshot The snapshot
+     * @throws IOException
+     */
+    private void writeSnapshot(CatalogSnapshot snapshot) throws IOException {
+        StringBuilder content = new StringBuilder().append(snapshot.getVersion()).append('\n');
+        for (CatalogProduct product : snapshot.getProducts()) {
+            content.append(product.getName()).append(DELIMITER).append(product.getQuantity()).append('\n');
+        }
+        try (FileChannel snapshotChannel = FileChannel.open(snapshotTempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                snapshotChannel.write(buffer);
+            }
+            snapshotChannel.force(true);
+        }
+        Files.move(snapshotTempPath, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        CSVFileHandler.syncParentDirectory(snapshotPath);
+    }
+}
@@ -0,0 +1,240 @@
+package com.dixon.catalog;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pushes the names of products whose stock changed to every subscribed gateway over gRPC streams.
+ * Changes are collected per subscriber and sent once per coalescing window, so a product changed many times
+ * within a window is only sent once, and all products changed within a window share a single message.
+ * Each subscriber's events are numbered consecutively from 0, where event 0 is sent once the subscription
+ * is established. If a subscriber cannot keep up and its pending changes exceed a limit, they are dropped and
+ * a sequence number is skipped, so the subscriber sees the gap and discards whatever it derived from the stream.
+ */
+public class ChangePublisher {
+    /**
+     * Maximum number of pending product names kept for a subscriber that is not ready to receive
+     */
+    private static final int MAX_PENDING_NAMES = 10000;
+
+    /**
+     * Builds the events of one kind of subscription from the changed product names
+     * @param <T> The event type
+     */
+    public interface EventFactory<T> {
+        /**
+         * Builds an event
+         * @param sequenceNumber The sequence number of the event, 0 for the event establishing the subscription
+         * @param names The names of the products changed since the previous event, empty for event 0
+         * @param oldestChangeMillis Wall clock time of the oldest change in the event, or of the subscription for event 0
+         * @return The event
+         */
+        T create(long sequenceNumber, Set<String> names, long oldestChangeMillis);
+    }
+
+    /**
+     * The subscribed gateways
+     */
+    private final List<Subscriber<?>> subscribers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Single thread sending the events, so that each stream is only written from one thread
+     */
+    private final ScheduledExecutorService flushScheduler = Executors.newScheduledThreadPool(1);
+
+    /**
+     * Boolean to indicate whether test mode is activated to show events before sending
+     */
+    private final boolean testMode;
+
+    /**
+     * Instantiates a ChangePublisher sending the collected changes once per window
+     * @param windowMillis Length in milliseconds of the coalescing window
+     * @param testMode Indicates whether the events are printed before sending
+     */
+    public ChangePublisher(long windowMillis, boolean testMode) {
+        this.testMode = testMode;
+        flushScheduler.scheduleAtFixedRate(this::flush, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a subscriber, sending it event 0 once it receives every later change
+     * @param responseObserver The subscriber's response stream
+     * @param eventFactory Builds the subscriber's events
+     * @param <T> The event type
+     */
+    public <T> void subscribe(StreamObserver<T> responseObserver, EventFactory<T> eventFactory) {
+        ServerCallStreamObserver<T> observer = (ServerCallStreamObserver<T>) responseObserver;
+        Subscriber<T> subscriber = new Subscriber<>(observer, eventFactory);
+        observer.setOnCancelHandler(() -> subscribers.remove(subscriber));
+
+        // Register and send event 0 on the flush thread, so no change is sent before it.
+        // Registering first means a change made while event 0 is built is also sent after it.
+        flushScheduler.execute(() -> {
+            if (observer.isCancelled()) {
+                return;
+            }
+            subscribers.add(subscriber);
+            subscriber.send(new HashSet<>(), System.currentTimeMillis());
+        });
+    }
+
+    /**
+     * Records that a product's stock changed, to be sent to every subscriber at the end of the window
+     * @param productName The product name
+     */
+    public void publish(String productName) {
+        for (Subscriber<?> subscriber : subscribers) {
+            subscriber.add(productName);
+        }
+    }
+
+    /**
+     * Ends every subscription and stops sending events, so the server can shut down without waiting on the streams
+     */
+    public void close() {
+        flushScheduler.execute(() -> {
+            for (Subscriber<?> subscriber : subscribers) {
+                subscriber.observer.onCompleted();
+            }
+            subscribers.clear();
+        });
+        flushScheduler.shutdown();
+        try {
+            flushScheduler.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends each subscriber that is ready to receive the product names collected for it since its last event
+     */
+    private void flush() {
+        for (Subscriber<?> subscriber : subscribers) {
+            // Keep collecting for a subscriber whose stream is backed up
+            if (!subscriber.observer.isReady()) {
+                continue;
+            }
+
+            Set<String> names;
+            boolean overflowed;
+            long oldestChangeMillis;
+            subscriber.lock.lock();
+            try {
+                if (subscriber.pending.isEmpty() && !subscriber.overflowed) {
+                    continue;
+                }
+                names = subscriber.pending;
+                overflowed = subscriber.overflowed;
+                oldestChangeMillis = subscriber.oldestChangeMillis;
+                subscriber.pending = new HashSet<>();
+                subscriber.overflowed = false;
+            } finally {
+                subscriber.lock.unlock();
+            }
+
+            // Skip a sequence number for the dropped names
+            if (overflowed) {
+                subscriber.nextSequenceNumber++;
+            }
+            subscriber.send(names, oldestChangeMillis);
+        }
+    }
+
+    /**
+     * A subscribed gateway's stream and the product names not yet sent to it
+     * @param <T> The event type
+     */
+    private class Subscriber<T> {
+        /**
+         * The subscriber's response stream
+         */
+        private final ServerCallStreamObserver<T> observer;
+
+        /**
+         * Builds the subscriber's events
+         */
+        private final EventFactory<T> eventFactory;
+
+        /**
+         * Lock guarding the pending names, the overflow flag and the oldest change time
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Names of the products changed since the last event
+         */
+        private Set<String> pending = new HashSet<>();
+
+        /**
+         * Whether pending names were dropped since the last event
+         */
+        private boolean overflowed;
+
+        /**
+         * Wall clock time of the oldest change since the last event
+         */
+        private long oldestChangeMillis;
+
+        /**
+         * Sequence number of the next event, only used on the flush thread
+         */
+        private long nextSequenceNumber;
+
+        private Subscriber(ServerCallStreamObserver<T> observer, EventFactory<T> eventFactory) {
+            this.observer = observer;
+            this.eventFactory = eventFactory;
+        }
+
+        /**
+         * Adds a changed product name, dropping all pending names if there are too many
+         * @param productName The product name
+         */
+        private void add(String productName) {
+            lock.lock();
+            try {
+                if (pending.isEmpty() && !overflowed) {
+                    oldestChangeMillis = System.currentTimeMillis();
+                }
+                if (pending.size() >= MAX_PENDING_NAMES) {
+                    pending.clear();
+                    overflowed = true;
+                }
+                pending.add(productName);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Builds and sends the next event, removing the subscriber if its stream has failed
+         * @param names The names of the products changed since the previous event
+         * @param oldestChangeMillis Wall clock time of the oldest change in the event
+         */
+        private void send(Set<String> names, long oldestChangeMillis) {
+            try {
+                T event = eventFactory.create(nextSequenceNumber++, names, oldestChangeMillis);
+
+                // Optionally print event object
+                if (testMode) {
+                    System.out.println("Change event object:");
+                    System.out.println(event);
+                }
+
+                observer.onNext(event);
+            } catch (RuntimeException e) {
+                subscribers.remove(this);
+            }
+        }
+    }
+}
@@ -1,7 +1,12 @@
 package com.dixon.catalog;
 
+import com.dixon.CatalogBatchChangeRequest;
+import com.dixon.CatalogBatchChangeResponse;
+import com.dixon.CatalogBatchQueryRequest;
+import com.dixon.CatalogBatchQueryResponse;
 import com.dixon.CatalogChangeRequest;
 import com.dixon.CatalogChangeResponse;
+import com.dixon.CatalogProduct;
 import com.dixon.CatalogQueryRequest;
 import com.dixon.CatalogQueryResponse;
 import com.dixon.common.Address;
@@ -12,25 +17,61 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Product catalog to hold item inventory and cost
+ * Product catalog to hold item inventory and cost. The set of products is fixed once the catalog is loaded, and each
+ * product's stock is changed atomically on its own, so buys and restocks of different products never contend and
+ * queries never wait on a lock. Every change is numbered by a CatalogSequencer, so the whole catalog can be read
+ * consistently, as of one version, without making the changes wait.
  */
 public class ProductCatalog {
 
     /**
-     * Inventory of items
+     * Persistence mode rewriting the whole file, through a temporary file and a rename, when any record changed
      */
-    private final HashMap<String, ProductCatalogRecord> products = new HashMap<>();
+    public static final String PERSIST_REWRITE = "rewrite";
+
+    /**
+     * Persistence mode overwriting only the changed records in place, in a file whose rows all have the same width
+     */
+    public static final String PERSIST_POSITIONAL = "positional";
+
+    /**
+     * Inventory of items in file order, only modified while the catalog is loaded
+     */
+    private final LinkedHashMap<String, ProductCatalogRecord> products = new LinkedHashMap<>();
+
+    /**
+     * Maps the name of each item to its row in the file
+     */
+    private final Map<String, Integer> rowIndexes = new HashMap<>();
+
+    /**
+     * Width in bytes of every row of the file under PERSIST_POSITIONAL, 0 until the file is written with fixed rows
+     */
+    private int rowWidth;
+
+    /**
+     * The persistence mode, either PERSIST_REWRITE or PERSIST_POSITIONAL
+     */
+    private final String persistMode;
+
+    /**
+     * Lock serializing the writes of the file
+     */
+    private final ReentrantLock persistLock = new ReentrantLock();
 
     /**
      * File Handler to read and write the catalog records to the database file
@@ -43,19 +84,14 @@ public class ProductCatalog {
     private final CSVFileHandler.ObjectFactory<ProductCatalogRecord> catalogRecordObjectFactory;
 
     /**
-     * Read write lock for synchronization
-     */
-    private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-
-    /**
-     * Read lock for query synchronization
+     * Numbers the stock changes and lets snapshots be read between them
      */
-    private final Lock readLock = readWriteLock.readLock();
+    private final CatalogSequencer sequencer;
 
     /**
-     * Write lock for buy synchronization
+     * Log of the stock changes made since the last snapshot, null if changes are only persisted by persistToFile
      */
-    private final Lock writeLock = readWriteLock.writeLock();
+    private final ChangeLog changeLog;
 
     /**
      * Http client object for gateway server
@@ -72,27 +108,60 @@ public class ProductCatalog {
      */
     private static boolean isCacheEnabled;
 
+    /**
+     * Publisher pushing stock changes to the gateways subscribed to the invalidation and replication streams
+     */
+    private final ChangePublisher changePublisher;
+
     /**
      * Instantiates a new ProductCatalog
      * @param filePath file path of the inventory of the Products
      * @param dbWriteFreq Frequency to update the inventory into the DB/file
+     * @param persistMode How changed records are written into the file, either PERSIST_REWRITE or PERSIST_POSITIONAL
      * @param restockFreq Frequency of item restocking
      * @param gatewayAddress Address of the gateway service for invalidating cache lines
      * @param isCacheEnabled Indicates whether caching is enabled on the gateway service,
-     *                       which determines whether invalidation requests are sent
+     *                       which determines whether HTTP invalidation requests are sent
+     * @param changePublisher Publisher pushing stock changes to the gateways subscribed to the invalidation
+     *                        and replication streams
+     * @param changeLog Log of the stock changes made since the last snapshot, from which the stock is recovered,
+     *                  or null to only persist the inventory into the file
      * @throws IOException
      */
-    public ProductCatalog(String filePath, int dbWriteFreq, int restockFreq, Address gatewayAddress, boolean isCacheEnabled) throws IOException {
+    public ProductCatalog(String filePath, int dbWriteFreq, String persistMode, int restockFreq, Address gatewayAddress,
+                          boolean isCacheEnabled, ChangePublisher changePublisher, ChangeLog changeLog) throws IOException {
+        if (!PERSIST_REWRITE.equals(persistMode) && !PERSIST_POSITIONAL.equals(persistMode)) {
+            throw new IllegalArgumentException("Unknown persistence mode " + persistMode);
+        }
+        this.persistMode = persistMode;
         productCatalogFileHandler = new CSVFileHandler<>(filePath);
         catalogRecordObjectFactory = new ProductCatalogRecord.ProductCatalogRecordFactory();
         productCatalogFileHandler.readObjectValuesFromCSV(catalogRecordObjectFactory).forEach(
                 eachProductRecord -> products.put(eachProductRecord.getName(), eachProductRecord)
         );
+        products.keySet().forEach(toyName -> rowIndexes.put(toyName, rowIndexes.size()));
+
+        // Restore the stock changed since the last snapshot of the change log, and number the changes after it
+        this.changeLog = changeLog;
+        if (changeLog != null) {
+            sequencer = new CatalogSequencer(changeLog.recover(products));
+            changeLog.start(this::snapshot);
+            // The recovered stock may differ from the file
+            products.values().forEach(ProductCatalogRecord::markDirty);
+        } else {
+            sequencer = new CatalogSequencer(0);
+        }
+
+        // Lay the file out in rows of the same width, so changed records can be overwritten in place
+        if (PERSIST_POSITIONAL.equals(persistMode)) {
+            rewriteFile(snapshot());
+        }
 
         // Define invalidation uri
         invalidate_uri = "http://" + gatewayAddress.toString() + "/invalidate/";
 
         this.isCacheEnabled = isCacheEnabled;
+        this.changePublisher = changePublisher;
 
         // Write scheduler to update the inventory if a product went out of stock
         ScheduledExecutorService reStockScheduler = Executors.newScheduledThreadPool(1);
@@ -101,35 +170,39 @@ public class ProductCatalog {
         // is less than threshold quantity of 5
         reStockScheduler.scheduleAtFixedRate(() -> {
 //            System.out.println("RESTOCKING");
-            products.keySet().forEach(productName -> {
-                try{
-                    CatalogQueryResponse response = query(CatalogQueryRequest.newBuilder().setName(productName).build());
-                    // If quantity is less than 5, restock 1000 items
-//                    System.out.println(response.getQuantity());
-                    if(response.getSuccess() && response.getQuantity() < 5) {
-                        changeItem(CatalogChangeRequest.newBuilder()
-                                        .setIsIncrement(true)
-                                        .setName(productName)
-                                        .setQuantity(1000)
-                                        .build()
-                        );
+            // Check every product from one snapshot rather than querying them one by one
+            try {
+                // If quantity is less than 5, restock 1000 items, restocking every such product in one batch
+                CatalogBatchChangeRequest.Builder restocks = CatalogBatchChangeRequest.newBuilder().setBestEffort(true);
+                for (CatalogProduct product : snapshot().getProducts()) {
+                    if (product.getQuantity() < 5) {
+                        restocks.addChanges(CatalogChangeRequest.newBuilder()
+                                .setIsIncrement(true)
+                                .setName(product.getName())
+                                .setQuantity(1000)
+                                .build());
                     }
-                } catch (Exception e) {
-                    System.out.println("Exception during restocking the quantity for product " + productName);
-                    System.out.println(e);
                 }
-            });
+                if (restocks.getChangesCount() > 0) {
+                    changeItems(restocks.build());
+                }
+            } catch (Exception e) {
+                System.out.println("Exception during restocking the inventory");
+                System.out.println(e);
+            }
         }, 0, restockFreq, TimeUnit.SECONDS);
 
         // Write scheduler to update the inventory into the file
         ScheduledExecutorService dbWriteScheduler = Executors.newScheduledThreadPool(1);
 
-        // Schedule a new thread that writes the inventory every dbUpdateFreq seconds
+        // Schedule a new thread that writes the changed records every dbUpdateFreq seconds
         dbWriteScheduler.scheduleAtFixedRate(() -> {
             try {
                 persistToFile();
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                // Keep the records dirty and try again at the next write
+                System.out.println("Unable to write to inventory file.");
+                System.out.println(e);
             }
         }, dbWriteFreq, dbWriteFreq, TimeUnit.SECONDS);
     }
@@ -150,12 +223,9 @@ public class ProductCatalog {
                                 .build();
         }
 
-        // Acquire read lock since reading inventory
-        readLock.lock();
         ProductCatalogRecord productRecord = products.get(toyName);
         double price = productRecord.getPrice();
         int stock = productRecord.getStock();
-        readLock.unlock();
 
         return CatalogQueryResponse.newBuilder()
                 .setSuccess(true)
@@ -165,6 +235,82 @@ public class ProductCatalog {
                 .build();
     }
 
+    /**
+     * Gets stock and cost of several items, as they all were at one version of the catalog, so that the items of a
+     * batch never show only part of a change such as a cart
+     * @param req The batch query request object containing the product names
+     * @return A batch query response object with one query response per requested product, in request order,
+     * each detailing the stock and cost of the item or an error message if the item does not exist
+     */
+    public CatalogBatchQueryResponse queryBatch(CatalogBatchQueryRequest req) {
+        return sequencer.read(version -> {
+            CatalogBatchQueryResponse.Builder responses = CatalogBatchQueryResponse.newBuilder();
+            for (String toyName : req.getNamesList()) {
+                ProductCatalogRecord productRecord = products.get(toyName);
+                if (productRecord == null) {
+                    responses.addResponses(CatalogQueryResponse.newBuilder()
+                            .setSuccess(false)
+                            .setErrorMessage(toyName + " does not exist in catalog.")
+                            .build());
+                    continue;
+                }
+                responses.addResponses(CatalogQueryResponse.newBuilder()
+                        .setSuccess(true)
+                        .setName(toyName)
+                        .setPrice(productRecord.getPrice())
+                        .setQuantity(productRecord.getStock())
+                        .build());
+            }
+            return responses.build();
+        });
+    }
+
+    /**
+     * Reads the current price and stock of several items
+     * @param toyNames The names of the items, names not in the catalog are skipped
+     * @return The price and stock of each item
+     */
+    public List<CatalogProduct> readProducts(Collection<String> toyNames) {
+        List<CatalogProduct> catalogProducts = new ArrayList<>(toyNames.size());
+        for (String toyName : toyNames) {
+            ProductCatalogRecord productRecord = products.get(toyName);
+            if (productRecord != null) {
+                catalogProducts.add(CatalogProduct.newBuilder()
+                        .setName(toyName)
+                        .setPrice(productRecord.getPrice())
+                        .setQuantity(productRecord.getStock())
+                        .build());
+            }
+        }
+        return catalogProducts;
+    }
+
+    /**
+     * Reads the current price and stock of every item, as they all were at one version of the catalog
+     * @return The price and stock of every item in the catalog
+     */
+    public List<CatalogProduct> readAllProducts() {
+        return snapshot().getProducts();
+    }
+
+    /**
+     * Takes a snapshot of the price and stock of every item, as they all were at one version of the catalog.
+     * Changes are not made to wait unless they keep overtaking the snapshot.
+     * @return The snapshot, carrying the version of the catalog it was taken at
+     */
+    public CatalogSnapshot snapshot() {
+        return sequencer.read(version -> new CatalogSnapshot(version, readProducts(products.keySet())));
+    }
+
+    /**
+     * Gives the number of snapshots and batch queries that paused the stock changes, having been overtaken or kept
+     * waiting by them too long
+     * @return The number of reads
+     */
+    public long getReadPauses() {
+        return sequencer.getPauses();
+    }
+
     /**
      * Buys/Adds item and reduces/adds inventory by specified quantity if inventory is greater than desired quantity
      * based on the increment flag(increases/decreases the stock of the product)
@@ -181,47 +327,398 @@ public class ProductCatalog {
                     .build();
         }
 
+        // Refuse changes once the change log has failed, as they could not be logged
+        if (isLogFailed()) {
+            return CatalogChangeResponse.newBuilder()
+                    .setSuccess(false)
+                    .setErrorMessage(toyName + "'s change could not be logged.")
+                    .build();
+        }
+
         int quantity = req.getQuantity();
 
-        // Acquire write lock since writing to inventory
-        writeLock.lock();
         ProductCatalogRecord productRecord = products.get(toyName);
-        // If restocking, add quantity and invalidate cache line
-        if (req.getIsIncrement()) {
-            productRecord.setStock(productRecord.getStock()+quantity);
-            writeLock.unlock();
-            invalidateCacheLine(toyName);
-            return CatalogChangeResponse.newBuilder()
-                    .setSuccess(true)
-                    .build();
+        boolean changed;
+        long ticket = 0;
+        long version = sequencer.beginChange();
+        try {
+            if (req.getIsIncrement()) {
+                productRecord.addStock(quantity);
+                changed = true;
+            } else {
+                // Decrement stock only if it is greater than or equal to quantity
+                changed = productRecord.tryRemoveStock(quantity);
+            }
+            if (changed) {
+                ticket = logChange(version, Map.of(toyName, req.getIsIncrement() ? quantity : -quantity));
+            }
+        } finally {
+            sequencer.endChange();
         }
         // If stock is less than quantity, do nothing and return error object
-        if (productRecord.getStock() < quantity) {
-            writeLock.unlock();
+        if (!changed) {
             return CatalogChangeResponse.newBuilder()
                     .setSuccess(false)
                     .setErrorMessage(toyName + "'s stock is less than desired quantity.")
                     .build();
         }
-        // If stock is greater than or equal to quantity, decrement stock and invalidate cache
-        productRecord.setStock(productRecord.getStock()-quantity);
-        writeLock.unlock();
         invalidateCacheLine(toyName);
+        if (!awaitLogged(ticket)) {
+            undoChange(Map.of(toyName, req.getIsIncrement() ? quantity : -quantity));
+            return CatalogChangeResponse.newBuilder()
+                    .setSuccess(false)
+                    .setErrorMessage(toyName + "'s change could not be logged.")
+                    .build();
+        }
         return CatalogChangeResponse.newBuilder()
                 .setSuccess(true)
                 .build();
     }
 
     /**
-     * Persists the existing inventory in memory to the DB/File
-     * @throws IOException in case of any IO issues
+     * Applies several stock changes in one call, either atomically or on a best-effort basis, and reports the outcome
+     * of every line. In both modes the changes are numbered as a single change, so snapshots see all of them or none.
+     * <p>
+     * In the all-or-nothing mode, every line is validated before any is applied and changes to the same product are
+     * combined, so a product listed on several lines must have enough stock for all of them. The stock is removed
+     * from each product in turn, in name order, and if a product lacks stock the removals already made are added back,
+     * so either all changes succeed or the inventory is left as it was. Stock is only added once every removal has
+     * succeeded. While a batch is being applied, the stock it removed is held as if reserved, so a concurrent buy of
+     * the last items may be refused even if the batch is later rolled back, but stock can never be oversold.
+     * <p>
+     * In the best-effort mode, each line is applied on its own in request order, and a line that is invalid or lacks
+     * stock fails without affecting the others.
+     * <p>
+     * Once the change log has failed, no line is applied, and if the log fails while the batch is being logged,
+     * the applied lines are undone and reported as failed.
+     * @param req The batch change request object containing the change requests and the mode
+     * @return A batch change response object detailing the outcome of every line in request order, successful only
+     * if every line was applied, and otherwise carrying the error message of the first line that failed
+     */
+    public CatalogBatchChangeResponse changeItems(CatalogBatchChangeRequest req) {
+        List<CatalogChangeRequest> changes = req.getChangesList();
+        String[] errorMessages = new String[changes.size()];
+        boolean valid = true;
+        for (int i = 0; i < changes.size(); i++) {
+            errorMessages[i] = isLogFailed() ? changes.get(i).getName() + "'s change could not be logged."
+                    : validateChange(changes.get(i));
+            valid &= errorMessages[i] == null;
+        }
+
+        // Lines without an error of their own are not applied if an all-or-nothing batch fails
+        Map<String, Integer> appliedChanges = new LinkedHashMap<>();
+        boolean applied;
+        long ticket;
+        if (req.getBestEffort()) {
+            ticket = applyEachChange(changes, errorMessages, appliedChanges);
+            applied = true;
+        } else {
+            ticket = valid ? applyAllChanges(changes, errorMessages, appliedChanges) : -1;
+            applied = ticket >= 0;
+        }
+
+        // Invalidate the cache line of every changed product once
+        appliedChanges.keySet().forEach(this::invalidateCacheLine);
+
+        // Undo the batch and fail every applied line if it could not be logged
+        if (!awaitLogged(ticket)) {
+            undoChange(appliedChanges);
+            for (int i = 0; i < changes.size(); i++) {
+                if (errorMessages[i] == null) {
+                    errorMessages[i] = changes.get(i).getName() + "'s change could not be logged.";
+                }
+            }
+        }
+
+        CatalogBatchChangeResponse.Builder response = CatalogBatchChangeResponse.newBuilder().setSuccess(true);
+        for (int i = 0; i < changes.size(); i++) {
+            if (errorMessages[i] != null) {
+                response.addLines(CatalogChangeResponse.newBuilder()
+                        .setSuccess(false)
+                        .setErrorMessage(errorMessages[i])
+                        .build());
+                // The batch fails with the error message of the first line that failed
+                if (response.getSuccess()) {
+                    response.setSuccess(false).setErrorMessage(errorMessages[i]);
+                }
+            } else if (!applied) {
+                response.addLines(CatalogChangeResponse.newBuilder()
+                        .setSuccess(false)
+                        .setErrorMessage("Not applied since another change of the batch failed.")
+                        .build());
+            } else {
+                response.addLines(CatalogChangeResponse.newBuilder()
+                        .setSuccess(true)
+                        .build());
+            }
+        }
+        return response.build();
+    }
+
+    /**
+     * Checks that a line of a batch names a product in the catalog and a positive quantity
+     * @param change The line
+     * @return The error message of the line, or null if the line is valid
+     */
+    private String validateChange(CatalogChangeRequest change) {
+        String toyName = change.getName();
+        if (!products.containsKey(toyName)) {
+            return toyName + " does not exist in catalog.";
+        }
+        if (change.getQuantity() <= 0) {
+            return toyName + "'s desired quantity must be positive.";
+        }
+        return null;
+    }
+
+    /**
+     * Applies every valid line of a best-effort batch on its own, in request order
+     * @param changes The lines of the batch
+     * @param errorMessages The error message of each line, null for the valid lines, set for the lines lacking stock
+     * @param appliedChanges Collects the stock difference of every product changed
+     * @return The ticket to wait on with awaitLogged, 0 if nothing needs to be logged
+     */
+    private long applyEachChange(List<CatalogChangeRequest> changes, String[] errorMessages,
+                                 Map<String, Integer> appliedChanges) {
+        long ticket = 0;
+        long version = sequencer.beginChange();
+        try {
+            for (int i = 0; i < changes.size(); i++) {
+                if (errorMessages[i] != null) {
+                    continue;
+                }
+                CatalogChangeRequest change = changes.get(i);
+                ProductCatalogRecord productRecord = products.get(change.getName());
+                if (change.getIsIncrement()) {
+                    productRecord.addStock(change.getQuantity());
+                } else if (!productRecord.tryRemoveStock(change.getQuantity())) {
+                    errorMessages[i] = change.getName() + "'s stock is less than desired quantity.";
+                    continue;
+                }
+                int difference = change.getIsIncrement() ? change.getQuantity() : -change.getQuantity();
+                appliedChanges.merge(change.getName(), difference, Integer::sum);
+            }
+            if (!appliedChanges.isEmpty()) {
+                ticket = logChange(version, appliedChanges);
+            }
+        } finally {
+            sequencer.endChange();
+        }
+        return ticket;
+    }
+
+    /**
+     * Applies every line of a valid all-or-nothing batch, or none of them if a product lacks stock
+     * @param changes The lines of the batch
+     * @param errorMessages The error message of each line, set for the lines of the product lacking stock
+     * @param appliedChanges Collects the stock difference of every product changed
+     * @return The ticket to wait on with awaitLogged if every line was applied, 0 if nothing needs to be logged,
+     * or -1 if no line was applied
+     */
+    private long applyAllChanges(List<CatalogChangeRequest> changes, String[] errorMessages,
+                                    Map<String, Integer> appliedChanges) {
+        // Combine the changes of each product into a single stock difference
+        Map<String, Integer> stockChanges = new LinkedHashMap<>();
+        for (CatalogChangeRequest change : changes) {
+            int difference = change.getIsIncrement() ? change.getQuantity() : -change.getQuantity();
+            stockChanges.merge(change.getName(), difference, Integer::sum);
+        }
+
+        // Remove the stock of every decreased product in name order, so concurrent batches see the same order
+        List<Map.Entry<String, Integer>> removals = new ArrayList<>();
+        for (Map.Entry<String, Integer> stockChange : stockChanges.entrySet()) {
+            if (stockChange.getValue() < 0) {
+                removals.add(stockChange);
+            }
+        }
+        removals.sort(Map.Entry.comparingByKey(Comparator.naturalOrder()));
+        // The whole batch is one change, so snapshots see either all of it or none of it
+        long ticket;
+        long version = sequencer.beginChange();
+        try {
+            for (int i = 0; i < removals.size(); i++) {
+                Map.Entry<String, Integer> removal = removals.get(i);
+                if (!products.get(removal.getKey()).tryRemoveStock(-removal.getValue())) {
+                    // If any stock would go negative, add back the stock already removed and fail its lines
+                    for (int j = 0; j < i; j++) {
+                        products.get(removals.get(j).getKey()).addStock(-removals.get(j).getValue());
+                    }
+                    for (int line = 0; line < changes.size(); line++) {
+                        if (changes.get(line).getName().equals(removal.getKey())) {
+                            errorMessages[line] = removal.getKey() + "'s stock is less than desired quantity.";
+                        }
+                    }
+                    return -1;
+                }
+            }
+            for (Map.Entry<String, Integer> stockChange : stockChanges.entrySet()) {
+                if (stockChange.getValue() > 0) {
+                    products.get(stockChange.getKey()).addStock(stockChange.getValue());
+                }
+            }
+            ticket = logChange(version, stockChanges);
+        } finally {
+            sequencer.endChange();
+        }
+        appliedChanges.putAll(stockChanges);
+        return ticket;
+    }
+
+    /**
+     * Appends a change to the change log, if enabled. Must be called while the change is being made.
+     * @param version The version of the change
+     * @param stockChanges The stock difference of every product the change changed
+     * @return The ticket to wait on with awaitLogged, 0 if the change log is disabled
+     */
+    private long logChange(long version, Map<String, Integer> stockChanges) {
+        return changeLog == null ? 0 : changeLog.append(version, stockChanges);
+    }
+
+    /**
+     * Waits until a change is logged as required by the change log's sync policy, outside of the change so that
+     * snapshots do not wait on the disk
+     * @param ticket The ticket returned by logChange, 0 or less for no wait
+     * @return True if the change was logged, false if the change log failed or closed before it could be
+     */
+    private boolean awaitLogged(long ticket) {
+        if (ticket <= 0) {
+            return true;
+        }
+        try {
+            changeLog.awaitWritten(ticket);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Unable to log change " + ticket + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Undoes a change that could not be logged, as a change of its own, so that a change reported as failed is
+     * neither kept in the catalog nor persisted into the file later. The change log has failed by then, so no later
+     * change is made, and once every change in flight is undone the stock is back to what the log holds.
+     * @param stockChanges The stock difference of every product the change changed
+     */
+    private void undoChange(Map<String, Integer> stockChanges) {
+        sequencer.beginChange();
+        try {
+            stockChanges.forEach((toyName, difference) -> products.get(toyName).addStock(-difference));
+        } finally {
+            sequencer.endChange();
+        }
+        // The gateways were told of the change, so tell them of the stock restored
+        stockChanges.keySet().forEach(this::invalidateCacheLine);
+    }
+
+    /**
+     * Gives whether the change log, if enabled, has failed, in which case no change may be made
+     * @return True if the change log has failed
+     */
+    private boolean isLogFailed() {
+        return changeLog != null && changeLog.isFailed();
+    }
+
+    /**
+     * Persists the records changed since the last write to the DB/File, or nothing if no record changed.
+     * Under PERSIST_REWRITE the whole file is replaced through a temporary file and a rename, so a crash never
+     * leaves a partly written file. Under PERSIST_POSITIONAL only the rows of the changed records are overwritten,
+     * so the bytes written grow with the number of records changed rather than with the size of the catalog.
+     * @throws IOException in case of any IO issues, in which case the changed records are written next time
      */
     public void persistToFile() throws IOException {
-        List<ProductCatalogRecord> list = new ArrayList<>(products.values());
-        productCatalogFileHandler.writeObjectValuesToCSV(list, catalogRecordObjectFactory, false);
+        persistLock.lock();
+        try {
+            // Clear the dirty marks before the snapshot, so a change made meanwhile is written now or next time
+            List<String> dirtyNames = new ArrayList<>();
+            products.forEach((toyName, productRecord) -> {
+                if (productRecord.clearDirty()) {
+                    dirtyNames.add(toyName);
+                }
+            });
+            if (dirtyNames.isEmpty()) {
+                return;
+            }
+
+            // Write a consistent snapshot rather than records that buys keep changing during the write
+            CatalogSnapshot snapshot = snapshot();
+            try {
+                if (PERSIST_POSITIONAL.equals(persistMode)) {
+                    writeRows(snapshot, dirtyNames);
+                } else {
+                    rewriteFile(snapshot);
+                }
+            } catch (IOException e) {
+                dirtyNames.forEach(toyName -> products.get(toyName).markDirty());
+                throw e;
+            }
+        } finally {
+            persistLock.unlock();
+        }
     }
 
+    /**
+     * Overwrites the rows of the changed records, or rewrites the whole file if a row outgrew the row width
+     * @param snapshot The snapshot to write from
+     * @param dirtyNames The names of the changed records
+     * @throws IOException
+     */
+    private void writeRows(CatalogSnapshot snapshot, List<String> dirtyNames) throws IOException {
+        Map<String, CatalogProduct> snapshotProducts = new HashMap<>();
+        snapshot.getProducts().forEach(product -> snapshotProducts.put(product.getName(), product));
+        Map<Integer, ProductCatalogRecord> rows = new HashMap<>();
+        for (String toyName : dirtyNames) {
+            rows.put(rowIndexes.get(toyName), toRecord(snapshotProducts.get(toyName)));
+        }
+        if (!productCatalogFileHandler.writeObjectValuesAtRows(rows, catalogRecordObjectFactory, rowWidth)) {
+            rewriteFile(snapshot);
+        }
+    }
+
+    /**
+     * Replaces the whole file with a snapshot, with rows of the same width under PERSIST_POSITIONAL
+     * @param snapshot The snapshot to write
+     * @throws IOException
+     */
+    private void rewriteFile(CatalogSnapshot snapshot) throws IOException {
+        // Records are written in file order, so each keeps its row
+        List<ProductCatalogRecord> list = new ArrayList<>(products.size());
+        for (CatalogProduct product : snapshot.getProducts()) {
+            list.add(toRecord(product));
+        }
+        int width = 0;
+        if (PERSIST_POSITIONAL.equals(persistMode)) {
+            // Leave room for the stock to grow to any integer
+            for (ProductCatalogRecord productRecord : list) {
+                width = Math.max(width, productRecord.getName().getBytes(StandardCharsets.UTF_8).length
+                        + String.valueOf(productRecord.getPrice()).length() + String.valueOf(Integer.MIN_VALUE).length() + 3);
+            }
+        }
+        productCatalogFileHandler.replaceObjectValuesInCSV(list, catalogRecordObjectFactory, width);
+        rowWidth = width;
+    }
+
+    /**
+     * Converts a product of a snapshot to a record to be written into the file
+     * @param product The product
+     * @return The record
+     */
+    private static ProductCatalogRecord toRecord(CatalogProduct product) {
+        ProductCatalogRecord productRecord = new ProductCatalogRecord();
+        productRecord.setName(product.getName());
+        productRecord.setStock(product.getQuantity());
+        productRecord.setPrice(product.getPrice());
+        return productRecord;
+    }
+
+    /**
+     * Notifies the gateways that a product's stock changed, over the invalidation and replication streams
+     * and, if enabled, with an HTTP invalidation request to the configured gateway
+     * @param toyName The product name
+     */
     private void invalidateCacheLine(String toyName) {
+        // Push the change to subscribed gateways
+        changePublisher.publish(toyName);
+
         if(!isCacheEnabled) {
             return;
         }
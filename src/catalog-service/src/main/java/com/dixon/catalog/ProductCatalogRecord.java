@@ -1,14 +1,20 @@
 package com.dixon.catalog;
 
 import com.dixon.common.CSVFileHandler;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * ProductCatalogRecord is the products inventory to be stored/read from the DB
+ * ProductCatalogRecord is the products inventory to be stored/read from the DB.
+ * The stock is held in an AtomicInteger of its own, so that buys and restocks of different products never contend
+ * and the stock can be read without a lock. The name and price are only set while the catalog is loaded.
+ * A record is marked dirty whenever its stock changes, so that only changed records need to be persisted.
  */
 @Getter
 @Setter
@@ -22,13 +28,82 @@ public class ProductCatalogRecord {
     /**
      * Quantity of the product in the inventory
      */
-    private Integer stock;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private final AtomicInteger stock = new AtomicInteger();
+
+    /**
+     * Whether the stock changed since the record was last persisted
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private final AtomicBoolean dirty = new AtomicBoolean();
 
     /**
      * Price of the product
      */
     private Double price;
 
+    /**
+     * Gets the quantity of the product in the inventory
+     * @return The stock
+     */
+    public Integer getStock() {
+        return stock.get();
+    }
+
+    /**
+     * Sets the quantity of the product in the inventory
+     * @param stock The stock
+     */
+    public void setStock(Integer stock) {
+        this.stock.set(stock);
+    }
+
+    /**
+     * Adds to the quantity of the product in the inventory
+     * @param quantity The quantity added
+     */
+    public void addStock(int quantity) {
+        stock.addAndGet(quantity);
+        dirty.set(true);
+    }
+
+    /**
+     * Removes a quantity of the product from the inventory if enough is in stock. The stock is compared and set
+     * in a single atomic step, so concurrent buys can never take more than is in stock between them.
+     * @param quantity The quantity removed
+     * @return True if the quantity was removed, false if less than the quantity is in stock
+     */
+    public boolean tryRemoveStock(int quantity) {
+        while (true) {
+            int current = stock.get();
+            if (current < quantity) {
+                return false;
+            }
+            if (stock.compareAndSet(current, current - quantity)) {
+                dirty.set(true);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Marks the record as changed since it was last persisted
+     */
+    public void markDirty() {
+        dirty.set(true);
+    }
+
+    /**
+     * Clears the dirty mark before the record is persisted. A change made after the mark is cleared marks the record
+     * again, so it is persisted the next time if the write misses it.
+     * @return True if the record was marked dirty
+     */
+    public boolean clearDirty() {
+        return dirty.getAndSet(false);
+    }
+
     /**
      * Functional interface implementation of the ProductCatalogRecord object factory
      */
@@ -0,0 +1,88 @@
+package com.dixon.catalog;
+
+import com.dixon.CatalogBatchChangeRequest;
+import com.dixon.CatalogBatchQueryRequest;
+import com.dixon.CatalogProduct;
+import com.dixon.CatalogQueryResponse;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CatalogSnapshotTest {
+    public static void main(String args[]) throws Exception {
+        // Carts move stock between two toys, so any read showing part of a cart sees a different total
+        System.out.println("TESTING SNAPSHOTS AND BATCH QUERIES ARE NEVER TORN:");
+        ProductCatalog catalog = ProductCatalogTest.createCatalog("Tux,10000,25.99", "Whale,10000,35.99");
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicLong snapshots = new AtomicLong();
+        AtomicLong tornSnapshots = new AtomicLong();
+        AtomicLong batches = new AtomicLong();
+        AtomicLong tornBatches = new AtomicLong();
+        AtomicLong versionsGoingBack = new AtomicLong();
+
+        Thread writers = new Thread(() -> {
+            try {
+                ProductCatalogTest.runThreads(4, () -> {
+                    for (int i = 0; i < 20000; i++) {
+                        String from = i % 2 == 0 ? "Tux" : "Whale";
+                        String to = i % 2 == 0 ? "Whale" : "Tux";
+                        catalog.changeItems(CatalogBatchChangeRequest.newBuilder()
+                                .setBestEffort(i % 3 == 0)
+                                .addChanges(ProductCatalogTest.change(from, 1 + i / 2 % 4, false))
+                                .addChanges(ProductCatalogTest.change(to, 1 + i / 2 % 4, true))
+                                .build());
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writing.set(false);
+        });
+        writers.start();
+
+        ProductCatalogTest.runThreads(2, () -> {
+            long lastVersion = 0;
+            CatalogBatchQueryRequest batchQuery = CatalogBatchQueryRequest.newBuilder()
+                    .addNames("Tux")
+                    .addNames("Whale")
+                    .build();
+            while (writing.get()) {
+                CatalogSnapshot snapshot = catalog.snapshot();
+                int total = 0;
+                for (CatalogProduct product : snapshot.getProducts()) {
+                    total += product.getQuantity();
+                }
+                snapshots.incrementAndGet();
+                if (total != 20000) {
+                    tornSnapshots.incrementAndGet();
+                }
+                if (snapshot.getVersion() < lastVersion) {
+                    versionsGoingBack.incrementAndGet();
+                }
+                lastVersion = snapshot.getVersion();
+
+                total = 0;
+                for (CatalogQueryResponse response : catalog.queryBatch(batchQuery).getResponsesList()) {
+                    total += response.getQuantity();
+                }
+                batches.incrementAndGet();
+                if (total != 20000) {
+                    tornBatches.incrementAndGet();
+                }
+            }
+        });
+        writers.join();
+
+        System.out.println(snapshots.get() + " snapshots, torn: " + tornSnapshots.get()
+                + ", versions going back: " + versionsGoingBack.get());
+        System.out.println(batches.get() + " batch queries, torn: " + tornBatches.get());
+        System.out.println("Reads that paused the carts: " + catalog.getReadPauses());
+        // Changes backed out while a reader paused them also take a version, so the version may exceed the carts
+        CatalogSnapshot last = catalog.snapshot();
+        System.out.println("Final version " + last.getVersion() + " after 80000 carts, final stock "
+                + last.getProducts().stream().mapToInt(CatalogProduct::getQuantity).sum() + " of 20000");
+
+        // The catalog's schedulers keep the JVM alive
+        System.exit(0);
+    }
+}
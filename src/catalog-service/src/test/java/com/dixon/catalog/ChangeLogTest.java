@@ -0,0 +1,184 @@
+package com.dixon.catalog;
+
+import com.dixon.CatalogProduct;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+public class ChangeLogTest {
+    public static void main(String args[]) throws Exception {
+        Path directory = Files.createTempDirectory("change-log-test");
+
+        // A crash leaves the last change cut short, which recovery ignores
+        System.out.println("TESTING RECOVERY AFTER A CRASH:");
+        String logPath = directory.resolve("crash.log").toString();
+        TestCatalog catalog = new TestCatalog(10);
+        ChangeLog changeLog = new ChangeLog(logPath, ChangeLog.SYNC_ALWAYS, 100, 0);
+        changeLog.start(catalog::snapshot);
+        catalog.change(changeLog, "Tux", -2);
+        catalog.change(changeLog, "Whale", 3);
+        changeLog.awaitWritten(catalog.change(changeLog, "Tux", -1));
+        Files.write(Paths.get(logPath), "4,Tux,-".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        TestCatalog recovered = new TestCatalog(0);
+        long version = new ChangeLog(logPath, ChangeLog.SYNC_ALWAYS, 100, 0).recover(recovered.products);
+        System.out.println("Expected " + catalog + " at version 3, recovered " + recovered + " at version " + version);
+        System.out.println();
+
+        // While a compaction is cut short, the changes are split between the log moved aside and the new log
+        System.out.println("TESTING RECOVERY ACROSS A ROLL:");
+        logPath = directory.resolve("roll.log").toString();
+        catalog = new TestCatalog(100);
+        changeLog = new ChangeLog(logPath, ChangeLog.SYNC_ALWAYS, 100, 64);
+        changeLog.start(catalog::snapshot);
+        catalog.blockSnapshots();
+        long ticket = 0;
+        for (int i = 0; i < 20; i++) {
+            ticket = catalog.change(changeLog, i % 2 == 0 ? "Tux" : "Whale", -1);
+        }
+        changeLog.awaitWritten(ticket);
+        // The writer rolls the log after acknowledging the changes, so wait until the new log is started
+        for (int i = 0; i < 50 && !(Files.exists(Paths.get(logPath + ".old")) && Files.exists(Paths.get(logPath))); i++) {
+            Thread.sleep(10);
+        }
+        Files.write(Paths.get(logPath), "21,Whale,-1".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        System.out.println("Log moved aside: " + Files.exists(Paths.get(logPath + ".old")));
+        recovered = new TestCatalog(0);
+        version = new ChangeLog(logPath, ChangeLog.SYNC_ALWAYS, 100, 0).recover(recovered.products);
+        System.out.println("Expected " + catalog + " at version 20, recovered " + recovered + " at version " + version);
+
+        // Once the compaction is done, the snapshot and the new log hold the same changes
+        catalog.unblockSnapshots();
+        for (int i = 0; i < 50 && Files.exists(Paths.get(logPath + ".old")); i++) {
+            Thread.sleep(10);
+        }
+        System.out.println("Log moved aside: " + Files.exists(Paths.get(logPath + ".old")));
+        recovered = new TestCatalog(0);
+        version = new ChangeLog(logPath, ChangeLog.SYNC_ALWAYS, 100, 0).recover(recovered.products);
+        System.out.println("Expected " + catalog + " at version 20, recovered " + recovered + " at version " + version);
+        changeLog.close();
+        System.out.println();
+
+        // A failed write fails the change waiting on it and every later change
+        System.out.println("TESTING A FAILED WRITE:");
+        if (!Files.exists(Paths.get("/dev/full"))) {
+            System.out.println("Skipped, /dev/full is missing");
+            return;
+        }
+        logPath = directory.resolve("full.log").toString();
+        catalog = new TestCatalog(10);
+        catalog.change(null, "Tux", -4);
+        Files.createSymbolicLink(Paths.get(logPath), Paths.get("/dev/full"));
+        changeLog = new ChangeLog(logPath, ChangeLog.SYNC_ALWAYS, 100, 0);
+        changeLog.start(catalog::snapshot);
+        for (int i = 0; i < 2; i++) {
+            try {
+                changeLog.awaitWritten(catalog.change(changeLog, "Whale", -1));
+                System.out.println("Change acknowledged although it was not written");
+            } catch (IOException e) {
+                System.out.println("Change failed: " + e.getMessage() + ", log failed: " + changeLog.isFailed());
+            }
+        }
+
+        // Only the changes made before the log failed were acknowledged, and the snapshot holds them
+        Files.delete(Paths.get(logPath));
+        recovered = new TestCatalog(0);
+        version = new ChangeLog(logPath, ChangeLog.SYNC_ALWAYS, 100, 0).recover(recovered.products);
+        System.out.println("Expected {Tux=6, Whale=10} at version 1, recovered " + recovered + " at version " + version);
+    }
+
+    /**
+     * Products and version of a catalog whose changes are logged, standing in for the ProductCatalog
+     */
+    private static class TestCatalog {
+        /**
+         * The products by name
+         */
+        private final Map<String, ProductCatalogRecord> products = new LinkedHashMap<>();
+
+        /**
+         * Version of the last change
+         */
+        private long version;
+
+        /**
+         * Released to let snapshots be taken, while blocked
+         */
+        private volatile CountDownLatch snapshotsBlocked = new CountDownLatch(0);
+
+        /**
+         * Instantiates a TestCatalog
+         * @param stock The stock of every product
+         */
+        private TestCatalog(int stock) {
+            for (String toyName : new String[]{"Tux", "Whale"}) {
+                ProductCatalogRecord productRecord = new ProductCatalogRecord();
+                productRecord.setName(toyName);
+                productRecord.setStock(stock);
+                products.put(toyName, productRecord);
+            }
+        }
+
+        /**
+         * Changes the stock of a product and appends the change to a log
+         * @param changeLog The log, null to not log the change
+         * @param toyName The product
+         * @param difference The stock difference
+         * @return The ticket of the change
+         */
+        private synchronized long change(ChangeLog changeLog, String toyName, int difference) {
+            products.get(toyName).addStock(difference);
+            version++;
+            return changeLog == null ? 0 : changeLog.append(version, Map.of(toyName, difference));
+        }
+
+        /**
+         * Takes a snapshot of the products, once snapshots are no longer blocked
+         * @return The snapshot
+         */
+        private CatalogSnapshot snapshot() {
+            try {
+                snapshotsBlocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                List<CatalogProduct> snapshotProducts = new ArrayList<>();
+                products.forEach((toyName, productRecord) -> snapshotProducts.add(CatalogProduct.newBuilder()
+                        .setName(toyName)
+                        .setQuantity(productRecord.getStock())
+                        .build()));
+                return new CatalogSnapshot(version, snapshotProducts);
+            }
+        }
+
+        /**
+         * Makes snapshots wait until unblockSnapshots is called
+         */
+        private void blockSnapshots() {
+            snapshotsBlocked = new CountDownLatch(1);
+        }
+
+        /**
+         * Lets the snapshots waiting be taken
+         */
+        private void unblockSnapshots() {
+            snapshotsBlocked.countDown();
+        }
+
+        @Override
+        public synchronized String toString() {
+            Map<String, Integer> stock = new LinkedHashMap<>();
+            products.forEach((toyName, productRecord) -> stock.put(toyName, productRecord.getStock()));
+            return stock.toString();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.dixon.catalog;
+
+import com.dixon.CatalogBatchChangeRequest;
+import com.dixon.CatalogBatchChangeResponse;
+import com.dixon.CatalogChangeRequest;
+import com.dixon.CatalogChangeResponse;
+import com.dixon.CatalogProduct;
+import com.dixon.common.Address;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class ProductCatalogTest {
+    public static void main(String args[]) throws Exception {
+        // Many threads buying the same product never buy more than its stock
+        System.out.println("TESTING CONCURRENT OVERSELL ATTEMPTS:");
+        ProductCatalog catalog = createCatalog("Tux,1000,25.99");
+        AtomicIntegerArray bought = new AtomicIntegerArray(1);
+        runThreads(16, () -> {
+            while (catalog.changeItem(change("Tux", 3, false)).getSuccess()) {
+                bought.addAndGet(0, 3);
+            }
+        });
+        int stock = stockOf(catalog, "Tux");
+        System.out.println("Bought " + bought.get(0) + " of 1000, stock left " + stock + ", consistent: "
+                + (bought.get(0) + stock == 1000 && stock >= 0 && stock < 3));
+        System.out.println();
+
+        // Carts contending for the same products are applied whole or not at all
+        System.out.println("TESTING ALL-OR-NOTHING CARTS UNDER CONTENTION:");
+        String[] toyNames = new String[]{"Tux", "Whale", "Fox"};
+        ProductCatalog cartCatalog = createCatalog("Tux,8000,25.99", "Whale,8000,35.99", "Fox,8000,15.99");
+        AtomicIntegerArray applied = new AtomicIntegerArray(toyNames.length);
+        AtomicIntegerArray carts = new AtomicIntegerArray(2);
+        runThreads(16, () -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < 500; i++) {
+                // Remove from two or three products, sometimes listing a product twice, and add to one
+                CatalogBatchChangeRequest.Builder cart = CatalogBatchChangeRequest.newBuilder();
+                int[] differences = new int[toyNames.length];
+                for (int line = 0; line < 2 + random.nextInt(2); line++) {
+                    int product = random.nextInt(toyNames.length);
+                    int quantity = 1 + random.nextInt(5);
+                    cart.addChanges(change(toyNames[product], quantity, false));
+                    differences[product] -= quantity;
+                }
+                int restocked = random.nextInt(toyNames.length);
+                cart.addChanges(change(toyNames[restocked], 1, true));
+                differences[restocked] += 1;
+
+                CatalogBatchChangeResponse response = cartCatalog.changeItems(cart.build());
+                carts.incrementAndGet(response.getSuccess() ? 0 : 1);
+                if (response.getSuccess()) {
+                    for (int product = 0; product < toyNames.length; product++) {
+                        applied.addAndGet(product, differences[product]);
+                    }
+                }
+            }
+        });
+        boolean consistent = true;
+        for (int product = 0; product < toyNames.length; product++) {
+            int productStock = stockOf(cartCatalog, toyNames[product]);
+            System.out.println(toyNames[product] + ": expected " + (8000 + applied.get(product)) + ", stock " + productStock);
+            consistent &= productStock == 8000 + applied.get(product) && productStock >= 0;
+        }
+        System.out.println(carts.get(0) + " carts applied, " + carts.get(1) + " rolled back, consistent: " + consistent);
+        System.out.println();
+
+        // A failed cart leaves the stock as it was, even when its first products had enough stock
+        System.out.println("TESTING ROLLBACK OF A PARTLY AVAILABLE CART:");
+        ProductCatalog rollbackCatalog = createCatalog("Tux,10,25.99", "Whale,10,35.99");
+        CatalogBatchChangeResponse response = rollbackCatalog.changeItems(CatalogBatchChangeRequest.newBuilder()
+                .addChanges(change("Tux", 4, false))
+                .addChanges(change("Whale", 11, false))
+                .build());
+        System.out.println("Success: " + response.getSuccess() + ", error: " + response.getErrorMessage());
+        System.out.println("Tux stock " + stockOf(rollbackCatalog, "Tux") + ", Whale stock "
+                + stockOf(rollbackCatalog, "Whale"));
+        System.out.println();
+
+        // A buy or cart whose change cannot be logged fails and leaves the stock, and the file written later, unchanged
+        System.out.println("TESTING CHANGES THAT CANNOT BE LOGGED:");
+        if (!Files.exists(Paths.get("/dev/full"))) {
+            System.out.println("Skipped, /dev/full is missing");
+            System.exit(0);
+        }
+        Path directory = Files.createTempDirectory("product-catalog-test");
+        for (boolean cart : new boolean[]{false, true}) {
+            Path logPath = directory.resolve(cart ? "cart.log" : "buy.log");
+            Files.createSymbolicLink(logPath, Paths.get("/dev/full"));
+            Path file = directory.resolve(cart ? "cart.csv" : "buy.csv");
+            // The log has nothing to recover, and reading /dev/full would never end
+            ChangeLog failingLog = new ChangeLog(logPath.toString(), ChangeLog.SYNC_ALWAYS, 100, 0) {
+                @Override
+                public long recover(Map<String, ProductCatalogRecord> products) {
+                    return 0;
+                }
+            };
+            ProductCatalog failingCatalog = createCatalog(file, failingLog, "Tux,10,25.99", "Whale,10,35.99");
+
+            // The change is applied before its write fails
+            if (cart) {
+                response = failingCatalog.changeItems(CatalogBatchChangeRequest.newBuilder()
+                        .addChanges(change("Whale", 2, false))
+                        .addChanges(change("Tux", 1, true))
+                        .build());
+                System.out.println("Cart success: " + response.getSuccess() + ", error: " + response.getErrorMessage());
+            } else {
+                CatalogChangeResponse buy = failingCatalog.changeItem(change("Tux", 4, false));
+                System.out.println("Buy success: " + buy.getSuccess() + ", error: " + buy.getErrorMessage());
+            }
+            failingCatalog.persistToFile();
+            System.out.println("Tux stock " + stockOf(failingCatalog, "Tux") + ", Whale stock "
+                    + stockOf(failingCatalog, "Whale") + ", file " + Files.readAllLines(file));
+        }
+
+        // The catalog's schedulers keep the JVM alive
+        System.exit(0);
+    }
+
+    /**
+     * Creates a catalog of the given rows, which is not restocked or written to its file while tested
+     * @param rows The rows of the inventory file, each of the form name,stock,price, with a stock of at least 5
+     * @return The catalog
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    static ProductCatalog createCatalog(String... rows) throws IOException, InterruptedException {
+        return createCatalog(Files.createTempFile("inventory", ".csv"), null, rows);
+    }
+
+    /**
+     * Creates a catalog of the given rows in a file, which is not restocked or written to its file while tested
+     * @param file The inventory file
+     * @param changeLog The change log of the catalog, null for none
+     * @param rows The rows of the inventory file, each of the form name,stock,price, with a stock of at least 5
+     * @return The catalog
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    static ProductCatalog createCatalog(Path file, ChangeLog changeLog, String... rows) throws IOException, InterruptedException {
+        Files.write(file, List.of(rows));
+        ProductCatalog catalog = new ProductCatalog(file.toString(), 3600, ProductCatalog.PERSIST_REWRITE, 3600,
+                Address.builder().host("localhost").port(1764).build(), false, new ChangePublisher(100, false), changeLog);
+        // Let the first restocking, which runs at once, pass while every product is in stock
+        Thread.sleep(500);
+        return catalog;
+    }
+
+    /**
+     * Builds a change request
+     * @param toyName The product
+     * @param quantity The quantity
+     * @param isIncrement Whether the stock is increased
+     * @return The change request
+     */
+    static CatalogChangeRequest change(String toyName, int quantity, boolean isIncrement) {
+        return CatalogChangeRequest.newBuilder().setName(toyName).setQuantity(quantity).setIsIncrement(isIncrement).build();
+    }
+
+    /**
+     * Gives the stock of a product from a snapshot of the catalog
+     * @param catalog The catalog
+     * @param toyName The product
+     * @return The stock
+     */
+    static int stockOf(ProductCatalog catalog, String toyName) {
+        for (CatalogProduct product : catalog.readAllProducts()) {
+            if (product.getName().equals(toyName)) {
+                return product.getQuantity();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Runs a task on several threads at once and waits for all of them to finish
+     * @param threads Number of threads
+     * @param task The task
+     * @throws InterruptedException
+     */
+    static void runThreads(int threads, Runnable task) throws InterruptedException {
+        List<Thread> running = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(task);
+            thread.start();
+            running.add(thread);
+        }
+        for (Thread thread : running) {
+            thread.join();
+        }
+    }
+}
@@ -4,6 +4,14 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 /**
@@ -70,6 +78,107 @@ import java.util.*;
         }
     }
 
+    /**
+     * Replaces the csv file with a list of objects by writing a temporary file and renaming it over the csv file,
+     * so that a crash leaves either the old or the new file rather than a partly written one
+     * @param objects List of objects to write
+     * @param factory Functional interface to create object instances
+     * @param rowWidth Width in bytes, including the line break, every row is padded to with trailing spaces,
+     *                 so that rows can later be overwritten in place, or 0 for no padding
+     * @throws IOException if the file cannot be written or a row is wider than rowWidth
+     */
+    public void replaceObjectValuesInCSV(List<T> objects, ObjectFactory<T> factory, int rowWidth) throws IOException {
+        Path path = Paths.get(filePath);
+        Path tempPath = Paths.get(filePath + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            for (T object : objects) {
+                byte[] bytes = convertObjectToRowBytes(object, factory, rowWidth);
+                writeFully(channel, bytes, position);
+                position += bytes.length;
+            }
+            channel.force(true);
+        }
+        Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncParentDirectory(path);
+    }
+
+    /**
+     * Flushes the directory holding a file to disk, so that a rename or creation of the file survives a crash;
+     * syncing the file itself only makes its contents durable, not its directory entry
+     * @param path The file whose directory is synced
+     * @throws IOException
+     */
+    public static void syncParentDirectory(Path path) throws IOException {
+        try (FileChannel directory = FileChannel.open(path.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    /**
+     * Overwrites rows of a csv file written by replaceObjectValuesInCSV with a row width, leaving the other rows
+     * untouched, so that the bytes written grow with the number of rows changed rather than with the file size
+     * @param rows Maps row indexes to the objects to write on them
+     * @param factory Functional interface to create object instances
+     * @param rowWidth The width in bytes of every row in the file
+     * @return True if the rows were written, false if a row did not fit the row width, in which case none is written
+     * @throws IOException
+     */
+    public boolean writeObjectValuesAtRows(Map<Integer, T> rows, ObjectFactory<T> factory, int rowWidth) throws IOException {
+        // Convert every row before writing any, so no row is written if one does not fit
+        Map<Integer, byte[]> rowBytes = new TreeMap<>();
+        for (Map.Entry<Integer, T> row : rows.entrySet()) {
+            byte[] bytes = convertObjectToRowBytes(row.getValue(), factory, 0);
+            if (bytes.length > rowWidth) {
+                return false;
+            }
+            rowBytes.put(row.getKey(), convertObjectToRowBytes(row.getValue(), factory, rowWidth));
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.WRITE)) {
+            for (Map.Entry<Integer, byte[]> row : rowBytes.entrySet()) {
+                writeFully(channel, row.getValue(), (long) row.getKey() * rowWidth);
+            }
+            channel.force(false);
+        }
+        return true;
+    }
+
+    /**
+     * Converts an object to the bytes of a csv row ending with a line break
+     * @param object The object
+     * @param factory Functional interface to create object instances
+     * @param rowWidth Width in bytes the row is padded to with trailing spaces, or 0 for no padding
+     * @return The bytes of the row
+     * @throws IOException if the row is wider than rowWidth
+     */
+    private byte[] convertObjectToRowBytes(T object, ObjectFactory<T> factory, int rowWidth) throws IOException {
+        StringBuilder row = new StringBuilder(convertObjectToCSVRow(object, factory));
+        int length = row.toString().getBytes(StandardCharsets.UTF_8).length + NEW_LINE_CHAR.length();
+        if (rowWidth > 0 && length > rowWidth) {
+            throw new IOException("Row wider than " + rowWidth + " bytes");
+        }
+        for (int i = length; i < rowWidth; i++) {
+            row.append(' ');
+        }
+        row.append(NEW_LINE_CHAR);
+        return row.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes bytes to a file channel at a position
+     * @param channel The file channel
+     * @param bytes The bytes
+     * @param position The position in the file
+     * @throws IOException
+     */
+    private static void writeFully(FileChannel channel, byte[] bytes, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
     /**
      * Converts an object to a comma separated value string
      * @param object The object
@@ -113,7 +222,8 @@ import java.util.*;
             if (index >= 0 && index < readValues.length) {
                 // Call setter method of the object using reflection
                 try {
-                    factory.setObjectProperty(object, paramName, readValues[index]);
+                    // Trim the padding of rows written with a row width
+                    factory.setObjectProperty(object, paramName, readValues[index].trim());
                 } catch (Exception e) {
                     e.printStackTrace(); // Handle reflection errors here
                 }
@@ -0,0 +1,18 @@
+package com.dixon.common;
+import lombok.Builder;
+import lombok.extern.jackson.Jacksonized;
+
+import java.util.List;
+
+/**
+ * Cart of several orders to be sent to server and placed together
+ */
+@lombok.Data
+@Builder
+@Jacksonized
+public class Cart {
+    /**
+     * The cart lines, each a product name and desired order quantity
+     */
+    private List<Order> lines;
+}
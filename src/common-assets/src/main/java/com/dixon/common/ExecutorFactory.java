@@ -0,0 +1,91 @@
+package com.dixon.common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors the services use to handle requests
+ */
+public class ExecutorFactory {
+    /**
+     * Executor mode running each request on a thread of a dynamic pool
+     */
+    public static final String POOL_MODE = "pool";
+
+    /**
+     * Executor mode running each request on its own virtual thread
+     */
+    public static final String VIRTUAL_MODE = "virtual";
+
+    /**
+     * Creates a request executor. In virtual mode each request runs on a new virtual thread, so blocking calls
+     * do not limit the number of requests in flight. Virtual threads require Java 21, so the executor is looked up
+     * reflectively and the dynamic pool is used instead when running on an older runtime.
+     * @param mode The executor mode, either "pool" or "virtual"
+     * @param maxThreads Maximum number of threads in the dynamic pool
+     * @return The request executor
+     */
+    public static ExecutorService create(String mode, int maxThreads) {
+        return create(mode, maxThreads, 0);
+    }
+
+    /**
+     * Creates a request executor, as above, whose dynamic pool queues up to the given number of requests while every
+     * thread is busy instead of rejecting them. A request the pool rejects never reaches a handler, so its connection
+     * is dropped without an answer; a queue lets handlers that answer quickly, such as one shedding load, drain the burst.
+     * The pool then keeps its threads until they are idle for a minute rather than starting one per request.
+     * @param mode The executor mode, either "pool" or "virtual"
+     * @param maxThreads Maximum number of threads in the dynamic pool
+     * @param queueCapacity Maximum number of requests queued in the dynamic pool, 0 to hand each request to a thread
+     * @return The request executor
+     */
+    public static ExecutorService create(String mode, int maxThreads, int queueCapacity) {
+        if (mode.equals(VIRTUAL_MODE)) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads are not supported by this runtime, using a dynamic pool of "
+                        + maxThreads + " threads");
+            }
+        }
+        if (queueCapacity > 0) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads,
+                    60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueCapacity));
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+        return new ThreadPoolExecutor(0, maxThreads,
+                60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+    }
+
+    /**
+     * Creates a bounded lane of threads dedicated to one kind of request, so that it does not compete for threads with
+     * other kinds. The lane queues up to the given number of requests while every thread is busy and rejects the rest.
+     * Its threads run at the given priority, which the operating system scheduler may take as a hint, and are kept
+     * until they are idle for a minute.
+     * @param name The name of the lane, used to name its threads
+     * @param threads Number of threads in the lane
+     * @param priority Priority of the lane's threads, between Thread.MIN_PRIORITY and Thread.MAX_PRIORITY
+     * @param queueCapacity Maximum number of requests queued in the lane
+     * @return The lane executor
+     */
+    public static ThreadPoolExecutor createLane(String name, int threads, int priority, int queueCapacity) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(Math.max(1, queueCapacity)), runnable -> {
+                    Thread thread = new Thread(runnable, name + "-lane-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(priority);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,242 @@
+package com.dixon.gateway;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of requests of one kind in flight, sizing the limit from the latency of the requests.
+ * Latency is averaged over short windows and compared to a slowly moving baseline. While the window latency stays
+ * within a tolerance of the baseline, the backend is keeping up and the limit grows. As requests start queueing in the
+ * backend, the window latency rises above the baseline and the limit shrinks in proportion to the rise.
+ * A window with a request that failed with a server error shrinks the limit as much as the largest rise does.
+ * Requests beyond the limit are rejected right away, so that an overloaded backend only sees as much work as it can
+ * finish quickly and the rest of the clients are told to come back later instead of waiting.
+ */
+public class AdaptiveLimiter {
+    /**
+     * Default maximum limit, used when requests do not hold a thread while in flight
+     */
+    public static final int DEFAULT_MAX_LIMIT = 1000;
+
+    /**
+     * Limit before any latency is measured
+     */
+    private static final int INITIAL_LIMIT = 20;
+
+    /**
+     * Smallest limit, so that latency keeps being measured even when the backend is very slow
+     */
+    private static final int MIN_LIMIT = 1;
+
+    /**
+     * Minimum length of a measurement window in nanoseconds
+     */
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Minimum number of requests in a measurement window
+     */
+    private static final int MIN_WINDOW_SAMPLES = 10;
+
+    /**
+     * Number of windows the baseline latency averages over
+     */
+    private static final double BASELINE_WINDOWS = 60;
+
+    /**
+     * Ratio of the window latency to the baseline latency tolerated before the limit shrinks
+     */
+    private static final double TOLERANCE = 1.5;
+
+    /**
+     * Fraction of the computed limit applied each window, so the limit does not swing with every window
+     */
+    private static final double SMOOTHING = 0.2;
+
+    /**
+     * Name of the kind of requests limited, used in the statistics
+     */
+    private final String name;
+
+    /**
+     * Largest limit
+     */
+    private final int maxLimit;
+
+    /**
+     * Number of requests in flight
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Current limit, fractional so that small adjustments accumulate
+     */
+    private volatile double limit;
+
+    /**
+     * Lock guarding the measurement window and the baseline
+     */
+    private final ReentrantLock windowLock = new ReentrantLock();
+
+    /**
+     * System.nanoTime() value at which the current window started
+     */
+    private long windowStartNanos = System.nanoTime();
+
+    /**
+     * Total latency in nanoseconds of the requests finished in the current window
+     */
+    private long windowLatencyNanos;
+
+    /**
+     * Number of requests finished in the current window
+     */
+    private int windowSamples;
+
+    /**
+     * Largest number of requests in flight seen in the current window
+     */
+    private int windowMaxInFlight;
+
+    /**
+     * Whether a request failed with a server error in the current window
+     */
+    private boolean windowFailed;
+
+    /**
+     * Moving average of the window latency in nanoseconds, 0 until the first window ends
+     */
+    private double baselineLatencyNanos;
+
+    /**
+     * Average latency in nanoseconds of the last window
+     */
+    private volatile double lastLatencyNanos;
+
+    /**
+     * Number of requests admitted
+     */
+    private final LongAdder admitted = new LongAdder();
+
+    /**
+     * Number of requests rejected
+     */
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Instantiates an AdaptiveLimiter
+     * @param name Name of the kind of requests limited
+     * @param maxLimit Largest limit
+     */
+    public AdaptiveLimiter(String name, int maxLimit) {
+        this.name = name;
+        this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+        this.limit = Math.min(INITIAL_LIMIT, this.maxLimit);
+    }
+
+    /**
+     * Gives the name of the kind of requests limited
+     * @return The name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Admits a request if fewer requests than the limit are in flight
+     * @return True if the request is admitted and must be released once answered
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                admitted.increment();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases an admitted request, recording its latency, and resizes the limit at the end of a window
+     * @param startNanos System.nanoTime() value from which the latency of the request is measured
+     * @param failed Whether the request failed with a server error
+     */
+    public void release(long startNanos, boolean failed) {
+        long now = System.nanoTime();
+        int current = inFlight.getAndDecrement();
+
+        windowLock.lock();
+        try {
+            windowLatencyNanos += now - startNanos;
+            windowSamples++;
+            windowMaxInFlight = Math.max(windowMaxInFlight, current);
+            windowFailed |= failed;
+            if (now - windowStartNanos >= WINDOW_NANOS && windowSamples >= MIN_WINDOW_SAMPLES) {
+                resize();
+                windowStartNanos = now;
+                windowLatencyNanos = 0;
+                windowSamples = 0;
+                windowMaxInFlight = 0;
+                windowFailed = false;
+            }
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    /**
+     * Gives the limit, the requests in flight, the admission counts and the latencies the limit is sized from
+     * @return Map of the statistic names to their values
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("limit", (long) limit);
+        stats.put("inFlight", (long) inFlight.get());
+        stats.put("admitted", admitted.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("latencyMicros", TimeUnit.NANOSECONDS.toMicros((long) lastLatencyNanos));
+        windowLock.lock();
+        try {
+            stats.put("baselineLatencyMicros", TimeUnit.NANOSECONDS.toMicros((long) baselineLatencyNanos));
+        } finally {
+            windowLock.unlock();
+        }
+        return stats;
+    }
+
+    /**
+     * Sizes the limit from the latency of the window that just ended, must be called holding the window lock
+     */
+    private void resize() {
+        double latency = (double) windowLatencyNanos / windowSamples;
+        lastLatencyNanos = latency;
+        if (baselineLatencyNanos == 0) {
+            baselineLatencyNanos = latency;
+        } else {
+            baselineLatencyNanos += (latency - baselineLatencyNanos) / BASELINE_WINDOWS;
+        }
+
+        // Let the baseline follow a lasting drop in latency quickly, such as a backend recovering
+        if (baselineLatencyNanos > 2 * latency) {
+            baselineLatencyNanos *= 0.95;
+        }
+
+        // Do not grow a limit that is not being reached, it would not reflect what the backend can take
+        if (!windowFailed && windowMaxInFlight < limit / 2) {
+            return;
+        }
+
+        double gradient = windowFailed ? 0.5 : Math.max(0.5, Math.min(1.0, TOLERANCE * baselineLatencyNanos / latency));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        newLimit = limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        limit = Math.max(MIN_LIMIT, Math.min(maxLimit, newLimit));
+    }
+}
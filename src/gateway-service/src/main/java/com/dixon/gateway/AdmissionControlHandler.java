@@ -0,0 +1,159 @@
+package com.dixon.gateway;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sheds load in front of another handler. Each http method is limited by its own AdaptiveLimiter, so that
+ * slow buys do not take the room of fast queries. A request beyond its limit is answered right away with a 503 and a
+ * Retry-After header, before any backend call is made and before it can tie up a thread waiting on the backend.
+ * Methods without a limiter are passed through.
+ * <p>
+ * Admitted requests may also have to fit in a budget shared with other handlers, such as the threads of a pool
+ * that every route runs on, so that the limits of all methods and routes together never exceed what the pool can hold.
+ * Latency is measured from the time a request reached the server's executor, when the executor is wrapped with
+ * recordingArrival, so that time spent queued for a thread counts towards the latency the limits are sized from.
+ */
+public class AdmissionControlHandler implements HttpHandler {
+    /**
+     * System.nanoTime() value at which the request being handled on this thread reached the server's executor
+     */
+    private static final ThreadLocal<Long> ARRIVAL_NANOS = new ThreadLocal<>();
+
+    /**
+     * Object mapper used for marshaling and unmarshalling
+     */
+    private final ObjectMapper objectMapper;
+
+    /**
+     * The handler requests are admitted to
+     */
+    private final HttpHandler delegate;
+
+    /**
+     * Maps http methods to the limiter admitting them
+     */
+    private final Map<String, AdaptiveLimiter> limiters;
+
+    /**
+     * Seconds after which a shed request may be retried
+     */
+    private final long retryAfterSeconds;
+
+    /**
+     * Budget of requests in flight shared with other handlers, null if the limiters are the only bound
+     */
+    private final Semaphore budget;
+
+    /**
+     * Number of requests shed since the shared budget was used up
+     */
+    private final LongAdder budgetRejected = new LongAdder();
+
+    /**
+     * Instantiates an AdmissionControlHandler
+     * @param delegate The handler requests are admitted to
+     * @param limiters Maps http methods to the limiter admitting them
+     * @param budget Budget of requests in flight shared with other handlers, null if the limiters are the only bound
+     * @param retryAfterSeconds Seconds after which a shed request may be retried
+     */
+    public AdmissionControlHandler(HttpHandler delegate, Map<String, AdaptiveLimiter> limiters, Semaphore budget,
+                                   long retryAfterSeconds) {
+        super();
+        // Create object mapper
+        JsonFactory jsonFactory = new JsonFactory();
+        jsonFactory.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+        jsonFactory.configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
+        this.objectMapper = new ObjectMapper(jsonFactory);
+
+        this.delegate = delegate;
+        this.limiters = limiters;
+        this.budget = budget;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Wraps a server's executor so that the handlers run on it know when each request reached the executor
+     * @param executor The server's executor
+     * @return The wrapped executor
+     */
+    public static Executor recordingArrival(Executor executor) {
+        return task -> {
+            long arrivalNanos = System.nanoTime();
+            executor.execute(() -> {
+                ARRIVAL_NANOS.set(arrivalNanos);
+                try {
+                    task.run();
+                } finally {
+                    ARRIVAL_NANOS.remove();
+                }
+            });
+        };
+    }
+
+    /**
+     * Admits a request to the delegate handler, or sheds it if the shared budget is used up or its limiter is full
+     * @param exchange The http exchange object
+     * @throws IOException
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        Long arrivalNanos = ARRIVAL_NANOS.get();
+        long startNanos = arrivalNanos != null ? arrivalNanos : System.nanoTime();
+        AdaptiveLimiter limiter = limiters.get(exchange.getRequestMethod());
+        if (limiter == null) {
+            delegate.handle(exchange);
+            return;
+        }
+        if (budget != null && !budget.tryAcquire()) {
+            budgetRejected.increment();
+            HTTPHandlerUtility.handleOverloadedResponse(exchange, objectMapper, retryAfterSeconds);
+            return;
+        }
+        if (!limiter.tryAcquire()) {
+            if (budget != null) {
+                budget.release();
+            }
+            HTTPHandlerUtility.handleOverloadedResponse(exchange, objectMapper, retryAfterSeconds);
+            return;
+        }
+
+        // The admission is released when the response is sent, which async handlers do after handle returns
+        AdmittedHttpExchange admittedExchange = new AdmittedHttpExchange(exchange, limiter, budget, startNanos);
+        try {
+            delegate.handle(admittedExchange);
+        } catch (IOException | RuntimeException e) {
+            admittedExchange.release(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Gives the statistics of every limiter, and of the shared budget if any
+     * @return Map of the limiter names, and "budget", to their statistics
+     */
+    public Map<String, Map<String, Long>> getStats() {
+        Map<String, Map<String, Long>> stats = new LinkedHashMap<>();
+        for (AdaptiveLimiter limiter : limiters.values()) {
+            stats.put(limiter.getName(), limiter.getStats());
+        }
+        if (budget != null) {
+            Map<String, Long> budgetStats = new LinkedHashMap<>();
+            budgetStats.put("available", (long) budget.availablePermits());
+            budgetStats.put("rejected", budgetRejected.sum());
+            stats.put("budget", budgetStats);
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,170 @@
+package com.dixon.gateway;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An HttpExchange admitted by an AdaptiveLimiter, which releases its admission once the response is sent.
+ * Handlers answering from gRPC callbacks send the response after handle returns, so the admission can only be
+ * released by the exchange itself. Every other call is passed to the exchange received from the server.
+ */
+public class AdmittedHttpExchange extends HttpExchange {
+    /**
+     * The exchange received from the server
+     */
+    private final HttpExchange exchange;
+
+    /**
+     * The limiter that admitted the exchange
+     */
+    private final AdaptiveLimiter limiter;
+
+    /**
+     * Budget shared with other handlers the exchange was also admitted by, null if none
+     */
+    private final Semaphore budget;
+
+    /**
+     * System.nanoTime() value from which the latency of the exchange is measured
+     */
+    private final long startNanos;
+
+    /**
+     * Whether the admission was released
+     */
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    /**
+     * Instantiates an AdmittedHttpExchange
+     * @param exchange The exchange received from the server
+     * @param limiter The limiter that admitted the exchange
+     * @param budget Budget shared with other handlers the exchange was also admitted by, null if none
+     * @param startNanos System.nanoTime() value from which the latency of the exchange is measured, the time the
+     *                   request reached the server's executor when known
+     */
+    public AdmittedHttpExchange(HttpExchange exchange, AdaptiveLimiter limiter, Semaphore budget, long startNanos) {
+        this.exchange = exchange;
+        this.limiter = limiter;
+        this.budget = budget;
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Releases the admission once, recording whether the request failed with a server error
+     * @param failed Whether the request failed with a server error
+     */
+    public void release(boolean failed) {
+        if (released.compareAndSet(false, true)) {
+            limiter.release(startNanos, failed);
+            if (budget != null) {
+                budget.release();
+            }
+        }
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return exchange.getRequestHeaders();
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return exchange.getResponseHeaders();
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return exchange.getRequestURI();
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return exchange.getRequestMethod();
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return exchange.getHttpContext();
+    }
+
+    /**
+     * Ends the exchange, releasing the admission as failed if no response was sent
+     */
+    @Override
+    public void close() {
+        release(true);
+        exchange.close();
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return exchange.getRequestBody();
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return exchange.getResponseBody();
+    }
+
+    /**
+     * Sends the response headers, releasing the admission since the backend has answered
+     * @param rCode The response status code
+     * @param responseLength The response length
+     * @throws IOException
+     */
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        release(rCode >= 500);
+        exchange.sendResponseHeaders(rCode, responseLength);
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return exchange.getRemoteAddress();
+    }
+
+    @Override
+    public int getResponseCode() {
+        return exchange.getResponseCode();
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return exchange.getLocalAddress();
+    }
+
+    @Override
+    public String getProtocol() {
+        return exchange.getProtocol();
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return exchange.getAttribute(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        exchange.setAttribute(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        exchange.setStreams(i, o);
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return exchange.getPrincipal();
+    }
+}
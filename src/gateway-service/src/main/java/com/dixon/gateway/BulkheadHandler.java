@@ -0,0 +1,105 @@
+package com.dixon.gateway;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import io.grpc.Context;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs another handler on a lane of threads of its own, a bulkhead, so that a route family that slows down, such as
+ * order requests waiting on a failing leader, can only use up its own threads and not those serving other routes.
+ * The server's executor only hands the request over to the lane. A request arriving while the lane's threads are busy
+ * and its queue is full is answered right away with a 503 and a Retry-After header.
+ */
+public class BulkheadHandler implements HttpHandler {
+    /**
+     * Object mapper used for marshaling and unmarshalling
+     */
+    private final ObjectMapper objectMapper;
+
+    /**
+     * The handler run on the lane
+     */
+    private final HttpHandler delegate;
+
+    /**
+     * The lane's executor
+     */
+    private final ThreadPoolExecutor lane;
+
+    /**
+     * Seconds after which a rejected request may be retried
+     */
+    private final long retryAfterSeconds;
+
+    /**
+     * Number of requests rejected because the lane was full
+     */
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Instantiates a BulkheadHandler
+     * @param delegate The handler run on the lane
+     * @param lane The lane's executor
+     * @param retryAfterSeconds Seconds after which a rejected request may be retried
+     */
+    public BulkheadHandler(HttpHandler delegate, ThreadPoolExecutor lane, long retryAfterSeconds) {
+        super();
+        // Create object mapper
+        JsonFactory jsonFactory = new JsonFactory();
+        jsonFactory.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+        jsonFactory.configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
+        this.objectMapper = new ObjectMapper(jsonFactory);
+
+        this.delegate = delegate;
+        this.lane = lane;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Hands a request over to the lane, or rejects it if the lane is full
+     * @param exchange The http exchange object
+     * @throws IOException
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            // Run in the request's context, so its gRPC calls are still cancelled if the client disconnects
+            lane.execute(Context.current().wrap(() -> {
+                try {
+                    delegate.handle(exchange);
+                } catch (Exception e) {
+                    // Close the connection like the server does when a handler throws
+                    exchange.close();
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            HTTPHandlerUtility.handleOverloadedResponse(exchange, objectMapper, retryAfterSeconds);
+        }
+    }
+
+    /**
+     * Gives the size of the lane, the requests running and queued on it, and the requests it completed and rejected
+     * @return Map of the statistic names to their values
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("threads", (long) lane.getMaximumPoolSize());
+        stats.put("active", (long) lane.getActiveCount());
+        stats.put("queued", (long) lane.getQueue().size());
+        stats.put("completed", lane.getCompletedTaskCount());
+        stats.put("rejected", rejected.sum());
+        return stats;
+    }
+}
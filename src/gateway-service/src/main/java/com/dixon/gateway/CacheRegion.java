@@ -0,0 +1,10 @@
+package com.dixon.gateway;
+
+/**
+ * Represents the region of a W-TinyLFU cache a node is held in (admission window, probation or protected segment)
+ */
+public enum CacheRegion {
+    WINDOW,
+    PROBATION,
+    PROTECTED
+}
@@ -0,0 +1,51 @@
+package com.dixon.gateway;
+
+import lombok.Builder;
+import lombok.extern.jackson.Jacksonized;
+
+/**
+ * Statistics reported by a ProductCache
+ */
+@lombok.Data
+@Builder
+@Jacksonized
+public class CacheStats {
+    /**
+     * Name of the cache implementation
+     */
+    private String type;
+
+    /**
+     * Name of the eviction policy
+     */
+    private String policy;
+
+    /**
+     * Maximum number of entries in the cache
+     */
+    private int capacity;
+
+    /**
+     * Current number of entries in the cache
+     */
+    private int size;
+
+    /**
+     * Number of lookups that found an entry
+     */
+    private long hits;
+
+    /**
+     * Number of lookups that did not find an entry
+     */
+    private long misses;
+
+    /**
+     * Gives the fraction of lookups that found an entry
+     * @return The hit ratio, or 0 if no lookups have been made
+     */
+    public double getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
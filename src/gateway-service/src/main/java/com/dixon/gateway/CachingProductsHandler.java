@@ -1,33 +1,116 @@
 package com.dixon.gateway;
 
+import com.dixon.CatalogBatchQueryRequest;
+import com.dixon.CatalogBatchQueryResponse;
 import com.dixon.CatalogQueryRequest;
 import com.dixon.CatalogQueryResponse;
 import com.dixon.common.Error;
 import com.sun.net.httpserver.HttpExchange;
+import io.grpc.Context;
+import io.grpc.StatusRuntimeException;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Handles query requests from a client and uses an LRUCache to improve query latency
+ * Handles query requests from a client and uses a ProductCache to improve query latency
  */
 public class CachingProductsHandler extends ProductsHandler {
 
     /**
-     * LRUCache to hold recent query data
+     * Cache to hold recent query data
      */
-    private final LRUCache cache;
+    private final ProductCache cache;
+
+    /**
+     * Age in nanoseconds after which a cache entry is no longer served, 0 if entries never expire
+     */
+    private final long maxStalenessNanos;
+
+    /**
+     * Age in nanoseconds after which a cache hit triggers a background refresh of the entry
+     */
+    private final long refreshAfterNanos;
+
+    /**
+     * Cache of products the catalog service reported as nonexistent
+     */
+    private final NegativeCache negativeCache;
+
+    /**
+     * Coalesces concurrent catalog queries for the same product into a single rpc
+     */
+    private final SingleFlight<String, CatalogQueryResponse> catalogQueries = new SingleFlight<>();
+
+    /**
+     * Invalidation counts of the products, telling catalog queries whether their product was invalidated in flight
+     */
+    private final InvalidationGenerations generations = new InvalidationGenerations();
+
+    /**
+     * Names of the products currently being refreshed in the background
+     */
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Number of cache entries that were too old to be served
+     */
+    private final LongAdder expired = new LongAdder();
+
+    /**
+     * Number of background refreshes started
+     */
+    private final LongAdder refreshes = new LongAdder();
+
+    /**
+     * Number of background refreshes that failed
+     */
+    private final LongAdder refreshFailures = new LongAdder();
+
+    /**
+     * Instantiates a CachingProductsHandler instance whose entries never expire,
+     * obtaining a gRPC stub to the catalog service at host:port
+     * @param host The host address of the catalog service
+     * @param port The port address of the catalog service
+     * @param cache The gateway server cache
+     * @param testMode Indicates whether the handler should show testing mode output
+     */
+    public CachingProductsHandler(String host, int port, ProductCache cache, boolean testMode) {
+        this(host, port, cache, 0, 0, new NegativeCache(0, 0), DEFAULT_QUERY_DEADLINE_MILLIS, false, false, testMode);
+    }
 
     /**
      * Instantiates a CachingProductsHandler instance, obtaining a gRPC stub to the catalog service at host:port
      * @param host The host address of the catalog service
      * @param port The port address of the catalog service
-     * @param cache The gateway server LRUCache
+     * @param cache The gateway server cache
+     * @param maxStalenessMillis Age in milliseconds after which a cache entry is no longer served,
+     *                           0 if entries never expire
+     * @param refreshWindowMillis Time in milliseconds before an entry expires during which a cache hit
+     *                            refreshes the entry in the background
+     * @param negativeCache Cache of products the catalog service reported as nonexistent
+     * @param queryDeadlineMillis Time in milliseconds a catalog query may take, 0 for no deadline
+     * @param hedging Indicates whether catalog queries slower than most are sent a second time on a second channel
+     * @param asyncMode Indicates whether cache misses are answered from gRPC callbacks, releasing the handler thread
+     *                  while the catalog service is queried
      * @param testMode Indicates whether the handler should show testing mode output
      */
-    public CachingProductsHandler(String host, int port, LRUCache cache, boolean testMode) {
-        super(host, port, testMode);
+    public CachingProductsHandler(String host, int port, ProductCache cache, long maxStalenessMillis,
+                                  long refreshWindowMillis, NegativeCache negativeCache, long queryDeadlineMillis,
+                                  boolean hedging, boolean asyncMode, boolean testMode) {
+        super(host, port, queryDeadlineMillis, hedging, asyncMode, testMode);
         this.cache = cache;
+        this.maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(maxStalenessMillis);
+        this.refreshAfterNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxStalenessMillis - refreshWindowMillis));
+        this.negativeCache = negativeCache;
     }
 
     /**
@@ -43,55 +126,292 @@ public class CachingProductsHandler extends ProductsHandler {
             return;
         }
 
+        // Handle batch queries of the form /products?names=a,b,c
+        List<String> batchProductNames = HTTPHandlerUtility.getBatchProductNames(exchange);
+        if (batchProductNames != null) {
+            if (batchProductNames.size() > HTTPHandlerUtility.MAX_BATCH_NAMES) {
+                HTTPHandlerUtility.handleBatchTooLargeResponse(exchange, super.objectMapper);
+                return;
+            }
+            handleBatchQuery(batchProductNames, exchange);
+            return;
+        }
+
         // Get product name
         String productName = HTTPHandlerUtility.getProductName(exchange);
 
         // Try cache
-        Data data =cache.get(productName);
+        LRUNode node = getFreshNode(productName);
+
+        // If cache miss, answer queries for products known not to exist with the stored error response
+        if(node == null) {
+            byte[] errorResponse = negativeCache.get(productName);
+            if (errorResponse != null) {
+                sendResponse(exchange, 404, errorResponse);
+                return;
+            }
+        }
+
+        // If cache miss, query catalog service, sharing the query with concurrent misses for the same product,
+        // and answering from the rpc callback in async mode
+        if(node == null) {
+            if (asyncMode) {
+                completeAsync(load(productName), exchange);
+                return;
+            }
+            CatalogQueryResponse response;
+            try {
+                response = FutureUtility.join(load(productName));
+            } catch (StatusRuntimeException e) {
+                HTTPHandlerUtility.handleFailedCallResponse(exchange, objectMapper, e);
+                return;
+            }
+            handleQueryResponse(response, exchange);
+            return;
+        }
+
+        // Send the cached response, which is only serialized on the first hit after the data changes
+        sendResponse(exchange, 200, node.getResponse(this::encodeData));
+    }
 
-        // If cache miss, query catalog service
-        if(data == null) {
+    /**
+     * Handles batch query requests, answering cached products from the cache and querying the catalog service
+     * for all the misses in a single rpc
+     * @param productNames The distinct product names in request order
+     * @param exchange The http exchange object
+     * @throws IOException
+     */
+    @Override
+    protected void handleBatchQuery(List<String> productNames, HttpExchange exchange) throws IOException {
+        BatchResult result = new BatchResult(productNames);
+        List<String> misses = new ArrayList<>();
+        for (String productName : productNames) {
+            LRUNode node = getFreshNode(productName);
+            if (node != null) {
+                result.addData(node.getData());
+                continue;
+            }
+            String errorMessage = negativeCache.getErrorMessage(productName);
+            if (errorMessage != null) {
+                result.addError(errorMessage);
+                continue;
+            }
+            misses.add(productName);
+        }
+
+        // Respond directly if every product was cached
+        if (misses.isEmpty()) {
+            handleBatchResponse(result, exchange);
+            return;
+        }
+
+        // Query catalog service for the misses, answering from the rpc callback in async mode
+        CompletableFuture<CatalogBatchQueryResponse> future = loadBatch(misses);
+        if (asyncMode) {
+            completeBatchAsync(future, result, exchange);
+            return;
+        }
+        try {
+            FutureUtility.join(future).getResponsesList().forEach(result::addResponse);
+        } catch (StatusRuntimeException e) {
+            HTTPHandlerUtility.handleFailedCallResponse(exchange, objectMapper, e);
+            return;
+        }
+        handleBatchResponse(result, exchange);
+    }
+
+    /**
+     * Retrieves a product's cache node if its data is young enough to be served,
+     * refreshing the entry in the background if it is close to expiring
+     * @param productName The product name
+     * @return The cache node holding the product data, or null if the product is not cached or its entry has expired
+     */
+    private LRUNode getFreshNode(String productName) {
+        LRUNode node = cache.getNode(productName);
+        if (node == null) {
+            return null;
+        }
+
+        // Entries never expire if no max staleness is configured
+        if (maxStalenessNanos <= 0) {
+            return node;
+        }
+
+        long age = System.nanoTime() - node.getLoadTime();
+        if (age >= maxStalenessNanos) {
+            expired.increment();
+            return null;
+        }
+        if (age >= refreshAfterNanos) {
+            refresh(productName);
+        }
+        return node;
+    }
+
+    /**
+     * Queries the catalog service for a product and updates the cache with the response, unless the product was
+     * invalidated while the query was in flight.
+     * If a query for the product is already in flight, the caller shares its response instead.
+     * The query is not cancelled when the client that started it disconnects, since other clients
+     * and the cache may be waiting on it.
+     * @param productName The product name
+     * @return The future of the catalog query response
+     */
+    private CompletableFuture<CatalogQueryResponse> load(String productName) {
+        return catalogQueries.execute(productName, () -> {
             CatalogQueryRequest request = CatalogQueryRequest.newBuilder().setName(productName).build();
-            CatalogQueryResponse response = catalogStub.query(request);
+            long generation = generations.get(productName);
+            Context detached = Context.current().fork();
+            Context previous = detached.attach();
+            CompletableFuture<CatalogQueryResponse> query;
+            try {
+                query = queryCatalog(request);
+            } finally {
+                detached.detach(previous);
+            }
+            return query.thenApply(response -> {
+                cacheResponse(productName, response, generation);
+                return response;
+            });
+        });
+    }
+
+    /**
+     * Queries the catalog service for several products in a single rpc and updates the cache with the responses
+     * of the products not invalidated while the query was in flight
+     * @param productNames The product names
+     * @return The future of the catalog batch query response
+     */
+    private CompletableFuture<CatalogBatchQueryResponse> loadBatch(List<String> productNames) {
+        CatalogBatchQueryRequest request = CatalogBatchQueryRequest.newBuilder().addAllNames(productNames).build();
+        long[] productGenerations = new long[productNames.size()];
+        for (int i = 0; i < productNames.size(); i++) {
+            productGenerations[i] = generations.get(productNames.get(i));
+        }
+        return queryCatalogBatch(request).thenApply(batchResponse -> {
+            // Responses are in request order
+            for (int i = 0; i < batchResponse.getResponsesCount(); i++) {
+                cacheResponse(productNames.get(i), batchResponse.getResponses(i), productGenerations[i]);
+            }
+            return batchResponse;
+        });
+    }
 
-            // Send error data back to client if error occurred
-            if (!response.getSuccess()) {
-                Error error = Error.builder().code(404).message(response.getErrorMessage()).build();
-                handleErrorResponse(error, exchange);
+    /**
+     * Caches a product's catalog query response, or removes any entry and remembers the error if the product does
+     * not exist in the catalog. Neither is kept for a product invalidated since its query started, since the response
+     * may predate the change.
+     * @param productName The product name
+     * @param response The catalog query response
+     * @param generation The generation of the product when its query started
+     */
+    private void cacheResponse(String productName, CatalogQueryResponse response, long generation) {
+        if (response.getSuccess()) {
+            if (generations.get(productName) != generation) {
+                return;
+            }
+            cache.put(Data.builder().name(response.getName()).price(response.getPrice()).quantity(response.getQuantity()).build());
+            // An invalidation that ran between the check and the put may have missed the entry, so remove it here
+            if (generations.get(productName) != generation) {
+                cache.invalidate(productName);
+            }
+        } else {
+            cache.invalidate(productName);
+            if (generations.get(productName) != generation) {
                 return;
             }
+            Error error = Error.builder().code(404).message(response.getErrorMessage()).build();
+            negativeCache.put(productName, response.getErrorMessage(), encodeError(error));
+            if (generations.get(productName) != generation) {
+                negativeCache.invalidate(productName);
+            }
+        }
+    }
 
-            // Get data from response and add to cache
-            data = Data.builder().name(response.getName()).price(response.getPrice()).quantity(response.getQuantity()).build();
-            cache.put(data);
+    /**
+     * Queries the catalog service for a product in the background and replaces its cache entry with the response,
+     * while the old entry keeps being served. At most one refresh per product is in flight at a time.
+     * @param productName The product name
+     */
+    private void refresh(String productName) {
+        if (!refreshing.add(productName)) {
+            return;
         }
+        refreshes.increment();
 
-        // Send response data back to client
-        handleDataResponse(data, exchange);
+        load(productName).whenComplete((response, throwable) -> {
+            // On failure, keep serving the old entry until it expires
+            if (throwable != null) {
+                refreshFailures.increment();
+            }
+            refreshing.remove(productName);
+        });
+    }
+
+    /**
+     * Invalidates a product's cache entry, and detaches any catalog query in flight for the product
+     * so that later misses do not share a response that may predate the change. The query in flight still answers
+     * the clients waiting on it, but its response is not cached.
+     * Since the catalog only sends invalidations for products it holds, any negative cache entry is removed too.
+     * @param productName The product name
+     */
+    public void invalidate(String productName) {
+        generations.invalidate(productName);
+        catalogQueries.forget(productName);
+        cache.invalidate(productName);
+        negativeCache.invalidate(productName);
+    }
+
+    /**
+     * Invalidates every cache entry and detaches every catalog query in flight, whose responses are not cached,
+     * used when changes to the catalog may have been missed
+     */
+    public void invalidateAll() {
+        generations.invalidateAll();
+        catalogQueries.forgetAll();
+        cache.invalidateAll();
+        negativeCache.invalidateAll();
+    }
+
+    /**
+     * Gives the number of catalog queries started and the number of misses that shared a query already in flight
+     * @return Map of the statistic names to their values
+     */
+    public Map<String, Long> getCoalescingStats() {
+        return catalogQueries.getStats();
+    }
+
+    /**
+     * Gives the expiry and background refresh counts of the handler
+     * @return Map of the statistic names to their values
+     */
+    public Map<String, Long> getRefreshStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("expired", expired.sum());
+        stats.put("refreshes", refreshes.sum());
+        stats.put("refreshFailures", refreshFailures.sum());
+        return stats;
     }
 
     /**
      * Sends response back to client
      * @param exchange The http exchange object
-     * @param reply The response object as a string
+     * @param code The response status code
+     * @param reply The serialized response object
      * @throws IOException
      */
     @Override
-    protected void sendResponse(HttpExchange exchange, String reply) throws IOException {
-        OutputStream outputStream = exchange.getResponseBody();
-
+    protected void sendResponse(HttpExchange exchange, int code, byte[] reply) throws IOException {
         // Optionally print response object
         if(testMode) {
             System.out.println("Query response object: ");
-            System.out.println(reply);
+            System.out.println(new String(reply));
             System.out.println("Cache: ");
             System.out.println(cache);
             System.out.println();
         }
 
         // Send response
-        outputStream.write(reply.getBytes());
-        outputStream.flush();
-        outputStream.close();
+        HTTPHandlerUtility.sendResponse(exchange, code, reply);
     }
 }
@@ -0,0 +1,68 @@
+package com.dixon.gateway;
+
+import io.grpc.Deadline;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds the time and the number of attempts a client request may spend on backend calls, across the retries
+ * made when a backend fails. Every call made for the request carries the request's deadline, so a retry only gets
+ * the time the earlier attempts left over rather than a fresh deadline of its own.
+ */
+public class CallBudget {
+    /**
+     * Deadline of the request, null if the request has no deadline
+     */
+    private final Deadline deadline;
+
+    /**
+     * Number of attempts left
+     */
+    private final AtomicInteger attemptsLeft;
+
+    /**
+     * Instantiates a CallBudget starting now
+     * @param deadlineMillis Time in milliseconds the request may take, 0 for no deadline
+     * @param maxAttempts Maximum number of attempts
+     */
+    public CallBudget(long deadlineMillis, int maxAttempts) {
+        this.deadline = deadlineMillis > 0 ? Deadline.after(deadlineMillis, TimeUnit.MILLISECONDS) : null;
+        this.attemptsLeft = new AtomicInteger(maxAttempts);
+    }
+
+    /**
+     * Gives the deadline of the request
+     * @return The deadline, or null if the request has no deadline
+     */
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Gives the deadline of a call that must also finish within the given time
+     * @param duration The time the call may take
+     * @param unit The unit of the duration
+     * @return The earlier of the request's deadline and the call's own deadline
+     */
+    public Deadline getDeadlineWithin(long duration, TimeUnit unit) {
+        Deadline callDeadline = Deadline.after(duration, unit);
+        return deadline == null ? callDeadline : deadline.minimum(callDeadline);
+    }
+
+    /**
+     * Gives whether the request's deadline has passed
+     * @return True if the deadline has passed
+     */
+    public boolean isExpired() {
+        return deadline != null && deadline.isExpired();
+    }
+
+    /**
+     * Takes an attempt from the budget
+     * @return True if an attempt was left and the deadline has not passed
+     */
+    public boolean tryAttempt() {
+        return !isExpired() && attemptsLeft.getAndDecrement() > 0;
+    }
+}
@@ -0,0 +1,251 @@
+package com.dixon.gateway;
+
+import com.dixon.CatalogProduct;
+import com.dixon.CatalogServiceGrpc;
+import com.dixon.CatalogSubscription;
+import com.dixon.CatalogUpdate;
+import io.grpc.Channel;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A full copy of the price and stock of every product, kept up to date from the catalog service's replication stream.
+ * The stream starts with a snapshot of the catalog and continues with the new price and stock of the products whose
+ * stock changed, numbered consecutively. The replica is only synced while the stream is live and no update has been
+ * missed. When a sequence number is skipped or the stream fails, the replica stops being synced and resubscribes,
+ * becoming synced again once the new snapshot is applied.
+ */
+public class CatalogReplica {
+    /**
+     * Delay in milliseconds before the first attempt to reopen a failed subscription
+     */
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 100;
+
+    /**
+     * Maximum delay in milliseconds between attempts to reopen a failed subscription
+     */
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 5000;
+
+    /**
+     * Maps each product name to the node holding its data and encoded response
+     */
+    private final ConcurrentHashMap<String, LRUNode> products = new ConcurrentHashMap<>();
+
+    /**
+     * gRPC async stub to open the replication stream, waiting for the catalog service to be reachable
+     */
+    private final CatalogServiceGrpc.CatalogServiceStub catalogAsyncStub;
+
+    /**
+     * The subscription request, naming this gateway
+     */
+    private final CatalogSubscription subscription;
+
+    /**
+     * Thread reopening failed subscriptions after a delay
+     */
+    private final ScheduledExecutorService reconnectScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "replica-reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Whether the replica holds every change the catalog has sent since its last snapshot
+     */
+    private volatile boolean synced;
+
+    /**
+     * Delay in milliseconds before the next attempt to reopen the subscription, doubled after every failed attempt
+     */
+    private volatile long reconnectDelayMillis = MIN_RECONNECT_DELAY_MILLIS;
+
+    /**
+     * Time in milliseconds between the oldest change of the last update and the update being applied
+     */
+    private volatile long lagMillis;
+
+    /**
+     * Largest lag in milliseconds seen since the gateway started
+     */
+    private volatile long maxLagMillis;
+
+    /**
+     * Number of snapshots applied
+     */
+    private final LongAdder snapshots = new LongAdder();
+
+    /**
+     * Number of updates applied, excluding snapshots
+     */
+    private final LongAdder updates = new LongAdder();
+
+    /**
+     * Number of times a skipped sequence number forced a resync
+     */
+    private final LongAdder gaps = new LongAdder();
+
+    /**
+     * Number of times the stream failed or was ended by the catalog service
+     */
+    private final LongAdder disconnects = new LongAdder();
+
+    /**
+     * Instantiates a CatalogReplica, which subscribes once started
+     * @param catalogChannel Communication channel to the catalog service
+     * @param subscriberName Name identifying this gateway to the catalog service
+     */
+    public CatalogReplica(Channel catalogChannel, String subscriberName) {
+        this.catalogAsyncStub = CatalogServiceGrpc.newStub(catalogChannel).withWaitForReady();
+        this.subscription = CatalogSubscription.newBuilder().setSubscriberName(subscriberName).build();
+    }
+
+    /**
+     * Opens the subscription
+     */
+    public void start() {
+        catalogAsyncStub.subscribeCatalog(subscription, new UpdateObserver());
+    }
+
+    /**
+     * Gives whether the replica is synced with the catalog service and can answer queries
+     * @return True if the replica holds every change sent since its last snapshot
+     */
+    public boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * Retrieves the node holding a product's data
+     * @param productName The product name
+     * @return The node holding the product data, or null if the product is not in the catalog
+     */
+    public LRUNode get(String productName) {
+        return products.get(productName);
+    }
+
+    /**
+     * Gives the size, sync state, update counts and replication lag of the replica
+     * @return Map of the statistic names to their values
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("size", (long) products.size());
+        stats.put("synced", synced ? 1L : 0L);
+        stats.put("snapshots", snapshots.sum());
+        stats.put("updates", updates.sum());
+        stats.put("gaps", gaps.sum());
+        stats.put("disconnects", disconnects.sum());
+        stats.put("lagMillis", lagMillis);
+        stats.put("maxLagMillis", maxLagMillis);
+        return stats;
+    }
+
+    /**
+     * Stores the new data of a product, replacing the data of its existing node so that queries never miss it
+     * @param product The product's price and stock
+     */
+    private void apply(CatalogProduct product) {
+        Data data = Data.builder().name(product.getName()).price(product.getPrice()).quantity(product.getQuantity()).build();
+        LRUNode node = products.get(product.getName());
+        if (node != null) {
+            node.setData(data);
+        } else {
+            products.put(product.getName(), new LRUNode(data));
+        }
+    }
+
+    /**
+     * Records the replication lag of an update
+     * @param update The update that was applied
+     */
+    private void recordLag(CatalogUpdate update) {
+        long lag = Math.max(0, System.currentTimeMillis() - update.getOldestChangeMillis());
+        lagMillis = lag;
+        if (lag > maxLagMillis) {
+            maxLagMillis = lag;
+        }
+    }
+
+    /**
+     * Reopens the subscription after the current delay, and doubles the delay for the next failure
+     */
+    private void reconnect() {
+        synced = false;
+        disconnects.increment();
+        long delay = reconnectDelayMillis;
+        reconnectDelayMillis = Math.min(delay * 2, MAX_RECONNECT_DELAY_MILLIS);
+        reconnectScheduler.schedule(this::start, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Receives the updates of one subscription, which gRPC delivers one at a time
+     */
+    private class UpdateObserver implements ClientResponseObserver<CatalogSubscription, CatalogUpdate> {
+        /**
+         * The call of this subscription, used to cancel it when an update is missed
+         */
+        private ClientCallStreamObserver<CatalogSubscription> call;
+
+        /**
+         * Sequence number of the next expected update
+         */
+        private long expectedSequenceNumber;
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<CatalogSubscription> requestStream) {
+            this.call = requestStream;
+        }
+
+        @Override
+        public void onNext(CatalogUpdate update) {
+            // Stop serving from the replica and resubscribe for a new snapshot if an update was missed
+            if (update.getSequenceNumber() != expectedSequenceNumber) {
+                synced = false;
+                gaps.increment();
+                call.cancel("Missed catalog update " + expectedSequenceNumber, null);
+                return;
+            }
+            expectedSequenceNumber = update.getSequenceNumber() + 1;
+
+            // Apply the snapshot, dropping products the catalog no longer holds
+            if (update.getSnapshot()) {
+                Set<String> names = new HashSet<>();
+                for (CatalogProduct product : update.getProductsList()) {
+                    apply(product);
+                    names.add(product.getName());
+                }
+                products.keySet().retainAll(names);
+                snapshots.increment();
+                reconnectDelayMillis = MIN_RECONNECT_DELAY_MILLIS;
+                synced = true;
+                recordLag(update);
+                return;
+            }
+
+            update.getProductsList().forEach(CatalogReplica.this::apply);
+            updates.increment();
+            recordLag(update);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            reconnect();
+        }
+
+        @Override
+        public void onCompleted() {
+            reconnect();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.dixon.gateway;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent cache containing product stock and price data for recently queried items.
+ * Lookups read a ConcurrentHashMap without locking and record the access in a lossy ring buffer.
+ * The recorded accesses are replayed onto the EvictionPolicy in batches by whichever thread holds the eviction lock,
+ * so cache hits do not serialize on a single monitor.
+ */
+public class ConcurrentProductCache implements ProductCache {
+    /**
+     * Number of slots in each read buffer stripe, must be a power of two
+     */
+    private static final int READ_BUFFER_SIZE = 64;
+
+    /**
+     * Mask used to map a read count to a read buffer slot
+     */
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    /**
+     * Number of pending reads in a stripe that triggers a drain of the read buffers
+     */
+    private static final int DRAIN_THRESHOLD = 16;
+
+    /**
+     * Hashmap to access product data with String product name key
+     */
+    private final ConcurrentHashMap<String, LRUNode> hashMap;
+
+    /**
+     * Policy choosing which nodes to evict, guarded by the eviction lock
+     */
+    private final EvictionPolicy policy;
+
+    /**
+     * Lock guarding the eviction policy and all writes to the hashmap
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * Striped ring buffers of nodes that were read but not yet replayed onto the eviction policy.
+     * Threads are spread over the stripes so that readers do not contend on a single counter.
+     */
+    private final ReadBufferStripe[] readBuffers;
+
+    /**
+     * Mask used to map a thread to a read buffer stripe
+     */
+    private final int stripeMask;
+
+    /**
+     * Maximum size of the cache
+     */
+    private final int size;
+
+    /**
+     * Number of lookups that found an entry
+     */
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * Number of lookups that did not find an entry
+     */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Instantiates a new ConcurrentProductCache using the specified size and LRU eviction
+     * @param size Maximum number of entries in the cache
+     */
+    public ConcurrentProductCache(int size) {
+        this(size, new LRUEvictionPolicy(size));
+    }
+
+    /**
+     * Instantiates a new ConcurrentProductCache using the specified size and eviction policy
+     * @param size Maximum number of entries in the cache
+     * @param policy The eviction policy, sized for the same number of entries
+     */
+    public ConcurrentProductCache(int size, EvictionPolicy policy) {
+        hashMap = new ConcurrentHashMap<>(size);
+        this.policy = policy;
+        this.size = size;
+
+        // Create one read buffer stripe per processor, rounded up to a power of two
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1) << 1);
+        readBuffers = new ReadBufferStripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            readBuffers[i] = new ReadBufferStripe();
+        }
+        stripeMask = stripes - 1;
+    }
+
+    /**
+     * Retrieves the data for the specified product if it exists in the cache, without blocking
+     * @param item The desired product
+     * @return The data object containing the product stock and price information if it exists in the cache,
+     * else returns null
+     */
+    @Override
+    public Data get(String item) {
+        LRUNode node = getNode(item);
+        return node == null ? null : node.getData();
+    }
+
+    /**
+     * Retrieves the node holding the data for the specified product if it exists in the cache, without blocking
+     * @param item The desired product
+     * @return The node containing the product data if it exists in the cache, else returns null
+     */
+    @Override
+    public LRUNode getNode(String item) {
+        LRUNode node = hashMap.get(item);
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+
+        // Record the access to be replayed onto the eviction policy later
+        recordRead(node);
+        return node;
+    }
+
+    /**
+     * Adds new data to the cache
+     * @param data The data to be added to the cache
+     */
+    @Override
+    public void put(Data data) {
+        String item = data.getName();
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+
+            // If item is already in cache, just update quantity and record the access
+            LRUNode node = hashMap.get(item);
+            if (node != null) {
+                node.setData(data);
+                policy.onAccess(node);
+                return;
+            }
+
+            // Item is not in cache, create and add new node
+            node = new LRUNode(data);
+            hashMap.put(item, node);
+
+            // Evict the node chosen by the policy if cache is full
+            LRUNode evicted = policy.onInsert(node);
+            if (evicted != null) {
+                hashMap.remove(evicted.getData().getName());
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Invalidates an item, removing it from the cache
+     * @param item The item to be invalidated
+     */
+    @Override
+    public void invalidate(String item) {
+        evictionLock.lock();
+        try {
+            LRUNode node = hashMap.remove(item);
+            if (node == null) {
+                return;
+            }
+            policy.onRemove(node);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Invalidates every item, emptying the cache
+     */
+    @Override
+    public void invalidateAll() {
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            for (LRUNode node : hashMap.values()) {
+                policy.onRemove(node);
+            }
+            hashMap.clear();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Gives the hit and miss counts of the cache
+     * @return The current cache statistics
+     */
+    @Override
+    public CacheStats getStats() {
+        return CacheStats.builder()
+                .type("concurrent")
+                .policy(policy.getName())
+                .capacity(size)
+                .size(hashMap.size())
+                .hits(hits.sum())
+                .misses(misses.sum())
+                .build();
+    }
+
+    /**
+     * Records a cache hit in the calling thread's read buffer stripe, draining the buffers if enough reads
+     * are pending and no other thread is currently holding the eviction lock
+     * @param node The node that was read
+     */
+    private void recordRead(LRUNode node) {
+        ReadBufferStripe stripe = readBuffers[(int) Thread.currentThread().getId() & stripeMask];
+        long writeCount = stripe.writeCount.getAndIncrement();
+        stripe.slots.lazySet((int) (writeCount & READ_BUFFER_MASK), node);
+        if (writeCount - stripe.drainCount >= DRAIN_THRESHOLD && evictionLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replays the nodes recorded in the read buffers onto the eviction policy in the order they were read
+     * within each stripe. Reads that were overwritten before being drained are dropped, and nodes that have
+     * since been removed from the cache are skipped. Must be called while holding the eviction lock.
+     */
+    private void drainReadBuffer() {
+        for (ReadBufferStripe stripe : readBuffers) {
+            long writeCount = stripe.writeCount.get();
+            long start = Math.max(stripe.drainCount, writeCount - READ_BUFFER_SIZE);
+            for (long i = start; i < writeCount; i++) {
+                LRUNode node = stripe.slots.getAndSet((int) (i & READ_BUFFER_MASK), null);
+                if (node != null && hashMap.get(node.getData().getName()) == node) {
+                    policy.onAccess(node);
+                }
+            }
+            stripe.drainCount = writeCount;
+        }
+    }
+
+    /**
+     * Gives the string representation of a ConcurrentProductCache
+     * @return String representation of a ConcurrentProductCache
+     */
+    @Override
+    public String toString() {
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            return "HASHMAP SIZE: " + hashMap.size() + "\n" + policy.toString();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * A lossy ring buffer of recently read nodes shared by a subset of reader threads
+     */
+    private static class ReadBufferStripe {
+        /**
+         * Slots holding the recently read nodes
+         */
+        private final AtomicReferenceArray<LRUNode> slots = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+
+        /**
+         * Total number of reads recorded in this stripe
+         */
+        private final AtomicLong writeCount = new AtomicLong();
+
+        /**
+         * Number of reads replayed from this stripe, only written while holding the eviction lock
+         */
+        private volatile long drainCount;
+    }
+}
@@ -0,0 +1,33 @@
+package com.dixon.gateway;
+
+/**
+ * Decides which nodes a ConcurrentProductCache keeps when it is full.
+ * Implementations are not thread safe, the cache calls every method while holding its eviction lock.
+ */
+public interface EvictionPolicy {
+    /**
+     * Gives the name of the policy
+     * @return The policy name
+     */
+    String getName();
+
+    /**
+     * Records that a node in the cache was read or updated
+     * @param node The accessed node
+     */
+    void onAccess(LRUNode node);
+
+    /**
+     * Adds a new node to the policy, choosing a node to evict if the cache is over capacity
+     * @param node The new node
+     * @return The node that must be removed from the cache, which may be the new node itself,
+     * or null if the cache is not over capacity
+     */
+    LRUNode onInsert(LRUNode node);
+
+    /**
+     * Removes a node that was invalidated from the policy
+     * @param node The removed node
+     */
+    void onRemove(LRUNode node);
+}
@@ -0,0 +1,185 @@
+package com.dixon.gateway;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Spreads order lookups across the order service followers. The health checks of the LeaderMonitor also report
+ * the largest order number each node has applied, its watermark. A lookup is sent to a follower only if the order
+ * number is at or below the follower's watermark, so the order has reached it, and otherwise to the leader, which holds
+ * every order. Lookups are rotated between the leader and the eligible followers.
+ * Since the leader replicates orders concurrently, a follower may still miss an order below its watermark,
+ * so a follower's negative answer is never trusted and the lookup is retried on the leader.
+ */
+public class FollowerReadRouter {
+    /**
+     * Tracks the leader and the health and watermark of every node
+     */
+    private final LeaderMonitor leaderMonitor;
+
+    /**
+     * Whether lookups are sent to followers, otherwise every lookup is sent to the leader
+     */
+    private final boolean enabled;
+
+    /**
+     * Counter rotating lookups between the leader and the eligible followers
+     */
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    /**
+     * Number of lookups answered by a follower
+     */
+    private final LongAdder followerReads = new LongAdder();
+
+    /**
+     * Number of lookups routed to the leader
+     */
+    private final LongAdder leaderReads = new LongAdder();
+
+    /**
+     * Number of lookups a follower could not answer, which were retried on the leader
+     */
+    private final LongAdder followerMisses = new LongAdder();
+
+    /**
+     * Number of lookups that failed on a follower, which were retried on the leader
+     */
+    private final LongAdder followerFailures = new LongAdder();
+
+    /**
+     * Number of lookups answered by each follower, by node id
+     */
+    private final Map<Integer, LongAdder> readsByFollower = new ConcurrentHashMap<>();
+
+    /**
+     * Number of lookups each follower could not answer, by node id
+     */
+    private final Map<Integer, LongAdder> missesByFollower = new ConcurrentHashMap<>();
+
+    /**
+     * Number of lookups that failed on each follower, by node id
+     */
+    private final Map<Integer, LongAdder> failuresByFollower = new ConcurrentHashMap<>();
+
+    /**
+     * Instantiates a FollowerReadRouter
+     * @param leaderMonitor Tracks the leader and the health and watermark of every node
+     * @param enabled Whether lookups are sent to followers
+     */
+    public FollowerReadRouter(LeaderMonitor leaderMonitor, boolean enabled) {
+        this.leaderMonitor = leaderMonitor;
+        this.enabled = enabled;
+    }
+
+    /**
+     * Chooses the node to look up an order on
+     * @param orderNumber The order number
+     * @return A follower that has applied the order, or null if the lookup should be sent to the leader
+     */
+    public OrderNodeClient choose(int orderNumber) {
+        if (!enabled) {
+            return null;
+        }
+        OrderNodeClient leader = leaderMonitor.getLeader();
+        int eligible = 0;
+        for (OrderNodeClient node : leaderMonitor.getNodes()) {
+            if (isEligible(node, orderNumber, leader)) {
+                eligible++;
+            }
+        }
+
+        // The leader takes one turn in every rotation
+        int turn = Math.floorMod(nextReplica.getAndIncrement(), eligible + 1);
+        for (OrderNodeClient node : leaderMonitor.getNodes()) {
+            if (isEligible(node, orderNumber, leader) && turn-- == 0) {
+                return node;
+            }
+        }
+        leaderReads.increment();
+        return null;
+    }
+
+    /**
+     * Records that a follower answered a lookup
+     * @param follower The follower
+     */
+    public void recordRead(OrderNodeClient follower) {
+        followerReads.increment();
+        countFor(readsByFollower, follower).increment();
+    }
+
+    /**
+     * Records that a follower did not find an order, which is then looked up on the leader
+     * @param follower The follower
+     */
+    public void recordMiss(OrderNodeClient follower) {
+        followerMisses.increment();
+        countFor(missesByFollower, follower).increment();
+    }
+
+    /**
+     * Records that a lookup failed on a follower, which is not sent lookups again until its next health check
+     * @param follower The follower
+     */
+    public void recordFailure(OrderNodeClient follower) {
+        follower.recordRequestFailure();
+        followerFailures.increment();
+        countFor(failuresByFollower, follower).increment();
+    }
+
+    /**
+     * Gives the lookup counts of the followers and the leader, the lookup counts of every follower, and the watermark
+     * of every healthy node
+     * @return Map of the statistic names to their values
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("followerReads", followerReads.sum());
+        stats.put("leaderReads", leaderReads.sum());
+        stats.put("followerMisses", followerMisses.sum());
+        stats.put("followerFailures", followerFailures.sum());
+        for (OrderNodeClient node : leaderMonitor.getNodes()) {
+            stats.put("watermark" + node.getId(), node.isHealthy() ? (long) node.getMaxOrderNumber() : -1L);
+            stats.put("followerReads" + node.getId(), sum(readsByFollower, node));
+            stats.put("followerMisses" + node.getId(), sum(missesByFollower, node));
+            stats.put("followerFailures" + node.getId(), sum(failuresByFollower, node));
+        }
+        return stats;
+    }
+
+    /**
+     * Gives the counter of a follower, creating it on first use
+     * @param counts The counters by node id
+     * @param follower The follower
+     * @return The counter
+     */
+    private static LongAdder countFor(Map<Integer, LongAdder> counts, OrderNodeClient follower) {
+        return counts.computeIfAbsent(follower.getId(), id -> new LongAdder());
+    }
+
+    /**
+     * Gives the count of a node
+     * @param counts The counters by node id
+     * @param node The node
+     * @return The count, 0 if the node was never counted
+     */
+    private static long sum(Map<Integer, LongAdder> counts, OrderNodeClient node) {
+        LongAdder count = counts.get(node.getId());
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Gives whether a lookup can be sent to a node
+     * @param node The node
+     * @param orderNumber The order number
+     * @param leader The current leader
+     * @return True if the node is a healthy follower that has applied the order
+     */
+    private boolean isEligible(OrderNodeClient node, int orderNumber, OrderNodeClient leader) {
+        return node != leader && node.isHealthy() && orderNumber <= node.getMaxOrderNumber();
+    }
+}
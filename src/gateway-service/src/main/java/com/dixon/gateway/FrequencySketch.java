@@ -0,0 +1,138 @@
+package com.dixon.gateway;
+
+/**
+ * A count-min sketch of 4-bit counters estimating how often each product has been accessed.
+ * All counters are halved once the number of recorded accesses reaches ten times the cache capacity,
+ * so the estimate favors recent popularity. Not thread safe.
+ */
+public class FrequencySketch {
+    /**
+     * Number of rows (hash functions) in the sketch
+     */
+    private static final int DEPTH = 4;
+
+    /**
+     * Seeds used to derive one hash per row
+     */
+    private static final long[] SEEDS = new long[] {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    /**
+     * Largest value a 4-bit counter can hold
+     */
+    private static final int MAX_COUNT = 15;
+
+    /**
+     * Mask keeping the lower three bits of every counter when halving
+     */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /**
+     * Counters packed sixteen to a long, row by row
+     */
+    private final long[] table;
+
+    /**
+     * Number of counters in each row, a power of two
+     */
+    private final int width;
+
+    /**
+     * Number of recorded accesses after which all counters are halved
+     */
+    private final int sampleSize;
+
+    /**
+     * Number of accesses recorded since the last halving
+     */
+    private int additions;
+
+    /**
+     * Instantiates a new FrequencySketch sized for a cache of the given capacity
+     * @param capacity Maximum number of entries in the cache
+     */
+    public FrequencySketch(int capacity) {
+        width = Math.max(64, Integer.highestOneBit(Math.max(1, capacity) - 1) << 2);
+        table = new long[(DEPTH * width) / 16];
+        sampleSize = 10 * Math.max(1, capacity);
+    }
+
+    /**
+     * Records an access to a product
+     * @param item The product name
+     */
+    public void increment(String item) {
+        int hash = item.hashCode();
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            int counter = counterIndex(hash, row);
+            int count = getCount(counter);
+            if (count < MAX_COUNT) {
+                setCount(counter, count + 1);
+                added = true;
+            }
+        }
+
+        // Age the counters once enough accesses have been recorded
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Gives the estimated number of accesses to a product
+     * @param item The product name
+     * @return The estimated access frequency, between 0 and 15
+     */
+    public int frequency(String item) {
+        int hash = item.hashCode();
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, getCount(counterIndex(hash, row)));
+        }
+        return frequency;
+    }
+
+    /**
+     * Halves every counter in the sketch
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    /**
+     * Gives the index of a product's counter in a row of the sketch
+     * @param hash The hash code of the product name
+     * @param row The row of the sketch
+     * @return The counter index across all rows
+     */
+    private int counterIndex(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return row * width + ((int) h & (width - 1));
+    }
+
+    /**
+     * Reads a counter
+     * @param counter The counter index
+     * @return The counter value
+     */
+    private int getCount(int counter) {
+        int shift = (counter & 15) << 2;
+        return (int) ((table[counter >>> 4] >>> shift) & 0xfL);
+    }
+
+    /**
+     * Writes a counter
+     * @param counter The counter index
+     * @param count The new counter value
+     */
+    private void setCount(int counter, int count) {
+        int shift = (counter & 15) << 2;
+        table[counter >>> 4] = (table[counter >>> 4] & ~(0xfL << shift)) | ((long) count << shift);
+    }
+}
@@ -0,0 +1,54 @@
+package com.dixon.gateway;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Contains static methods for working with the futures returned by gRPC future stubs
+ */
+public class FutureUtility {
+    /**
+     * Converts a ListenableFuture returned by a gRPC future stub to a CompletableFuture
+     * @param listenableFuture The ListenableFuture
+     * @return A CompletableFuture completed with the result or failure of the ListenableFuture
+     * @param <T> The result type
+     */
+    protected static <T> CompletableFuture<T> toCompletableFuture(ListenableFuture<T> listenableFuture) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Futures.addCallback(listenableFuture, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                future.complete(result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    /**
+     * Blocks for the result of a CompletableFuture, rethrowing the original exception if it failed
+     * so that callers see the same StatusRuntimeException a blocking stub would throw
+     * @param future The CompletableFuture
+     * @return The result of the future
+     * @param <T> The result type
+     */
+    protected static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -1,16 +1,19 @@
 package com.dixon.gateway;
 
 import com.dixon.common.Address;
+import com.dixon.common.ExecutorFactory;
 import com.dixon.common.OrderServiceNodesReader;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import org.apache.commons.cli.*;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.HashMap;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 
 /**
  * Gateway server that handles query and buy requests from a client
@@ -27,12 +30,36 @@ public class GatewayServiceServer {
         options.addOption("h", "host", true, "server address");
         options.addOption("p", "port", true, "server port");
         options.addOption("m", "maxThreads", true, "maximum number of threads in dynamic pool");
+        options.addOption("he", "httpEngine", true, "http server engine (jdk or netty)");
+        options.addOption("el", "eventLoops", true, "number of netty event loops serving connections");
+        options.addOption("em", "executorMode", true, "request executor (pool or virtual)");
         options.addOption("b", "backlogRequests", true, "maximum number of backlog requests in dynamic pool");
         options.addOption("ch", "catalogHost", true, "catalog service server address");
         options.addOption("cp", "catalogPort", true, "catalog service server port");
         options.addOption("te", "test", false, "testing mode activated");
         options.addOption("cs", "cacheSize", true, "cache size");
+        options.addOption("ct", "cacheType", true, "cache implementation (concurrent or synchronized)");
+        options.addOption("ep", "evictionPolicy", true, "concurrent cache eviction policy (lru or tinylfu)");
         options.addOption("ts", "timeoutSeconds", true, "timeout limit for order server health check");
+        options.addOption("ms", "maxStaleness", true, "age in milliseconds after which cache entries expire");
+        options.addOption("rw", "refreshWindow", true, "milliseconds before expiry during which cache hits refresh the entry");
+        options.addOption("hm", "handlerMode", true, "request handler mode (blocking or async)");
+        options.addOption("nc", "negativeCacheSize", true, "maximum number of unknown products remembered by the cache");
+        options.addOption("nt", "negativeCacheTtl", true, "milliseconds an unknown product is remembered by the cache");
+        options.addOption("im", "invalidationMode", true, "how cache invalidations are received from the catalog (stream or http)");
+        options.addOption("re", "replica", false, "serve product queries from a local replica of the catalog");
+        options.addOption("oc", "orderCacheBytes", true, "maximum bytes of order lookup responses cached");
+        options.addOption("fr", "followerReads", false, "spread order lookups across the order service followers");
+        options.addOption("hi", "healthInterval", true, "milliseconds between order service health checks");
+        options.addOption("ac", "admissionControl", false, "shed requests beyond adaptive per route concurrency limits");
+        options.addOption("ra", "retryAfter", true, "seconds after which shed requests may be retried");
+        options.addOption("pl", "productsLane", true, "number of threads dedicated to product requests");
+        options.addOption("ol", "ordersLane", true, "number of threads dedicated to order requests");
+        options.addOption("il", "invalidateLane", true, "number of threads dedicated to invalidation requests");
+        options.addOption("lp", "lanePriorities", true, "thread priorities of the products, orders and invalidate lanes");
+        options.addOption("qd", "queryDeadline", true, "milliseconds a catalog query may take");
+        options.addOption("od", "orderDeadline", true, "milliseconds an order request may take across leaders");
+        options.addOption("hq", "hedgeQueries", false, "send catalog queries slower than most a second time");
 
         // Read in command line arguments
         CommandLineParser parser = new DefaultParser();
@@ -47,12 +74,42 @@ public class GatewayServiceServer {
         String host = cmd.getOptionValue("host", "0.0.0.0");
         int port = Integer.parseInt(cmd.getOptionValue("port", "1764"));
         int maxThreads = Integer.parseInt(cmd.getOptionValue("maxThreads", "50"));
+        String httpEngine = cmd.getOptionValue("httpEngine", "jdk");
+        int eventLoops = Integer.parseInt(cmd.getOptionValue("eventLoops", "0"));
+        String executorMode = cmd.getOptionValue("executorMode", ExecutorFactory.POOL_MODE);
         int backlogRequests = Integer.parseInt(cmd.getOptionValue("backlogRequests", "50"));
         String catalogHost = cmd.getOptionValue("catalogHost", "0.0.0.0");
         int catalogPort = Integer.parseInt(cmd.getOptionValue("catalogPort", "1765"));
         boolean testMode = cmd.hasOption("te");
         int cacheSize = Integer.parseInt(cmd.getOptionValue("cacheSize", "0"));
+        String cacheType = cmd.getOptionValue("cacheType", "concurrent");
+        String evictionPolicy = cmd.getOptionValue("evictionPolicy", "lru");
         long timeoutSeconds = Long.parseLong(cmd.getOptionValue("timeoutSeconds", "5"));
+        long maxStaleness = Long.parseLong(cmd.getOptionValue("maxStaleness", "0"));
+        long refreshWindow = Long.parseLong(cmd.getOptionValue("refreshWindow", "0"));
+        boolean asyncMode = cmd.getOptionValue("handlerMode", "blocking").equals("async");
+        int negativeCacheSize = Integer.parseInt(cmd.getOptionValue("negativeCacheSize", "0"));
+        long negativeCacheTtl = Long.parseLong(cmd.getOptionValue("negativeCacheTtl", "5000"));
+        String invalidationMode = cmd.getOptionValue("invalidationMode", "stream");
+        boolean replicaMode = cmd.hasOption("re");
+        long orderCacheBytes = Long.parseLong(cmd.getOptionValue("orderCacheBytes", "0"));
+        boolean followerReads = cmd.hasOption("fr");
+        long healthIntervalMillis = Long.parseLong(cmd.getOptionValue("healthInterval",
+                String.valueOf(OrdersHandler.DEFAULT_HEALTH_INTERVAL_MILLIS)));
+        boolean admissionControl = cmd.hasOption("ac");
+        long retryAfterSeconds = Long.parseLong(cmd.getOptionValue("retryAfter", "1"));
+        int productsLane = Integer.parseInt(cmd.getOptionValue("productsLane", "0"));
+        int ordersLane = Integer.parseInt(cmd.getOptionValue("ordersLane", "0"));
+        int invalidateLane = Integer.parseInt(cmd.getOptionValue("invalidateLane", "1"));
+        String[] lanePriorities = cmd.getOptionValue("lanePriorities", "5,5,10").split(",");
+        int productsPriority = Integer.parseInt(lanePriorities[0]);
+        int ordersPriority = Integer.parseInt(lanePriorities[1]);
+        int invalidatePriority = Integer.parseInt(lanePriorities[2]);
+        long queryDeadlineMillis = Long.parseLong(cmd.getOptionValue("queryDeadline",
+                String.valueOf(ProductsHandler.DEFAULT_QUERY_DEADLINE_MILLIS)));
+        long orderDeadlineMillis = Long.parseLong(cmd.getOptionValue("orderDeadline",
+                String.valueOf(OrdersHandler.DEFAULT_ORDER_DEADLINE_MILLIS)));
+        boolean hedgeQueries = cmd.hasOption("hq");
 
         // Read the dependent service environment variables
         String catalogHostFromEnv = System.getenv("CATALOG_HOST");
@@ -70,7 +127,11 @@ public class GatewayServiceServer {
         // Initialize server
         HttpServer server = null;
         try {
-            server = HttpServer.create(new InetSocketAddress(host, port), backlogRequests);
+            if (httpEngine.equals("netty")) {
+                server = new NettyHttpServer(new InetSocketAddress(host, port), backlogRequests, eventLoops);
+            } else {
+                server = HttpServer.create(new InetSocketAddress(host, port), backlogRequests);
+            }
         } catch (IOException e) {
             System.out.println("Failed to initialize the server");
             e.printStackTrace();
@@ -81,29 +142,176 @@ public class GatewayServiceServer {
         // Read the order service hosts from the conf files
         HashMap<Integer, Address> orderAddresses = OrderServiceNodesReader.readOrderNodes(dockerRun);
 
-        // Initialize orders handler and add mapping
-        OrdersHandler ordersHandler = new OrdersHandler(timeoutSeconds, orderAddresses, testMode);
-        server.createContext("/orders/", ordersHandler);
+        // Initialize stats handler and add mapping
+        StatsHandler statsHandler = new StatsHandler();
+        server.createContext("/stats/", statsHandler);
 
-        // Initialize products handler with or without cache mode and add mapping
-        // Optionally initialize invalidate handler and add mapping
+        // Requests hold a pool thread while in flight unless they are handled asynchronously or on virtual threads,
+        // so every limit of every route then shares one budget that leaves a quarter of the pool free to answer shed
+        // requests with a 503. A route with its own lane holds the lane's threads instead, so its limits share a
+        // budget the size of the lane, and it is shed on the server's executor.
+        boolean poolThreadsHeld = executorMode.equals(ExecutorFactory.POOL_MODE) && !asyncMode;
+        int limiterMaxLimit = poolThreadsHeld ? Math.max(1, maxThreads * 3 / 4) : AdaptiveLimiter.DEFAULT_MAX_LIMIT;
+        Semaphore poolBudget = poolThreadsHeld ? new Semaphore(limiterMaxLimit) : null;
+        int ordersMaxLimit = ordersLane > 0 && !asyncMode ? ordersLane : limiterMaxLimit;
+        Semaphore ordersBudget = ordersLane > 0 && !asyncMode ? new Semaphore(ordersLane) : poolBudget;
+        int productsMaxLimit = productsLane > 0 && !asyncMode ? productsLane : limiterMaxLimit;
+        Semaphore productsBudget = productsLane > 0 && !asyncMode ? new Semaphore(productsLane) : poolBudget;
+
+        // Initialize orders handler with its leader monitor and order cache and add mapping
+        OrderCache orderCache = new OrderCache(orderCacheBytes);
+        if (orderCacheBytes > 0) {
+            statsHandler.register("orders", orderCache::getStats);
+        }
+        OrdersHandler ordersHandler = new OrdersHandler(timeoutSeconds, orderAddresses, healthIntervalMillis,
+                orderDeadlineMillis, orderCache, followerReads, asyncMode, testMode);
+        statsHandler.register("leader", ordersHandler::getLeaderStats);
+        if (followerReads) {
+            statsHandler.register("followerReads", ordersHandler::getFollowerReadStats);
+        }
+        HttpHandler ordersRoute = ordersLane > 0
+                ? withBulkhead(ordersHandler, "orders", ordersLane, ordersPriority, backlogRequests, retryAfterSeconds, statsHandler)
+                : ordersHandler;
+        server.createContext("/orders", new RouteHandler("/orders", admissionControl
+                ? withAdmissionControl(ordersRoute, "orders", true, ordersMaxLimit, ordersBudget, retryAfterSeconds,
+                statsHandler)
+                : ordersRoute));
+
+        // Initialize products handler in replica mode, or with or without cache mode, and add mapping
+        // Optionally initialize invalidate handler and add mapping, and subscribe to the invalidation stream
         ProductsHandler productsHandler;
-        if (cacheSize > 0) {
-            LRUCache cache = new LRUCache(cacheSize);
-            productsHandler = new CachingProductsHandler(catalogHost, catalogPort, cache, testMode);
-            InvalidateHandler invalidateHandler = new InvalidateHandler(cache);
-            server.createContext("/invalidate/", invalidateHandler);
+        if (replicaMode) {
+            ReplicaProductsHandler replicaProductsHandler = new ReplicaProductsHandler(catalogHost, catalogPort,
+                    host + ":" + port, asyncMode, testMode);
+            statsHandler.register("replica", replicaProductsHandler::getReplicaStats);
+            productsHandler = replicaProductsHandler;
+        } else if (cacheSize > 0) {
+            ProductCache cache = createCache(cacheType, evictionPolicy, cacheSize);
+            statsHandler.register("cache", cache::getStats);
+            NegativeCache negativeCache = new NegativeCache(negativeCacheSize, negativeCacheTtl);
+            statsHandler.register("negative", negativeCache::getStats);
+            CachingProductsHandler cachingProductsHandler = new CachingProductsHandler(catalogHost, catalogPort, cache,
+                    maxStaleness, refreshWindow, negativeCache, queryDeadlineMillis, hedgeQueries, asyncMode, testMode);
+            statsHandler.register("refresh", cachingProductsHandler::getRefreshStats);
+            statsHandler.register("coalescing", cachingProductsHandler::getCoalescingStats);
+            productsHandler = cachingProductsHandler;
+            InvalidateHandler invalidateHandler = new InvalidateHandler(cachingProductsHandler);
+            server.createContext("/invalidate/", invalidateLane > 0
+                    ? withBulkhead(invalidateHandler, "invalidate", invalidateLane, invalidatePriority, backlogRequests,
+                    retryAfterSeconds, statsHandler)
+                    : invalidateHandler);
+            if (invalidationMode.equals("stream")) {
+                InvalidationSubscriber invalidationSubscriber = new InvalidationSubscriber(cachingProductsHandler, host + ":" + port);
+                statsHandler.register("invalidation", invalidationSubscriber::getStats);
+                invalidationSubscriber.start();
+            }
         } else  {
-            productsHandler = new ProductsHandler(catalogHost, catalogPort, testMode);
+            productsHandler = new ProductsHandler(catalogHost, catalogPort, queryDeadlineMillis, hedgeQueries, asyncMode,
+                    testMode);
         }
-        server.createContext("/products/", productsHandler);
+        if (hedgeQueries && !replicaMode) {
+            statsHandler.register("hedging", productsHandler::getHedgingStats);
+        }
+        HttpHandler productsRoute = productsLane > 0
+                ? withBulkhead(productsHandler, "products", productsLane, productsPriority, backlogRequests, retryAfterSeconds,
+                statsHandler)
+                : productsHandler;
+        server.createContext("/products", new RouteHandler("/products", admissionControl
+                ? withAdmissionControl(productsRoute, "products", false, productsMaxLimit, productsBudget,
+                retryAfterSeconds, statsHandler)
+                : productsRoute));
 
-        // Set dynamic thread pool executor
-        server.setExecutor(new ThreadPoolExecutor(0, maxThreads,
-                60L, TimeUnit.SECONDS, new SynchronousQueue<>()));
+        // Set dynamic thread pool or virtual thread executor, queueing requests under admission control
+        // so that excess requests reach the admission control handler and are shed rather than dropped,
+        // and recording when each request arrives so that its time in the queue counts towards its latency
+        Executor executor = ExecutorFactory.create(executorMode, maxThreads,
+                admissionControl ? AdaptiveLimiter.DEFAULT_MAX_LIMIT : 0);
+        server.setExecutor(admissionControl ? AdmissionControlHandler.recordingArrival(executor) : executor);
 
         // Start server
         server.start();
         System.out.println("Gateway Service started, listening on port " + port);
     }
+
+    /**
+     * Runs a handler on a lane of threads of its own and registers the statistics of the lane
+     * @param handler The handler run on the lane
+     * @param route The name of the route, used to name the lane
+     * @param threads Number of threads in the lane
+     * @param priority Priority of the lane's threads
+     * @param queueCapacity Maximum number of requests queued in the lane
+     * @param retryAfterSeconds Seconds after which a request rejected by a full lane may be retried
+     * @param statsHandler The stats handler the statistics are registered with
+     * @return The bulkhead handler
+     */
+    private static BulkheadHandler withBulkhead(HttpHandler handler, String route, int threads, int priority,
+                                                int queueCapacity, long retryAfterSeconds, StatsHandler statsHandler) {
+        BulkheadHandler bulkheadHandler = new BulkheadHandler(handler,
+                ExecutorFactory.createLane(route, threads, priority, queueCapacity), retryAfterSeconds);
+        statsHandler.register(route + "Lane", bulkheadHandler::getStats);
+        return bulkheadHandler;
+    }
+
+    /**
+     * Wraps a handler in admission control, with separate limits for queries and for buys within a shared budget,
+     * and registers the statistics of the limits
+     * @param handler The handler requests are admitted to
+     * @param route The name of the route, used to name the limits
+     * @param buys Whether the route takes buys, which are limited separately from queries
+     * @param maxLimit The largest limit of each method
+     * @param budget Budget of requests in flight shared by the limits, and with other routes, null for none
+     * @param retryAfterSeconds Seconds after which a shed request may be retried
+     * @param statsHandler The stats handler the statistics are registered with
+     * @return The admission control handler
+     */
+    private static AdmissionControlHandler withAdmissionControl(HttpHandler handler, String route, boolean buys, int maxLimit,
+                                                                Semaphore budget, long retryAfterSeconds,
+                                                                StatsHandler statsHandler) {
+        Map<String, AdaptiveLimiter> limiters = new LinkedHashMap<>();
+        limiters.put("GET", new AdaptiveLimiter(route + "Queries", maxLimit));
+        if (buys) {
+            limiters.put("POST", new AdaptiveLimiter(route + "Buys", maxLimit));
+        }
+        AdmissionControlHandler admissionControlHandler = new AdmissionControlHandler(handler, limiters, budget, retryAfterSeconds);
+        statsHandler.register(route + "Admission", admissionControlHandler::getStats);
+        return admissionControlHandler;
+    }
+
+    /**
+     * Creates the product cache implementation selected on the command line
+     * @param cacheType The cache implementation, either "concurrent" or "synchronized"
+     * @param evictionPolicy The concurrent cache eviction policy, either "lru" or "tinylfu"
+     * @param cacheSize The maximum number of entries in the cache
+     * @return The product cache
+     */
+    private static ProductCache createCache(String cacheType, String evictionPolicy, int cacheSize) {
+        if (cacheType.equals("synchronized")) {
+            if (!evictionPolicy.equals("lru")) {
+                System.out.println("The synchronized cache only supports lru eviction, ignoring eviction policy " + evictionPolicy);
+            }
+            return new LRUCache(cacheSize);
+        }
+        if (!cacheType.equals("concurrent")) {
+            System.out.println("Unknown cache type " + cacheType + ", using concurrent cache");
+        }
+        return new ConcurrentProductCache(cacheSize, createEvictionPolicy(evictionPolicy, cacheSize));
+    }
+
+    /**
+     * Creates the eviction policy selected on the command line
+     * @param evictionPolicy The eviction policy, either "lru" or "tinylfu"
+     * @param cacheSize The maximum number of entries in the cache
+     * @return The eviction policy
+     */
+    private static EvictionPolicy createEvictionPolicy(String evictionPolicy, int cacheSize) {
+        switch (evictionPolicy) {
+            case "tinylfu":
+                return new TinyLFUEvictionPolicy(cacheSize);
+            case "lru":
+                return new LRUEvictionPolicy(cacheSize);
+            default:
+                System.out.println("Unknown eviction policy " + evictionPolicy + ", using lru");
+                return new LRUEvictionPolicy(cacheSize);
+        }
+    }
 }
@@ -4,35 +4,182 @@ import com.dixon.common.Error;
 import com.dixon.common.ErrorWrapper;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sun.net.httpserver.HttpExchange;
+import io.grpc.Status;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Contains static methods used across several HttpHandler classes
  */
 public class HTTPHandlerUtility {
+    /**
+     * Maximum number of distinct product names in a batch query
+     */
+    protected static final int MAX_BATCH_NAMES = 100;
+
     /**
      * Sends error object back to user in the event of a disallowed http method
      * @param exchange The http exchange object
      * @throws IOException
      */
     protected static void handleUnknownMethodResponse(HttpExchange exchange, ObjectMapper objectMapper) throws IOException {
-        OutputStream outputStream = exchange.getResponseBody();
-
-        // 405 error for method not allowed
-        exchange.sendResponseHeaders(405, 0);
-
         // Build error message
         String errorMessage = exchange.getRequestMethod() + " method not allowed for URL " + exchange.getRequestURI().toString() + ".";
 
-        // Send error object response
+        // Send error object response, 405 error for method not allowed
         Error error = Error.builder().code(405).message(errorMessage).build();
-        outputStream.write(objectMapper.writeValueAsString(ErrorWrapper.builder().error(error).build()).getBytes());
-        outputStream.flush();
+        sendResponse(exchange, 405, objectMapper.writeValueAsBytes(ErrorWrapper.builder().error(error).build()));
+    }
+
+    /**
+     * Sends error object back to user in the event that no route serves the request path
+     * @param exchange The http exchange object
+     * @throws IOException
+     */
+    protected static void handleNotFoundResponse(HttpExchange exchange, ObjectMapper objectMapper) throws IOException {
+        // Send error object response, 404 error for not found
+        Error error = Error.builder().code(404).message("No route for URL " + exchange.getRequestURI().toString() + ".").build();
+        sendResponse(exchange, 404, objectMapper.writeValueAsBytes(ErrorWrapper.builder().error(error).build()));
+    }
+
+    /**
+     * Sends error object back to user in the event of a batch query naming more than MAX_BATCH_NAMES products
+     * @param exchange The http exchange object
+     * @throws IOException
+     */
+    protected static void handleBatchTooLargeResponse(HttpExchange exchange, ObjectMapper objectMapper) throws IOException {
+        // Send error object response, 400 error for bad request
+        Error error = Error.builder().code(400).message("A batch query may name at most " + MAX_BATCH_NAMES + " products.").build();
+        sendResponse(exchange, 400, objectMapper.writeValueAsBytes(ErrorWrapper.builder().error(error).build()));
+    }
+
+    /**
+     * Sends error object back to user in the event that a backend service call failed
+     * @param exchange The http exchange object
+     * @throws IOException
+     */
+    protected static void handleUnavailableResponse(HttpExchange exchange, ObjectMapper objectMapper) throws IOException {
+        // Send error object response, 503 error for service unavailable
+        Error error = Error.builder().code(503).message("Service unavailable for URL " + exchange.getRequestURI().toString() + ".").build();
+        sendResponse(exchange, 503, objectMapper.writeValueAsBytes(ErrorWrapper.builder().error(error).build()));
+    }
+
+    /**
+     * Sends error object back to user in the event that a request ran out of time waiting on a backend service
+     * @param exchange The http exchange object
+     * @throws IOException
+     */
+    protected static void handleTimeoutResponse(HttpExchange exchange, ObjectMapper objectMapper) throws IOException {
+        // Send error object response, 504 error for gateway timeout
+        Error error = Error.builder().code(504).message("Service timed out for URL " + exchange.getRequestURI().toString() + ".").build();
+        sendResponse(exchange, 504, objectMapper.writeValueAsBytes(ErrorWrapper.builder().error(error).build()));
+    }
+
+    /**
+     * Answers the user after a backend service call failed: with a 504 error if the call ran out of time,
+     * with a 503 error if the service failed, and not at all if the call was cancelled because the user disconnected
+     * @param exchange The http exchange object
+     * @param throwable The failure of the call
+     * @throws IOException
+     */
+    protected static void handleFailedCallResponse(HttpExchange exchange, ObjectMapper objectMapper, Throwable throwable) throws IOException {
+        switch (Status.fromThrowable(throwable).getCode()) {
+            case CANCELLED:
+                exchange.close();
+                break;
+            case DEADLINE_EXCEEDED:
+                handleTimeoutResponse(exchange, objectMapper);
+                break;
+            default:
+                handleUnavailableResponse(exchange, objectMapper);
+                break;
+        }
+    }
+
+    /**
+     * Sends error object back to user in the event that a request was shed because its backend is overloaded,
+     * telling the user when to retry
+     * @param exchange The http exchange object
+     * @param retryAfterSeconds Seconds after which the user may retry
+     * @throws IOException
+     */
+    protected static void handleOverloadedResponse(HttpExchange exchange, ObjectMapper objectMapper, long retryAfterSeconds) throws IOException {
+        // Send error object response, 503 error for service unavailable with the time to retry after
+        Error error = Error.builder().code(503).message("Service overloaded for URL " + exchange.getRequestURI().toString() + ", retry later.").build();
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+        sendResponse(exchange, 503, objectMapper.writeValueAsBytes(ErrorWrapper.builder().error(error).build()));
+    }
+
+    /**
+     * Sends a complete JSON response with its content length, rather than chunked, so that the small bodies
+     * the gateway sends go out with little framing and the connection can be reused
+     * @param exchange The http exchange object
+     * @param code The response status code
+     * @param body The serialized response body, empty for no body
+     * @throws IOException
+     */
+    protected static void sendResponse(HttpExchange exchange, int code, byte[] body) throws IOException {
+        // Only a body has a content type
+        if (body.length > 0) {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+        }
+        exchange.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+        OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(body);
         outputStream.close();
     }
 
+    /**
+     * Extracts the product names of a batch query of the form /products?names=a,b,c from the request URI
+     * @param exchange The http exchange object
+     * @return The distinct product names in request order, or null if the request is not a batch query. Names past the
+     * first MAX_BATCH_NAMES + 1 are not collected, so a list longer than MAX_BATCH_NAMES means the query is too large
+     */
+    protected static List<String> getBatchProductNames(HttpExchange exchange) {
+        String path = exchange.getRequestURI().getPath();
+        if (!path.equals("/products") && !path.equals("/products/")) {
+            return null;
+        }
+
+        // Find the names parameter, a missing parameter is a batch query for no products
+        Set<String> names = new LinkedHashSet<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (!parameter.startsWith("names=")) {
+                    continue;
+                }
+                for (String name : parameter.substring("names=".length()).split(",")) {
+                    if (names.size() > MAX_BATCH_NAMES) {
+                        return new ArrayList<>(names);
+                    }
+                    if (!name.isEmpty()) {
+                        names.add(URLDecoder.decode(name, StandardCharsets.UTF_8));
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Checks that a request path is a route's path itself or a path below it, so that a route such as /products
+     * does not also serve /productsX, which the context it is registered on matches by prefix
+     * @param path The request path
+     * @param route The route's path, without a trailing slash
+     * @return Whether the route serves the path
+     */
+    protected static boolean isRoutePath(String path, String route) {
+        return path.startsWith(route) && (path.length() == route.length() || path.charAt(route.length()) == '/');
+    }
+
     /**
      * Extracts product name from the request URI
      * @param exchange The http exchange object
@@ -0,0 +1,313 @@
+package com.dixon.gateway;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.Context;
+import io.grpc.Status;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Cuts the tail latency of idempotent calls by hedging them. A call is sent to a primary endpoint, and if it has not
+ * answered once the 95th percentile latency of recent calls has passed, a second attempt is sent to a secondary
+ * endpoint. Whichever answers first is used and the other is cancelled. Since only the slowest 5% of calls are
+ * hedged, hedging adds about 5% more calls, and as the backend slows down the percentile rises with it, so hedges
+ * do not pile onto an overloaded backend. A call that fails on the primary, other than by running out of time,
+ * is sent to the secondary right away.
+ */
+public class Hedger {
+    /**
+     * Number of recent call latencies the percentile is computed from
+     */
+    private static final int SAMPLES = 256;
+
+    /**
+     * Number of calls between recomputations of the percentile
+     */
+    private static final int RECOMPUTE_INTERVAL = 64;
+
+    /**
+     * Percentile of recent latencies after which a call is hedged
+     */
+    private static final double PERCENTILE = 0.95;
+
+    /**
+     * Thread sending the hedged attempts
+     */
+    private static final ScheduledExecutorService hedgeScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "hedger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Lock guarding the latency samples
+     */
+    private final ReentrantLock samplesLock = new ReentrantLock();
+
+    /**
+     * Ring of recent call latencies in nanoseconds
+     */
+    private final long[] samples = new long[SAMPLES];
+
+    /**
+     * Number of latencies recorded
+     */
+    private long recorded;
+
+    /**
+     * Time in nanoseconds after which a call is hedged, Long.MAX_VALUE until enough latencies are recorded
+     */
+    private volatile long hedgeDelayNanos = Long.MAX_VALUE;
+
+    /**
+     * Number of calls made
+     */
+    private final LongAdder calls = new LongAdder();
+
+    /**
+     * Number of second attempts sent
+     */
+    private final LongAdder hedges = new LongAdder();
+
+    /**
+     * Number of calls answered by the second attempt
+     */
+    private final LongAdder hedgeWins = new LongAdder();
+
+    /**
+     * Makes a hedged call
+     * @param primary The endpoint the call is sent to first
+     * @param secondary The endpoint the second attempt is sent to
+     * @param call Sends the call to an endpoint
+     * @return A future completed with the first answer, or failed if both attempts fail
+     * @param <S> The endpoint type
+     * @param <T> The answer type
+     */
+    public <S, T> CompletableFuture<T> call(S primary, S secondary, Function<S, ListenableFuture<T>> call) {
+        calls.increment();
+        long start = System.nanoTime();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        HedgedCall<S, T> hedgedCall = new HedgedCall<>(secondary, call, result, start);
+
+        ListenableFuture<T> first = call.apply(primary);
+        FutureUtility.toCompletableFuture(first).whenComplete((answer, throwable) -> {
+            if (throwable == null) {
+                if (result.complete(answer)) {
+                    record(System.nanoTime() - start);
+                }
+            } else if (isFinal(throwable)) {
+                result.completeExceptionally(throwable);
+            } else {
+                hedgedCall.firstFailed(throwable);
+            }
+        });
+
+        // The second attempt is started in the caller's context, so it is cancelled along with the first
+        long delay = hedgeDelayNanos;
+        ScheduledFuture<?> timer = delay == Long.MAX_VALUE ? null : hedgeScheduler.schedule(
+                Context.current().wrap(hedgedCall::hedge), delay, TimeUnit.NANOSECONDS);
+        result.whenComplete((answer, throwable) -> {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            first.cancel(true);
+            hedgedCall.cancel();
+        });
+        return result;
+    }
+
+    /**
+     * Gives the call counts and the current hedge delay
+     * @return Map of the statistic names to their values
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("calls", calls.sum());
+        stats.put("hedges", hedges.sum());
+        stats.put("hedgeWins", hedgeWins.sum());
+        long delay = hedgeDelayNanos;
+        stats.put("hedgeDelayMicros", delay == Long.MAX_VALUE ? -1L : TimeUnit.NANOSECONDS.toMicros(delay));
+        return stats;
+    }
+
+    /**
+     * Gives whether a failed call must not be sent again: both attempts share the call's deadline and context,
+     * so a second attempt would also run out of time or be cancelled
+     * @param throwable The failure of the call
+     * @return True if the call ran out of time or was cancelled
+     */
+    private static boolean isFinal(Throwable throwable) {
+        Status.Code code = Status.fromThrowable(throwable).getCode();
+        return code == Status.Code.DEADLINE_EXCEEDED || code == Status.Code.CANCELLED;
+    }
+
+    /**
+     * Records the latency of a call and recomputes the percentile periodically
+     * @param latencyNanos The latency in nanoseconds
+     */
+    private void record(long latencyNanos) {
+        samplesLock.lock();
+        try {
+            samples[(int) (recorded++ % SAMPLES)] = latencyNanos;
+            if (recorded % RECOMPUTE_INTERVAL == 0) {
+                long[] sorted = Arrays.copyOf(samples, (int) Math.min(recorded, SAMPLES));
+                Arrays.sort(sorted);
+                hedgeDelayNanos = sorted[(int) (PERCENTILE * (sorted.length - 1))];
+            }
+        } finally {
+            samplesLock.unlock();
+        }
+    }
+
+    /**
+     * The second attempt of a hedged call, sent at most once
+     * @param <S> The endpoint type
+     * @param <T> The answer type
+     */
+    private class HedgedCall<S, T> {
+        /**
+         * The endpoint the second attempt is sent to
+         */
+        private final S secondary;
+
+        /**
+         * Sends the call to an endpoint
+         */
+        private final Function<S, ListenableFuture<T>> call;
+
+        /**
+         * The future of the hedged call's answer
+         */
+        private final CompletableFuture<T> result;
+
+        /**
+         * System.nanoTime() value at which the call was made
+         */
+        private final long start;
+
+        /**
+         * Lock guarding the second attempt
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * The second attempt, null until it is sent
+         */
+        private ListenableFuture<T> attempt;
+
+        /**
+         * The failure of the first attempt, null unless it failed
+         */
+        private Throwable firstFailure;
+
+        /**
+         * Whether the second attempt failed
+         */
+        private boolean attemptFailed;
+
+        /**
+         * Whether the call is over and the second attempt may no longer be sent
+         */
+        private boolean closed;
+
+        /**
+         * Instantiates a HedgedCall
+         * @param secondary The endpoint the second attempt is sent to
+         * @param call Sends the call to an endpoint
+         * @param result The future of the hedged call's answer
+         * @param start System.nanoTime() value at which the call was made
+         */
+        private HedgedCall(S secondary, Function<S, ListenableFuture<T>> call, CompletableFuture<T> result, long start) {
+            this.secondary = secondary;
+            this.call = call;
+            this.result = result;
+            this.start = start;
+        }
+
+        /**
+         * Sends the second attempt because the first is slow, unless it was already sent or the call is over
+         */
+        private void hedge() {
+            lock.lock();
+            try {
+                if (attempt == null && !closed) {
+                    send();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Records that the first attempt failed, sending the second attempt right away if it was not sent yet,
+         * and failing the call if the second attempt failed too
+         * @param throwable The failure of the first attempt
+         */
+        private void firstFailed(Throwable throwable) {
+            lock.lock();
+            try {
+                firstFailure = throwable;
+                if (attempt == null && !closed) {
+                    send();
+                } else if (attemptFailed) {
+                    result.completeExceptionally(throwable);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Sends the second attempt, must be called holding the lock
+         */
+        private void send() {
+            hedges.increment();
+            attempt = call.apply(secondary);
+            FutureUtility.toCompletableFuture(attempt).whenComplete((answer, throwable) -> {
+                if (throwable == null) {
+                    if (result.complete(answer)) {
+                        hedgeWins.increment();
+                        record(System.nanoTime() - start);
+                    }
+                    return;
+                }
+
+                // The call only fails once both attempts have failed, with the failure of the first
+                lock.lock();
+                try {
+                    attemptFailed = true;
+                    if (firstFailure != null) {
+                        result.completeExceptionally(firstFailure);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            });
+        }
+
+        /**
+         * Cancels the second attempt if it is still running, and prevents it from being sent
+         */
+        private void cancel() {
+            lock.lock();
+            try {
+                closed = true;
+                if (attempt != null) {
+                    attempt.cancel(true);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
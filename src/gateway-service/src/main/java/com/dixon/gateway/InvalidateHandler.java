@@ -24,15 +24,15 @@ public class InvalidateHandler implements HttpHandler {
     private final ObjectMapper objectMapper;
 
     /**
-     * The gateway service LRU cache
+     * The gateway service caching products handler
      */
-    private final LRUCache cache;
+    private final CachingProductsHandler productsHandler;
 
     /**
      * Instantiates an InvalidateHandler
-     * @param cache the gateway service LRU cache
+     * @param productsHandler the gateway service caching products handler, which owns the cache
      */
-    public InvalidateHandler(LRUCache cache) {
+    public InvalidateHandler(CachingProductsHandler productsHandler) {
         super();
         // Create object mapper
         JsonFactory jsonFactory = new JsonFactory();
@@ -40,8 +40,8 @@ public class InvalidateHandler implements HttpHandler {
         jsonFactory.configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
         this.objectMapper = new ObjectMapper(jsonFactory);
 
-        // Initialize cache
-        this.cache = cache;
+        // Initialize products handler
+        this.productsHandler = productsHandler;
     }
 
     /**
@@ -58,6 +58,9 @@ public class InvalidateHandler implements HttpHandler {
         }
 
         String productName = HTTPHandlerUtility.getProductName(exchange);
-        cache.invalidate(productName);
+        productsHandler.invalidate(productName);
+
+        // Acknowledge with an empty response so the catalog service's connection is released
+        HTTPHandlerUtility.sendResponse(exchange, 204, new byte[0]);
     }
 }
@@ -0,0 +1,61 @@
+package com.dixon.gateway;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the invalidations of each product, so that a catalog query can tell whether its product was invalidated
+ * while it was in flight and its response must not be cached.
+ * Products are spread over a fixed number of counters by name hash, so the memory used does not grow with the number
+ * of products. Products sharing a counter only cause extra responses to be left uncached, never a stale one to be kept.
+ */
+public class InvalidationGenerations {
+    /**
+     * Number of per-product counters, a power of two
+     */
+    private static final int STRIPES = 1024;
+
+    /**
+     * Number of invalidations of the products of each stripe
+     */
+    private final AtomicLongArray stripes = new AtomicLongArray(STRIPES);
+
+    /**
+     * Number of invalidations of every product at once
+     */
+    private final AtomicLong all = new AtomicLong();
+
+    /**
+     * Gives the generation of a product, to be read before its catalog query starts and compared once it completes
+     * @param productName The product name
+     * @return The generation, which only grows and changes whenever the product is invalidated
+     */
+    public long get(String productName) {
+        return all.get() + stripes.get(stripe(productName));
+    }
+
+    /**
+     * Moves a product to a new generation, to be called when the product is invalidated
+     * @param productName The product name
+     */
+    public void invalidate(String productName) {
+        stripes.incrementAndGet(stripe(productName));
+    }
+
+    /**
+     * Moves every product to a new generation, to be called when every product is invalidated
+     */
+    public void invalidateAll() {
+        all.incrementAndGet();
+    }
+
+    /**
+     * Gives the counter index of a product
+     * @param productName The product name
+     * @return The index
+     */
+    private static int stripe(String productName) {
+        int hash = productName.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+}
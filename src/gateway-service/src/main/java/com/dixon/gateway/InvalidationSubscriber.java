@@ -0,0 +1,174 @@
+package com.dixon.gateway;
+
+import com.dixon.CatalogServiceGrpc;
+import com.dixon.InvalidationEvent;
+import com.dixon.InvalidationSubscription;
+import io.grpc.stub.StreamObserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Subscribes to the catalog service's invalidation stream and invalidates the cache entries of the products
+ * whose stock changed. Events are expected to be numbered consecutively from 0. When a number is skipped,
+ * some changes were missed, so every cache entry is invalidated. The subscription is reopened after the stream
+ * fails, and the whole cache is invalidated once it is reestablished, since changes made while disconnected
+ * were not received.
+ */
+public class InvalidationSubscriber {
+    /**
+     * Delay in milliseconds before the first attempt to reopen a failed subscription
+     */
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 100;
+
+    /**
+     * Maximum delay in milliseconds between attempts to reopen a failed subscription
+     */
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 5000;
+
+    /**
+     * The caching products handler, which owns the cache
+     */
+    private final CachingProductsHandler productsHandler;
+
+    /**
+     * gRPC async stub to open the invalidation stream, waiting for the catalog service to be reachable
+     */
+    private final CatalogServiceGrpc.CatalogServiceStub catalogAsyncStub;
+
+    /**
+     * The subscription request, naming this gateway
+     */
+    private final InvalidationSubscription subscription;
+
+    /**
+     * Thread reopening failed subscriptions after a delay
+     */
+    private final ScheduledExecutorService reconnectScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "invalidation-reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Delay in milliseconds before the next attempt to reopen the subscription, doubled after every failed attempt
+     */
+    private volatile long reconnectDelayMillis = MIN_RECONNECT_DELAY_MILLIS;
+
+    /**
+     * Number of invalidation events received
+     */
+    private final LongAdder events = new LongAdder();
+
+    /**
+     * Number of product invalidations received
+     */
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * Number of times a skipped sequence number caused the whole cache to be invalidated
+     */
+    private final LongAdder gaps = new LongAdder();
+
+    /**
+     * Number of times the subscription was established
+     */
+    private final LongAdder subscriptions = new LongAdder();
+
+    /**
+     * Number of times the stream failed or was ended by the catalog service
+     */
+    private final LongAdder disconnects = new LongAdder();
+
+    /**
+     * Instantiates an InvalidationSubscriber, which subscribes once started
+     * @param productsHandler The caching products handler, whose channel to the catalog service is used
+     * @param subscriberName Name identifying this gateway to the catalog service
+     */
+    public InvalidationSubscriber(CachingProductsHandler productsHandler, String subscriberName) {
+        this.productsHandler = productsHandler;
+        this.catalogAsyncStub = CatalogServiceGrpc.newStub(productsHandler.catalogChannel).withWaitForReady();
+        this.subscription = InvalidationSubscription.newBuilder().setSubscriberName(subscriberName).build();
+    }
+
+    /**
+     * Opens the subscription
+     */
+    public void start() {
+        catalogAsyncStub.subscribeInvalidations(subscription, new EventObserver());
+    }
+
+    /**
+     * Gives the event, invalidation, gap and connection counts of the subscription
+     * @return Map of the statistic names to their values
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("events", events.sum());
+        stats.put("invalidations", invalidations.sum());
+        stats.put("gaps", gaps.sum());
+        stats.put("subscriptions", subscriptions.sum());
+        stats.put("disconnects", disconnects.sum());
+        return stats;
+    }
+
+    /**
+     * Reopens the subscription after the current delay, and doubles the delay for the next failure
+     */
+    private void reconnect() {
+        disconnects.increment();
+        long delay = reconnectDelayMillis;
+        reconnectDelayMillis = Math.min(delay * 2, MAX_RECONNECT_DELAY_MILLIS);
+        reconnectScheduler.schedule(this::start, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Receives the events of one subscription, which gRPC delivers one at a time
+     */
+    private class EventObserver implements StreamObserver<InvalidationEvent> {
+        /**
+         * Sequence number of the next expected event
+         */
+        private long expectedSequenceNumber;
+
+        @Override
+        public void onNext(InvalidationEvent event) {
+            events.increment();
+
+            // Event 0 confirms the subscription, flush whatever changed while it was not established
+            if (event.getSequenceNumber() == 0) {
+                subscriptions.increment();
+                reconnectDelayMillis = MIN_RECONNECT_DELAY_MILLIS;
+                productsHandler.invalidateAll();
+                expectedSequenceNumber = 1;
+                return;
+            }
+
+            // Flush everything if events were dropped, the event's own names are covered by the flush
+            if (event.getSequenceNumber() != expectedSequenceNumber) {
+                gaps.increment();
+                productsHandler.invalidateAll();
+            } else {
+                for (String productName : event.getNamesList()) {
+                    productsHandler.invalidate(productName);
+                }
+                invalidations.add(event.getNamesCount());
+            }
+            expectedSequenceNumber = event.getSequenceNumber() + 1;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            reconnect();
+        }
+
+        @Override
+        public void onCompleted() {
+            reconnect();
+        }
+    }
+}
@@ -2,11 +2,15 @@ package com.dixon.gateway;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A Custom implementation of an LRU cache, containing product stock and price data for recently queried items
+ * A Custom implementation of an LRU cache, containing product stock and price data for recently queried items.
+ * Every method holds a single lock, which is a ReentrantLock rather than a monitor so that virtual threads
+ * waiting on the cache do not pin their carrier threads.
  */
-public class LRUCache {
+public class LRUCache implements ProductCache {
     /**
      * Hashmap to access product data with String product name key
      */
@@ -22,6 +26,21 @@ public class LRUCache {
      */
     private int size;
 
+    /**
+     * Number of lookups that found an entry
+     */
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * Number of lookups that did not find an entry
+     */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Lock guarding the hashmap and queue
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
     /**
      * Instantiates a new LRUCache using the specified size
      * @param size
@@ -38,42 +57,67 @@ public class LRUCache {
      * @return The data object containing the product stock and price information if it exists in the cache,
      * else returns null
      */
-    public synchronized Data get(String item) {
-        // Get data
-        LRUNode node = hashMap.get(item);
-        if (node == null) {
-            return null;
-        }
+    @Override
+    public Data get(String item) {
+        LRUNode node = getNode(item);
+        return node == null ? null : node.getData();
+    }
 
-        // Move accessed node to front of queue
-        queue.moveFront(node);
-        return node.getData();
+    /**
+     * Retrieves the node holding the data for the specified product if it exists in the cache
+     * @param item The desired product
+     * @return The node containing the product data if it exists in the cache, else returns null
+     */
+    @Override
+    public LRUNode getNode(String item) {
+        lock.lock();
+        try {
+            // Get data
+            LRUNode node = hashMap.get(item);
+            if (node == null) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+
+            // Move accessed node to front of queue
+            queue.moveFront(node);
+            return node;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * Adds new data to the cache
      * @param data The data to be added to the cache
      */
-    public synchronized void put(Data data) {
+    @Override
+    public void put(Data data) {
         LRUNode node;
         String item = data.getName();
 
-        // If item is already in cache, just update quantity and move it to front
-        node = hashMap.get(item);
-        if (node != null) {
-            node.setData(data);
-            queue.moveFront(node);
-            return;
-        }
+        lock.lock();
+        try {
+            // If item is already in cache, just update quantity and move it to front
+            node = hashMap.get(item);
+            if (node != null) {
+                node.setData(data);
+                queue.moveFront(node);
+                return;
+            }
 
-        // Item is not in cache, create and add new node
-        node = new LRUNode(data);
-        hashMap.put(item, node);
-        queue.enqueue(node);
+            // Item is not in cache, create and add new node
+            node = new LRUNode(data);
+            hashMap.put(item, node);
+            queue.enqueue(node);
 
-        // Evict least recently used data if cache is full
-        if (hashMap.size() > size) {
-            hashMap.remove(queue.dequeue().getData().getName());
+            // Evict least recently used data if cache is full
+            if (hashMap.size() > size) {
+                hashMap.remove(queue.dequeue().getData().getName());
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -81,12 +125,53 @@ public class LRUCache {
      * Invalidates an item, removing it from the cache
      * @param item The item to be invalidated
      */
-    public synchronized void invalidate(String item) {
-        LRUNode node = hashMap.remove(item);
-        if (node == null) {
-            return;
+    @Override
+    public void invalidate(String item) {
+        lock.lock();
+        try {
+            LRUNode node = hashMap.remove(item);
+            if (node == null) {
+                return;
+            }
+            queue.evict(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Invalidates every item, emptying the cache
+     */
+    @Override
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            hashMap.clear();
+            queue = new LRUQueue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives the hit and miss counts of the cache
+     * @return The current cache statistics
+     */
+    @Override
+    public CacheStats getStats() {
+        lock.lock();
+        try {
+            return CacheStats.builder()
+                    .type("synchronized")
+                    .policy("lru")
+                    .capacity(size)
+                    .size(hashMap.size())
+                    .hits(hits.sum())
+                    .misses(misses.sum())
+                    .build();
+        } finally {
+            lock.unlock();
         }
-        queue.evict(node);
     }
 
     /**
@@ -0,0 +1,81 @@
+package com.dixon.gateway;
+
+/**
+ * Least recently used eviction policy, evicting the node at the end of a single LRUQueue
+ */
+public class LRUEvictionPolicy implements EvictionPolicy {
+    /**
+     * LRU queue to maintain the least recently used order
+     */
+    private final LRUQueue queue = new LRUQueue();
+
+    /**
+     * Maximum number of nodes
+     */
+    private final int capacity;
+
+    /**
+     * Current number of nodes
+     */
+    private int size;
+
+    /**
+     * Instantiates a new LRUEvictionPolicy
+     * @param capacity Maximum number of nodes in the cache
+     */
+    public LRUEvictionPolicy(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Gives the name of the policy
+     * @return The policy name
+     */
+    @Override
+    public String getName() {
+        return "lru";
+    }
+
+    /**
+     * Moves an accessed node to the front of the queue
+     * @param node The accessed node
+     */
+    @Override
+    public void onAccess(LRUNode node) {
+        queue.moveFront(node);
+    }
+
+    /**
+     * Adds a new node to the front of the queue, evicting the least recently used node if the cache is full
+     * @param node The new node
+     * @return The least recently used node if the cache is over capacity, else null
+     */
+    @Override
+    public LRUNode onInsert(LRUNode node) {
+        queue.enqueue(node);
+        if (++size > capacity) {
+            size--;
+            return queue.dequeue();
+        }
+        return null;
+    }
+
+    /**
+     * Removes a node from the queue
+     * @param node The removed node
+     */
+    @Override
+    public void onRemove(LRUNode node) {
+        queue.evict(node);
+        size--;
+    }
+
+    /**
+     * Gives the string representation of an LRUEvictionPolicy
+     * @return String representation of an LRUEvictionPolicy
+     */
+    @Override
+    public String toString() {
+        return queue.toString();
+    }
+}
@@ -3,6 +3,8 @@ package com.dixon.gateway;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.function.Function;
+
 /**
  * A node in an LRUCache containing product stock and price data
  */
@@ -20,10 +22,28 @@ public class LRUNode {
     private LRUNode last;
 
     /**
-     * Data object containing product stock and price data
+     * Data object containing product stock and price data,
+     * volatile since concurrent caches read it without holding a lock
+     */
+    @Getter
+    private volatile Data data;
+
+    /**
+     * Time in nanoseconds at which the data was loaded from the catalog service
+     */
+    @Getter
+    private volatile long loadTime;
+
+    /**
+     * Response body encoding the data, null until first requested
+     */
+    private volatile EncodedResponse response;
+
+    /**
+     * Region of the cache the node is held in, used by segmented eviction policies
      */
     @Getter @Setter
-    private Data data;
+    private CacheRegion region;
 
     /**
      * Instantiates a new LRUNode
@@ -32,9 +52,38 @@ public class LRUNode {
     public LRUNode(Data data){
         this.next = null;
         this.last = null;
+        this.loadTime = System.nanoTime();
+        this.data = data;
+    }
+
+    /**
+     * Replaces the data held by this node and resets its load time
+     * @param data the new data
+     */
+    public void setData(Data data) {
+        this.loadTime = System.nanoTime();
         this.data = data;
     }
 
+    /**
+     * Gives the response body encoding the node's current data, encoding it only on the first call after
+     * the data changes so that cache hits send stored bytes
+     * @param encoder Encodes data into a response body
+     * @return The response body
+     */
+    public byte[] getResponse(Function<Data, byte[]> encoder) {
+        Data current = data;
+        EncodedResponse encoded = response;
+        if (encoded != null && encoded.data == current) {
+            return encoded.body;
+        }
+
+        // Data changed since it was last encoded, a concurrent change is caught by the next call
+        byte[] body = encoder.apply(current);
+        response = new EncodedResponse(current, body);
+        return body;
+    }
+
     /**
      * Gives the string representation of an LRUNode
      * @return String representation of an LRUNode
@@ -57,4 +106,24 @@ public class LRUNode {
         }
         return "| " + last + " <- " + data.toString() + " -> " + next + " |";
     }
+
+    /**
+     * A response body and the data it was encoded from
+     */
+    private static final class EncodedResponse {
+        /**
+         * The data the body was encoded from
+         */
+        private final Data data;
+
+        /**
+         * The encoded response body
+         */
+        private final byte[] body;
+
+        private EncodedResponse(Data data, byte[] body) {
+            this.data = data;
+            this.body = body;
+        }
+    }
 }
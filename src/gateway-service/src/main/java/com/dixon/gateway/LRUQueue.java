@@ -51,6 +51,7 @@ public class LRUQueue {
      */
     public void enqueue(LRUNode node) {
         node.setNext(head);
+        node.setLast(null);
         if (head != null) {
             head.setLast(node);
         }
@@ -67,10 +68,23 @@ public class LRUQueue {
     public LRUNode dequeue() {
         LRUNode evictedNode = tail;
         tail = tail.getLast();
-        tail.setNext(null);
+        // Check if node was only node in queue, if so head and tail should be null
+        if (tail == null) {
+            head = null;
+        } else {
+            tail.setNext(null);
+        }
         return evictedNode;
     }
 
+    /**
+     * Gives the node at the end of the queue without removing it
+     * @return The least recently used node, or null if the queue is empty
+     */
+    public LRUNode peekTail() {
+        return tail;
+    }
+
     /**
      * Evicts a node from the queue
      * @param node The node to be evicted
@@ -0,0 +1,285 @@
+package com.dixon.gateway;
+
+import com.dixon.HealthRequest;
+import com.dixon.LeaderAssignment;
+import com.dixon.OrderServiceGrpc;
+import com.dixon.common.Address;
+import io.grpc.Context;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Keeps track of the order service leader. Every node is health checked in parallel at a fixed interval over a
+ * long lived channel, with a deadline of one interval. When the leader fails consecutive health checks, or a request
+ * to it fails, a new leader is elected from a fresh round of parallel health checks: the online node with the highest id.
+ * An election therefore takes at most one health check deadline, however many nodes are offline, and at most one
+ * election runs at a time, which every request that saw the failed leader waits on together.
+ */
+public class LeaderMonitor {
+    /**
+     * Number of health checks the leader must fail in a row before it is replaced, so a single slow answer
+     * does not cause a failover
+     */
+    private static final int FAILURES_BEFORE_FAILOVER = 2;
+
+    /**
+     * Every order service node, in descending id order so the first online node is the leader
+     */
+    private final List<OrderNodeClient> nodes = new ArrayList<>();
+
+    /**
+     * Time in milliseconds between health checks, also the deadline of each health check
+     */
+    private final long intervalMillis;
+
+    /**
+     * Thread health checking the nodes
+     */
+    private final ScheduledExecutorService monitorScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "leader-monitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Lock guarding the start of elections
+     */
+    private final ReentrantLock electionLock = new ReentrantLock();
+
+    /**
+     * The current leader, null until the first election
+     */
+    private volatile OrderNodeClient leader;
+
+    /**
+     * The election in progress, or null if there is none
+     */
+    private CompletableFuture<OrderNodeClient> election;
+
+    /**
+     * Number of elections that changed the leader
+     */
+    private final LongAdder elections = new LongAdder();
+
+    /**
+     * Number of leaders replaced because they failed health checks, before a request failed on them
+     */
+    private final LongAdder proactiveFailovers = new LongAdder();
+
+    /**
+     * Number of elections that found no online node
+     */
+    private final LongAdder failedElections = new LongAdder();
+
+    /**
+     * Instantiates a LeaderMonitor, opening a channel to every node
+     * @param orderAddresses Maps the id's of the order service instances to their addresses
+     * @param intervalMillis Time in milliseconds between health checks, also the deadline of each health check
+     */
+    public LeaderMonitor(HashMap<Integer, Address> orderAddresses, long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+        orderAddresses.forEach((id, address) -> nodes.add(new OrderNodeClient(id, address)));
+        nodes.sort(Comparator.comparingInt(OrderNodeClient::getId).reversed());
+    }
+
+    /**
+     * Elects the first leader, waiting up to the given time for the nodes to come online, and starts health checking
+     * the nodes. Exits if no node comes online, since the gateway cannot take orders.
+     * @param timeoutSeconds Time in seconds to wait for the nodes to come online
+     */
+    public void start(long timeoutSeconds) {
+        System.out.println("Electing a new leader Order Service...");
+        FutureUtility.join(checkHealth(TimeUnit.SECONDS.toMillis(timeoutSeconds), true));
+        try {
+            electionLocked(this::chooseLeader);
+        } catch (IllegalStateException e) {
+            System.out.println("Exiting gracefully.");
+            System.exit(0);
+        }
+        monitorScheduler.scheduleWithFixedDelay(this::monitor, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gives the current leader
+     * @return The leader
+     */
+    public OrderNodeClient getLeader() {
+        return leader;
+    }
+
+    /**
+     * Gives every order service node
+     * @return The nodes, in descending id order
+     */
+    public List<OrderNodeClient> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Replaces a leader a request failed on, joining the election in progress if there is one
+     * @param failedLeader The leader the request failed on
+     * @return A future completed with the new leader, which is the failed leader if it is still the online node
+     * with the highest id, or failed if no node is online
+     */
+    public CompletableFuture<OrderNodeClient> replaceLeader(OrderNodeClient failedLeader) {
+        electionLock.lock();
+        try {
+            // The leader was already replaced since the request was sent
+            if (leader != failedLeader) {
+                return CompletableFuture.completedFuture(leader);
+            }
+            if (election != null) {
+                return election;
+            }
+            System.out.println("Electing a new leader Order Service...");
+
+            // The election is shared by every request that saw the failed leader, so it is detached from the
+            // context of the request that started it and not cancelled if that request's client disconnects
+            Context detached = Context.current().fork();
+            Context previous = detached.attach();
+            CompletableFuture<OrderNodeClient> newElection;
+            try {
+                newElection = checkHealth(intervalMillis, false).thenApply(ignored -> electionLocked(this::chooseLeader));
+            } finally {
+                detached.detach(previous);
+            }
+
+            // The election may already be over if every health check failed right away
+            election = newElection;
+            newElection.whenComplete((newLeader, throwable) -> {
+                electionLock.lock();
+                election = null;
+                electionLock.unlock();
+            });
+            return newElection;
+        } finally {
+            electionLock.unlock();
+        }
+    }
+
+    /**
+     * Gives the election counts and the current leader
+     * @return Map of the statistic names to their values
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        OrderNodeClient currentLeader = leader;
+        stats.put("leaderId", currentLeader == null ? -1L : currentLeader.getId());
+        stats.put("elections", elections.sum());
+        stats.put("proactiveFailovers", proactiveFailovers.sum());
+        stats.put("failedElections", failedElections.sum());
+        return stats;
+    }
+
+    /**
+     * Health checks every node and replaces the leader if it failed too many health checks in a row
+     * while another node is online
+     */
+    private void monitor() {
+        FutureUtility.join(checkHealth(intervalMillis, false));
+        OrderNodeClient currentLeader = leader;
+        if (currentLeader.getConsecutiveFailures() < FAILURES_BEFORE_FAILOVER
+                || nodes.stream().noneMatch(OrderNodeClient::isHealthy)) {
+            return;
+        }
+        OrderNodeClient newLeader = replaceLeader(currentLeader).exceptionally(throwable -> null).join();
+        if (newLeader != null && newLeader != currentLeader) {
+            proactiveFailovers.increment();
+        }
+    }
+
+    /**
+     * Health checks every node in parallel, recording the result of each check on its node
+     * @param deadlineMillis Time in milliseconds each node has to answer
+     * @param waitForReady Whether a check waits for its node's channel to connect instead of failing right away
+     * @return A future completed once every node has answered or missed its deadline
+     */
+    private CompletableFuture<Void> checkHealth(long deadlineMillis, boolean waitForReady) {
+        HealthRequest request = HealthRequest.newBuilder().setMessage("Are you online?").build();
+        CompletableFuture<?>[] checks = new CompletableFuture<?>[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            OrderNodeClient node = nodes.get(i);
+            OrderServiceGrpc.OrderServiceFutureStub stub = node.getFutureStub().withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS);
+            if (waitForReady) {
+                stub = stub.withWaitForReady();
+            }
+            checks[i] = FutureUtility.toCompletableFuture(stub.checkHealth(request)).handle((response, throwable) -> {
+                if (throwable != null) {
+                    node.recordUnhealthy();
+                } else {
+                    node.recordHealthy(response.getMaxOrderNumber());
+                }
+                return null;
+            });
+        }
+        return CompletableFuture.allOf(checks);
+    }
+
+    /**
+     * Makes the online node with the highest id the leader and informs the online nodes of the assignment,
+     * must be called holding the election lock
+     * @return The leader
+     * @throws IllegalStateException If no node is online
+     */
+    private OrderNodeClient chooseLeader() {
+        OrderNodeClient newLeader = null;
+        for (OrderNodeClient node : nodes) {
+            if (node.isHealthy()) {
+                newLeader = node;
+                break;
+            }
+        }
+        if (newLeader == null) {
+            failedElections.increment();
+            System.out.println("No active order service found.");
+            throw new IllegalStateException("No active order service found");
+        }
+        if (newLeader == leader) {
+            return newLeader;
+        }
+
+        leader = newLeader;
+        elections.increment();
+        System.out.println("Elected a new leader Order Service with id " + newLeader.getId());
+
+        // Notify online nodes of assignment without waiting for their answers
+        LeaderAssignment assignment = LeaderAssignment.newBuilder()
+                .setId(newLeader.getId())
+                .setHost(newLeader.getAddress().getHost())
+                .setPort(newLeader.getAddress().getPort())
+                .build();
+        for (OrderNodeClient node : nodes) {
+            if (node.isHealthy()) {
+                node.getFutureStub().withDeadlineAfter(intervalMillis, TimeUnit.MILLISECONDS).assignLeader(assignment);
+            }
+        }
+        return newLeader;
+    }
+
+    /**
+     * Runs an action holding the election lock
+     * @param action The action
+     * @return The result of the action
+     * @param <T> The result type
+     */
+    private <T> T electionLocked(Supplier<T> action) {
+        electionLock.lock();
+        try {
+            return action.get();
+        } finally {
+            electionLock.unlock();
+        }
+    }
+}
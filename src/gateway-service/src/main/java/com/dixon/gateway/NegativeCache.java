@@ -0,0 +1,185 @@
+package com.dixon.gateway;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of the serialized error responses for products the catalog service reported as nonexistent,
+ * so that repeated queries for unknown products are answered without a catalog query or serialization.
+ * Entries expire after a fixed time to live, and the oldest entries are dropped once the cache is full.
+ */
+public class NegativeCache {
+    /**
+     * An error response and the time it stops being served
+     */
+    private static final class Entry {
+        /**
+         * The unknown product name
+         */
+        private final String productName;
+
+        /**
+         * The error message returned by the catalog service
+         */
+        private final String errorMessage;
+
+        /**
+         * The serialized error response
+         */
+        private final byte[] errorResponse;
+
+        /**
+         * System.nanoTime() value at which the entry expires
+         */
+        private final long expiresAt;
+
+        private Entry(String productName, String errorMessage, byte[] errorResponse, long expiresAt) {
+            this.productName = productName;
+            this.errorMessage = errorMessage;
+            this.errorResponse = errorResponse;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Maps each unknown product name to its entry
+     */
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Entries in insertion order, which is also expiry order since every entry has the same time to live
+     */
+    private final ConcurrentLinkedQueue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of entries in the insertion order queue, tracked separately since the queue's size is not constant time
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * Maximum number of entries, 0 if negative caching is disabled
+     */
+    private final int maxSize;
+
+    /**
+     * Time to live of an entry in nanoseconds
+     */
+    private final long ttlNanos;
+
+    /**
+     * Number of queries answered from the cache
+     */
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * Number of entries removed because the product was added to the catalog
+     */
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * Instantiates a new NegativeCache
+     * @param maxSize Maximum number of entries, 0 to disable negative caching
+     * @param ttlMillis Time to live of an entry in milliseconds
+     */
+    public NegativeCache(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Retrieves the error response for a product if it is cached and has not expired
+     * @param productName The product name
+     * @return The serialized error response, or null if the product is not known to be missing from the catalog
+     */
+    public byte[] get(String productName) {
+        Entry entry = getEntry(productName);
+        return entry == null ? null : entry.errorResponse;
+    }
+
+    /**
+     * Retrieves the catalog error message for a product if it is cached and has not expired
+     * @param productName The product name
+     * @return The error message, or null if the product is not known to be missing from the catalog
+     */
+    public String getErrorMessage(String productName) {
+        Entry entry = getEntry(productName);
+        return entry == null ? null : entry.errorMessage;
+    }
+
+    /**
+     * Retrieves a product's entry if it has not expired, counting a hit
+     * @param productName The product name
+     * @return The entry, or null if the product is not cached or its entry has expired
+     */
+    private Entry getEntry(String productName) {
+        Entry entry = entries.get(productName);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.expiresAt >= 0) {
+            entries.remove(productName, entry);
+            return null;
+        }
+        hits.increment();
+        return entry;
+    }
+
+    /**
+     * Records that a product does not exist in the catalog, dropping the oldest entries if the cache is full
+     * @param productName The product name
+     * @param errorMessage The error message returned by the catalog service
+     * @param errorResponse The serialized error response
+     */
+    public void put(String productName, String errorMessage, byte[] errorResponse) {
+        if (maxSize <= 0) {
+            return;
+        }
+        Entry entry = new Entry(productName, errorMessage, errorResponse, System.nanoTime() + ttlNanos);
+        entries.put(productName, entry);
+        insertionOrder.add(entry);
+        queued.incrementAndGet();
+
+        // The queue may hold entries already replaced or removed, which are discarded as they reach the head
+        Entry oldest;
+        while ((entries.size() > maxSize || queued.get() > 2 * maxSize)
+                && (oldest = insertionOrder.poll()) != null) {
+            queued.decrementAndGet();
+            entries.remove(oldest.productName, oldest);
+        }
+    }
+
+    /**
+     * Removes a product's entry, used when the catalog reports a change to the product and so evidently has it
+     * @param productName The product name
+     */
+    public void invalidate(String productName) {
+        if (entries.remove(productName) != null) {
+            invalidations.increment();
+        }
+    }
+
+    /**
+     * Removes every entry, used when the gateway may have missed changes to the catalog
+     */
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    /**
+     * Gives the size, hit count and invalidation count of the cache
+     * @return Map of the statistic names to their values
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("capacity", (long) maxSize);
+        stats.put("size", (long) entries.size());
+        stats.put("hits", hits.sum());
+        stats.put("invalidations", invalidations.sum());
+        return stats;
+    }
+}
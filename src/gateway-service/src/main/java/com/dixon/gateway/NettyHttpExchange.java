@@ -0,0 +1,284 @@
+package com.dixon.gateway;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import io.grpc.Context;
+import io.grpc.netty.shaded.io.netty.buffer.ByteBufUtil;
+import io.grpc.netty.shaded.io.netty.buffer.Unpooled;
+import io.grpc.netty.shaded.io.netty.channel.ChannelFutureListener;
+import io.grpc.netty.shaded.io.netty.channel.ChannelHandlerContext;
+import io.grpc.netty.shaded.io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.grpc.netty.shaded.io.netty.handler.codec.http.FullHttpRequest;
+import io.grpc.netty.shaded.io.netty.handler.codec.http.FullHttpResponse;
+import io.grpc.netty.shaded.io.netty.handler.codec.http.HttpHeaderNames;
+import io.grpc.netty.shaded.io.netty.handler.codec.http.HttpHeaderValues;
+import io.grpc.netty.shaded.io.netty.handler.codec.http.HttpResponseStatus;
+import io.grpc.netty.shaded.io.netty.handler.codec.http.HttpUtil;
+import io.grpc.netty.shaded.io.netty.handler.codec.http.HttpVersion;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Adapts a request received by the NettyHttpServer to an HttpExchange, so the gateway's HttpHandlers
+ * can serve it unchanged. The response body is buffered and written to the channel as a single
+ * response with a content length when the response body stream is closed, from whichever thread closes it.
+ */
+public class NettyHttpExchange extends HttpExchange {
+    /**
+     * Channel context of the connection the request was received on
+     */
+    private final ChannelHandlerContext ctx;
+
+    /**
+     * The context the request was routed to
+     */
+    private final HttpContext httpContext;
+
+    /**
+     * Request method
+     */
+    private final String requestMethod;
+
+    /**
+     * Request URI
+     */
+    private final URI requestURI;
+
+    /**
+     * Request protocol, for example HTTP/1.1
+     */
+    private final String protocol;
+
+    /**
+     * Whether the connection is kept open after the response
+     */
+    private final boolean keepAlive;
+
+    /**
+     * Request headers
+     */
+    private final Headers requestHeaders = new Headers();
+
+    /**
+     * Response headers
+     */
+    private final Headers responseHeaders = new Headers();
+
+    /**
+     * Exchange attributes
+     */
+    private final Map<String, Object> attributes = new HashMap<>();
+
+    /**
+     * Whether the response has been written to the channel
+     */
+    private final AtomicBoolean sent = new AtomicBoolean();
+
+    /**
+     * Context the request is handled in, cancelled if the client disconnects before the response is sent,
+     * which cancels the gRPC calls made for the request
+     */
+    private final Context.CancellableContext callContext = Context.ROOT.withCancellation();
+
+    /**
+     * Cancels the request's context when the connection closes
+     */
+    private final ChannelFutureListener disconnectListener = future -> callContext.cancel(null);
+
+    /**
+     * Run on the channel's event loop once the response is written, so the next request of the connection can run
+     */
+    private final Runnable onResponseWritten;
+
+    /**
+     * Request body stream
+     */
+    private InputStream requestBody;
+
+    /**
+     * Response body stream, which sends the response when closed
+     */
+    private OutputStream responseBody;
+
+    /**
+     * Response status code, -1 until the response headers are sent
+     */
+    private volatile int responseCode = -1;
+
+    /**
+     * Instantiates a NettyHttpExchange, copying the request since Netty releases it after dispatch
+     * @param ctx Channel context of the connection the request was received on
+     * @param request The aggregated request
+     * @param httpContext The context the request was routed to
+     * @param onResponseWritten Run on the channel's event loop once the response is written
+     */
+    public NettyHttpExchange(ChannelHandlerContext ctx, FullHttpRequest request, HttpContext httpContext,
+                             Runnable onResponseWritten) {
+        this.ctx = ctx;
+        this.httpContext = httpContext;
+        this.onResponseWritten = onResponseWritten;
+        this.requestMethod = request.method().name();
+        this.requestURI = URI.create(request.uri());
+        this.protocol = request.protocolVersion().text();
+        this.keepAlive = HttpUtil.isKeepAlive(request);
+        request.headers().forEach(header -> requestHeaders.add(header.getKey(), header.getValue()));
+        this.requestBody = new ByteArrayInputStream(ByteBufUtil.getBytes(request.content()));
+        this.responseBody = new ResponseBodyStream();
+        ctx.channel().closeFuture().addListener(disconnectListener);
+    }
+
+    /**
+     * Gives the context the request is handled in, which is cancelled if the client disconnects
+     * before the response is sent
+     * @return The context
+     */
+    public Context getCallContext() {
+        return callContext;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return requestURI;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return requestMethod;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return httpContext;
+    }
+
+    /**
+     * Ends the exchange, sending an empty response if the handler has not sent one
+     */
+    @Override
+    public void close() {
+        send(new byte[0]);
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    /**
+     * Records the response status code. The response is only written once the body is complete,
+     * so the given length is ignored and the response always carries its actual content length.
+     * @param rCode The response status code
+     * @param responseLength The response length as given to HttpExchange
+     */
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) {
+        responseCode = rCode;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return (InetSocketAddress) ctx.channel().remoteAddress();
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress) ctx.channel().localAddress();
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) {
+            requestBody = i;
+        }
+        if (o != null) {
+            responseBody = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    /**
+     * Writes the response to the channel once, closing the connection afterwards unless it is kept alive,
+     * and lets the next request of the connection run once the response is written
+     * @param body The response body
+     */
+    private void send(byte[] body) {
+        if (!sent.compareAndSet(false, true)) {
+            return;
+        }
+        ctx.channel().closeFuture().removeListener(disconnectListener);
+        int code = responseCode == -1 ? 500 : responseCode;
+        // Informational, 204 and 304 responses have no body and, like on the JDK's HttpServer, no Content-Length
+        boolean bodyless = code < 200 || code == 204 || code == 304;
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.valueOf(code), bodyless ? Unpooled.EMPTY_BUFFER : Unpooled.wrappedBuffer(body));
+        responseHeaders.forEach((name, values) -> response.headers().add(name, values));
+        if (!bodyless) {
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, body.length);
+        }
+        if (keepAlive) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+            ctx.writeAndFlush(response).addListener(future -> onResponseWritten.run());
+        } else {
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * Buffers the response body and sends the response when closed
+     */
+    private class ResponseBodyStream extends ByteArrayOutputStream {
+        @Override
+        public void close() {
+            send(toByteArray());
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package com.dixon.gateway;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.grpc.netty.shaded.io.netty.bootstrap.ServerBootstrap;
+import io.grpc.netty.shaded.io.netty.buffer.Unpooled;
+import io.grpc.netty.shaded.io.netty.channel.Channel;
+import io.grpc.netty.shaded.io.netty.channel.ChannelFutureListener;
+import io.grpc.netty.shaded.io.netty.channel.ChannelHandlerContext;
+import io.grpc.netty.shaded.io.netty.channel.ChannelInitializer;
+import io.grpc.netty.shaded.io.netty.channel.ChannelOption;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.SimpleChannelInboundHandler;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.socket.SocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.grpc.netty.shaded.io.netty.handler.codec.http.FullHttpRequest;
+import io.grpc.netty.shaded.io.netty.handler.codec.http.FullHttpResponse;
+import io.grpc.netty.shaded.io.netty.handler.codec.http.HttpHeaderNames;
+import io.grpc.netty.shaded.io.netty.handler.codec.http.HttpObjectAggregator;
+import io.grpc.netty.shaded.io.netty.handler.codec.http.HttpResponseStatus;
+import io.grpc.netty.shaded.io.netty.handler.codec.http.HttpServerCodec;
+import io.grpc.netty.shaded.io.netty.handler.codec.http.HttpVersion;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An HttpServer running on Netty, accepting connections on one event loop and serving them on several,
+ * with persistent connections. Requests are routed to the HttpHandler of the longest matching context path,
+ * the same way as the JDK's HttpServer, and run on the server's executor so that blocking handlers
+ * never stall an event loop. The requests of a connection are handled one at a time, each only once the response to
+ * the previous one is written, so that responses to pipelined requests go out in request order.
+ */
+public class NettyHttpServer extends HttpServer {
+    /**
+     * Maximum size in bytes of a request body
+     */
+    private static final int MAX_CONTENT_LENGTH = 1 << 20;
+
+    /**
+     * Maps each context path to its context
+     */
+    private final Map<String, NettyHttpContext> contexts = new ConcurrentHashMap<>();
+
+    /**
+     * Number of event loops serving connections, 0 for Netty's default of twice the number of processors
+     */
+    private final int eventLoops;
+
+    /**
+     * Address the server listens on
+     */
+    private InetSocketAddress address;
+
+    /**
+     * Maximum number of queued incoming connections
+     */
+    private int backlog;
+
+    /**
+     * Executor running the handlers, or null to run them on the event loops
+     */
+    private Executor executor;
+
+    /**
+     * Event loop accepting connections
+     */
+    private EventLoopGroup bossGroup;
+
+    /**
+     * Event loops serving connections
+     */
+    private EventLoopGroup workerGroup;
+
+    /**
+     * The listening channel
+     */
+    private Channel serverChannel;
+
+    /**
+     * Instantiates a NettyHttpServer
+     * @param address Address the server listens on
+     * @param backlog Maximum number of queued incoming connections
+     * @param eventLoops Number of event loops serving connections, 0 for twice the number of processors
+     */
+    public NettyHttpServer(InetSocketAddress address, int backlog, int eventLoops) {
+        this.address = address;
+        this.backlog = backlog;
+        this.eventLoops = eventLoops;
+    }
+
+    /**
+     * Sets the address the server listens on, must be called before the server is started
+     * @param addr The address to listen on
+     * @param backlog Maximum number of queued incoming connections
+     */
+    @Override
+    public void bind(InetSocketAddress addr, int backlog) {
+        this.address = addr;
+        this.backlog = backlog;
+    }
+
+    /**
+     * Starts the event loops and binds the listening channel
+     */
+    @Override
+    public void start() {
+        bossGroup = new NioEventLoopGroup(1);
+        workerGroup = new NioEventLoopGroup(eventLoops);
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .option(ChannelOption.SO_BACKLOG, backlog > 0 ? backlog : 128)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        channel.pipeline()
+                                .addLast(new HttpServerCodec())
+                                .addLast(new HttpObjectAggregator(MAX_CONTENT_LENGTH))
+                                .addLast(new RequestDispatcher());
+                    }
+                });
+        serverChannel = bootstrap.bind(address).syncUninterruptibly().channel();
+        address = (InetSocketAddress) serverChannel.localAddress();
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Closes the listening channel and shuts down the event loops
+     * @param delay Maximum time in seconds to wait for connections to finish
+     */
+    @Override
+    public void stop(int delay) {
+        if (serverChannel != null) {
+            serverChannel.close().syncUninterruptibly();
+        }
+        if (bossGroup != null) {
+            bossGroup.shutdownGracefully(0, delay, TimeUnit.SECONDS);
+            workerGroup.shutdownGracefully(0, delay, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        NettyHttpContext context = new NettyHttpContext(path, handler);
+        if (contexts.putIfAbsent(path, context) != null) {
+            throw new IllegalArgumentException("cannot add context to list");
+        }
+        return context;
+    }
+
+    @Override
+    public HttpContext createContext(String path) {
+        return createContext(path, null);
+    }
+
+    @Override
+    public void removeContext(String path) {
+        if (contexts.remove(path) == null) {
+            throw new IllegalArgumentException("cannot remove element from list");
+        }
+    }
+
+    @Override
+    public void removeContext(HttpContext context) {
+        removeContext(context.getPath());
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Finds the context with the longest path that is a prefix of the request path
+     * @param path The request path
+     * @return The matching context, or null if none matches
+     */
+    private NettyHttpContext findContext(String path) {
+        NettyHttpContext match = null;
+        for (NettyHttpContext context : contexts.values()) {
+            if (path.startsWith(context.getPath())
+                    && (match == null || context.getPath().length() > match.getPath().length())) {
+                match = context;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Routes each aggregated request to its context's handler on the server's executor, one request of the
+     * connection at a time. A dispatcher is created per connection, and its state is only used on the connection's
+     * event loop.
+     */
+    private class RequestDispatcher extends SimpleChannelInboundHandler<FullHttpRequest> {
+        /**
+         * Requests received while an earlier request of the connection is being handled, in request order
+         */
+        private final Queue<Runnable> pending = new ArrayDeque<>();
+
+        /**
+         * Whether a request of the connection is being handled
+         */
+        private boolean busy;
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            // Reject requests that do not match any context
+            Runnable dispatch;
+            NettyHttpContext context = findContext(request.uri());
+            if (context == null || context.getHandler() == null) {
+                byte[] body = "<h1>404 Not Found</h1>No context found for request".getBytes(StandardCharsets.UTF_8);
+                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                        HttpResponseStatus.NOT_FOUND, Unpooled.wrappedBuffer(body));
+                response.headers().set(HttpHeaderNames.CONTENT_LENGTH, body.length);
+                dispatch = () -> ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+            } else {
+                // Copy the request before it is released
+                NettyHttpExchange exchange = new NettyHttpExchange(ctx, request, context, () -> dispatchNext(ctx));
+                dispatch = () -> handle(ctx, exchange, context);
+            }
+
+            // Hold the request until the response to the previous one is written, and stop reading the connection
+            // meanwhile so that a client pipelining many requests cannot queue them without bound
+            if (busy) {
+                pending.add(dispatch);
+                return;
+            }
+            busy = true;
+            ctx.channel().config().setAutoRead(false);
+            dispatch.run();
+        }
+
+        /**
+         * Runs the next request held for the connection, or resumes reading it if none is held
+         * @param ctx Channel context of the connection
+         */
+        private void dispatchNext(ChannelHandlerContext ctx) {
+            Runnable dispatch = pending.poll();
+            if (dispatch != null) {
+                dispatch.run();
+                return;
+            }
+            busy = false;
+            ctx.channel().config().setAutoRead(true);
+        }
+
+        /**
+         * Runs the handler off the event loop, in a context that cancels the handler's gRPC calls if the client
+         * disconnects, or answers with a 503 if the executor rejects the request
+         * @param ctx Channel context of the connection
+         * @param exchange The request's exchange
+         * @param context The context the request was routed to
+         */
+        private void handle(ChannelHandlerContext ctx, NettyHttpExchange exchange, NettyHttpContext context) {
+            Runnable task = exchange.getCallContext().wrap(() -> {
+                try {
+                    context.getHandler().handle(exchange);
+                } catch (Exception e) {
+                    // Close the connection like the JDK server does when a handler throws
+                    ctx.close();
+                }
+            });
+            if (executor == null) {
+                task.run();
+                return;
+            }
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                sendOverloaded(ctx, exchange);
+            }
+        }
+
+        /**
+         * Answers a request no thread could be found for with a 503 error
+         * @param ctx Channel context of the connection
+         * @param exchange The request's exchange
+         */
+        private void sendOverloaded(ChannelHandlerContext ctx, NettyHttpExchange exchange) {
+            byte[] body = "<h1>503 Service Unavailable</h1>No thread available for request".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.sendResponseHeaders(503, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            } catch (IOException e) {
+                ctx.close();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    /**
+     * A context path and its handler
+     */
+    private class NettyHttpContext extends HttpContext {
+        /**
+         * Context path
+         */
+        private final String path;
+
+        /**
+         * Context attributes
+         */
+        private final Map<String, Object> attributes = new HashMap<>();
+
+        /**
+         * Context filters, which the NettyHttpServer does not apply
+         */
+        private final List<Filter> filters = new ArrayList<>();
+
+        /**
+         * Handler serving requests to the context
+         */
+        private volatile HttpHandler handler;
+
+        /**
+         * Context authenticator, which the NettyHttpServer does not apply
+         */
+        private Authenticator authenticator;
+
+        private NettyHttpContext(String path, HttpHandler handler) {
+            this.path = path;
+            this.handler = handler;
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setHandler(HttpHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public HttpServer getServer() {
+            return NettyHttpServer.this;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public Authenticator setAuthenticator(Authenticator auth) {
+            Authenticator previous = authenticator;
+            authenticator = auth;
+            return previous;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.dixon.gateway;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of the serialized responses to order lookups, bounded by the memory the responses occupy.
+ * Orders are never modified once placed, so entries are never invalidated and never expire.
+ * The cache is filled when an order is placed through the gateway and when an order is looked up,
+ * so that clients polling the status of their recent orders are answered without querying the order service.
+ * The oldest entries are dropped once the cache is full, since recent orders are the ones most likely to be looked up.
+ */
+public class OrderCache {
+    /**
+     * Estimated bytes occupied by an entry besides its response, covering the map node, the boxed key,
+     * the array header and the queue node
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 112;
+
+    /**
+     * A serialized order response
+     */
+    private static final class Entry {
+        /**
+         * The order number
+         */
+        private final int orderNumber;
+
+        /**
+         * The serialized order response
+         */
+        private final byte[] response;
+
+        private Entry(int orderNumber, byte[] response) {
+            this.orderNumber = orderNumber;
+            this.response = response;
+        }
+
+        /**
+         * Gives the estimated memory occupied by the entry
+         * @return The estimated size of the entry in bytes
+         */
+        private long weight() {
+            return response.length + ENTRY_OVERHEAD_BYTES;
+        }
+    }
+
+    /**
+     * Maps each order number to its entry
+     */
+    private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Entries in insertion order, from which the oldest entries are dropped
+     */
+    private final ConcurrentLinkedQueue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Estimated bytes occupied by the entries
+     */
+    private final AtomicLong weight = new AtomicLong();
+
+    /**
+     * Maximum estimated bytes occupied by the entries, 0 if order caching is disabled
+     */
+    private final long maxBytes;
+
+    /**
+     * Number of lookups answered from the cache
+     */
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * Number of lookups not found in the cache
+     */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Number of entries dropped to make room for newer entries
+     */
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Instantiates a new OrderCache
+     * @param maxBytes Maximum estimated bytes occupied by the entries, 0 to disable order caching
+     */
+    public OrderCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Retrieves the serialized response for an order
+     * @param orderNumber The order number
+     * @return The serialized order response, or null if the order is not cached
+     */
+    public byte[] get(int orderNumber) {
+        if (maxBytes <= 0) {
+            return null;
+        }
+        Entry entry = entries.get(orderNumber);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.response;
+    }
+
+    /**
+     * Stores the serialized response for an order, dropping the oldest entries if the cache is full.
+     * An order already cached is left as is, since its response cannot have changed.
+     * @param orderNumber The order number
+     * @param response The serialized order response
+     */
+    public void put(int orderNumber, byte[] response) {
+        if (maxBytes <= 0) {
+            return;
+        }
+        Entry entry = new Entry(orderNumber, response);
+        if (entry.weight() > maxBytes || entries.putIfAbsent(orderNumber, entry) != null) {
+            return;
+        }
+        insertionOrder.add(entry);
+        weight.addAndGet(entry.weight());
+
+        // Entries are never replaced, so each queued entry is still in the map until it is polled
+        Entry oldest;
+        while (weight.get() > maxBytes && (oldest = insertionOrder.poll()) != null) {
+            entries.remove(oldest.orderNumber, oldest);
+            weight.addAndGet(-oldest.weight());
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Gives the capacity, size, hit, miss and eviction counts of the cache
+     * @return Map of the statistic names to their values
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("capacityBytes", maxBytes);
+        stats.put("sizeBytes", weight.get());
+        stats.put("size", (long) entries.size());
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("evictions", evictions.sum());
+        return stats;
+    }
+}
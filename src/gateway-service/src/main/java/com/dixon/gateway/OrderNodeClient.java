@@ -0,0 +1,147 @@
+package com.dixon.gateway;
+
+import com.dixon.OrderServiceGrpc;
+import com.dixon.common.Address;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+
+/**
+ * A long lived connection to one order service node, and what the gateway last learned about the node's health.
+ * The same channel carries the requests sent to the node while it leads, the order lookups sent to it while it follows,
+ * and its health checks, so no channel is created per election or per request.
+ */
+public class OrderNodeClient {
+    /**
+     * The id of the node
+     */
+    private final int id;
+
+    /**
+     * The address of the node
+     */
+    private final Address address;
+
+    /**
+     * Long lived channel to the node
+     */
+    private final ManagedChannel channel;
+
+    /**
+     * gRPC stub to make blocking rpc calls to the node
+     */
+    private final OrderServiceGrpc.OrderServiceBlockingStub blockingStub;
+
+    /**
+     * gRPC future stub to make asynchronous rpc calls to the node
+     */
+    private final OrderServiceGrpc.OrderServiceFutureStub futureStub;
+
+    /**
+     * Whether the node answered its last health check and has not failed a request since
+     */
+    private volatile boolean healthy;
+
+    /**
+     * Number of health checks the node failed in a row
+     */
+    private volatile int consecutiveFailures;
+
+    /**
+     * Largest order number the node reported applying, -1 until its first health check
+     */
+    private volatile int maxOrderNumber = -1;
+
+    /**
+     * Instantiates an OrderNodeClient, opening a channel to the node
+     * @param id The id of the node
+     * @param address The address of the node
+     */
+    public OrderNodeClient(int id, Address address) {
+        this.id = id;
+        this.address = address;
+        this.channel = ManagedChannelBuilder.forTarget(address.toString()).usePlaintext().build();
+        this.blockingStub = OrderServiceGrpc.newBlockingStub(channel);
+        this.futureStub = OrderServiceGrpc.newFutureStub(channel);
+    }
+
+    /**
+     * Gives the id of the node
+     * @return The id
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Gives the address of the node
+     * @return The address
+     */
+    public Address getAddress() {
+        return address;
+    }
+
+    /**
+     * Gives the blocking stub of the node
+     * @return The blocking stub
+     */
+    public OrderServiceGrpc.OrderServiceBlockingStub getBlockingStub() {
+        return blockingStub;
+    }
+
+    /**
+     * Gives the future stub of the node
+     * @return The future stub
+     */
+    public OrderServiceGrpc.OrderServiceFutureStub getFutureStub() {
+        return futureStub;
+    }
+
+    /**
+     * Gives whether the node answered its last health check and has not failed a request since
+     * @return True if the node is believed to be online
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * Gives the number of health checks the node failed in a row
+     * @return The number of consecutive failed health checks
+     */
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Gives the largest order number the node reported applying
+     * @return The largest applied order number, -1 if the node has not answered a health check yet
+     */
+    public int getMaxOrderNumber() {
+        return maxOrderNumber;
+    }
+
+    /**
+     * Records that the node answered a health check
+     * @param maxOrderNumber The largest order number the node reported applying
+     */
+    public void recordHealthy(int maxOrderNumber) {
+        this.maxOrderNumber = maxOrderNumber;
+        this.consecutiveFailures = 0;
+        this.healthy = true;
+    }
+
+    /**
+     * Records that the node failed a health check
+     */
+    public void recordUnhealthy() {
+        this.consecutiveFailures++;
+        this.healthy = false;
+    }
+
+    /**
+     * Records that the node failed a request, so it is not sent more requests until it passes a health check
+     */
+    public void recordRequestFailure() {
+        this.healthy = false;
+    }
+}
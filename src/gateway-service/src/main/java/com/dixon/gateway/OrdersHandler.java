@@ -2,27 +2,27 @@ package com.dixon.gateway;
 
 import com.dixon.*;
 import com.dixon.common.Address;
+import com.dixon.common.Cart;
 import com.dixon.common.Error;
 import com.dixon.common.ErrorWrapper;
 import com.dixon.common.Order;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import io.grpc.Context;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import lombok.Builder;
 import lombok.extern.jackson.Jacksonized;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -45,44 +45,77 @@ public class OrdersHandler implements HttpHandler {
     private final ObjectMapper objectMapper;
 
     /**
-     * gRPC stub to make rpc calls the order service
+     * Default time in milliseconds between health checks of the order service nodes
      */
-    private OrderServiceGrpc.OrderServiceBlockingStub orderStub;
+    public static final long DEFAULT_HEALTH_INTERVAL_MILLIS = 200;
 
     /**
-     * Boolean to indicate whether test mode is activated to show response before sending
+     * Default time in milliseconds an order request may take, across every leader it is sent to
      */
-    private static boolean testMode;
+    public static final long DEFAULT_ORDER_DEADLINE_MILLIS = 5000;
+
+    /**
+     * Tracks the order service leader, replacing it when it fails
+     */
+    private final LeaderMonitor leaderMonitor;
+
+    /**
+     * Boolean to indicate whether requests are answered from gRPC callbacks instead of blocking the handler thread
+     */
+    private final boolean asyncMode;
 
     /**
-     * Stores the id's of the order service instances
+     * Cache of the serialized responses to order lookups, filled by orders placed and orders looked up
      */
-    private static int[] orderIds;
+    private final OrderCache orderCache;
 
     /**
-     * Stores the total id's of the order service instances
+     * Chooses the follower to send each order lookup to, if any
      */
-    private static int totalIds;
+    private final FollowerReadRouter followerReadRouter;
 
     /**
-     * Maps the id's of the order service instances to their addresses
+     * Boolean to indicate whether test mode is activated to show response before sending
      */
-    private static HashMap<Integer, Address> orderAddresses;
+    private static boolean testMode;
 
     /**
-     * Determines the amount of time before an order service health check will timeout
+     * Determines the amount of time before a follower order lookup will timeout
      */
-    private static long timeoutSeconds;
+    private final long timeoutSeconds;
 
     /**
-     * Stores the id of the current leader
+     * Time in milliseconds an order request may take, across every leader it is sent to, 0 for no deadline
      */
-    private static int currentOrderServiceId = -1;
+    private final long orderDeadlineMillis;
 
     /**
      * Handles order requests from a client
      */
     public OrdersHandler(long timeoutSeconds, HashMap<Integer, Address> orderAddresses, boolean testMode) {
+        this(timeoutSeconds, orderAddresses, DEFAULT_HEALTH_INTERVAL_MILLIS, DEFAULT_ORDER_DEADLINE_MILLIS, new OrderCache(0),
+                false, false, testMode);
+    }
+
+    /**
+     * Handles order requests from a client, optionally answering them from gRPC callbacks
+     * so that handler threads are not held while the order service processes a request
+     */
+    public OrdersHandler(long timeoutSeconds, HashMap<Integer, Address> orderAddresses, boolean asyncMode, boolean testMode) {
+        this(timeoutSeconds, orderAddresses, DEFAULT_HEALTH_INTERVAL_MILLIS, DEFAULT_ORDER_DEADLINE_MILLIS, new OrderCache(0),
+                false, asyncMode, testMode);
+    }
+
+    /**
+     * Handles order requests from a client, health checking the order service nodes in the background to replace
+     * a failed leader before requests reach it, answering lookups of orders placed or looked up before from an order
+     * cache, optionally spreading the other lookups across the order service followers that have applied the order,
+     * and optionally answering requests from gRPC callbacks. Each request gets a deadline covering every leader it
+     * is sent to, and is sent to at most as many leaders as there are order service nodes.
+     */
+    public OrdersHandler(long timeoutSeconds, HashMap<Integer, Address> orderAddresses, long healthIntervalMillis,
+                         long orderDeadlineMillis, OrderCache orderCache, boolean followerReads, boolean asyncMode,
+                         boolean testMode) {
         super();
         // Create object mapper
         JsonFactory jsonFactory = new JsonFactory();
@@ -91,26 +124,17 @@ public class OrdersHandler implements HttpHandler {
         this.objectMapper = new ObjectMapper(jsonFactory);
 
         this.timeoutSeconds = timeoutSeconds;
-        this.orderAddresses = orderAddresses;
-
-        List<Integer> idList = new ArrayList<>(orderAddresses.keySet());
-        // Sort the list in descending order
-        Collections.sort(idList, Collections.reverseOrder());
-        int[] orderIds = new int[idList.size()];
-
-        // Convert List<Integer> to int[]
-        for (int i = 0; i < idList.size(); i++) {
-            orderIds[i] = idList.get(i);
-        }
+        this.orderDeadlineMillis = orderDeadlineMillis;
 
-        this.orderIds = orderIds;
-        this.totalIds = orderIds.length;
-
-        // Set test mode
+        // Set order cache, handler and test mode
+        this.orderCache = orderCache;
+        this.asyncMode = asyncMode;
         this.testMode = testMode;
 
-        // Elect first leader
-        electLeader(-1);
+        // Elect first leader and start health checking the nodes
+        this.leaderMonitor = new LeaderMonitor(orderAddresses, healthIntervalMillis);
+        leaderMonitor.start(timeoutSeconds);
+        this.followerReadRouter = new FollowerReadRouter(leaderMonitor, followerReads);
     }
 
     /**
@@ -135,9 +159,9 @@ public class OrdersHandler implements HttpHandler {
     }
 
     /**
-     * Handles get order requests by sending an OrderQueryRequest to order service leader
-     * and responding to client. If order number is invalid returns error. If leader
-     * is unresponsive, triggers leader election and sends request to new leader.
+     * Handles get order requests by answering from the order cache, or else by sending an OrderQueryRequest
+     * to order service leader and responding to client. If order number is invalid returns error. If leader
+     * is unresponsive, waits for a new leader and sends request to it.
      * @param exchange The http exchange object
      * @throws IOException
      */
@@ -156,22 +180,67 @@ public class OrdersHandler implements HttpHandler {
                                         .build(), exchange);
             return;
         }
+
+        // Orders never change, so a cached order is answered without querying the order service
+        byte[] cachedResponse = orderCache.get(orderNumber);
+        if (cachedResponse != null) {
+            HTTPHandlerUtility.sendResponse(exchange, 200, cachedResponse);
+            return;
+        }
         OrderQueryRequest request = OrderQueryRequest.newBuilder().setOrderNumber(orderNumber).build();
+        CallBudget budget = newCallBudget();
+
+        // Choose a follower that has applied the order, or the leader
+        OrderNodeClient follower = followerReadRouter.choose(orderNumber);
 
-        // Loop on request until leader order service responds
-        // If it doesn't respond, elect new leader
-        while (true) {
-            int leaderId = currentOrderServiceId;
+        // Answer from the rpc callback in async mode
+        if (asyncMode) {
+            if (follower != null) {
+                queryOrderFromFollowerAsync(follower, request, budget, exchange);
+            } else {
+                queryOrderAsync(request, budget, exchange);
+            }
+            return;
+        }
+
+        // Only a successful follower lookup is answered, the leader is asked if the follower misses or fails
+        if (follower != null) {
             try {
-                OrderQueryResponse response = orderStub.queryOrderNumber(request);
+                OrderQueryResponse response = follower.getBlockingStub()
+                        .withDeadline(budget.getDeadlineWithin(timeoutSeconds, TimeUnit.SECONDS))
+                        .queryOrderNumber(request);
+                if (response.getSuccess()) {
+                    followerReadRouter.recordRead(follower);
+                    handleQueryOrderResponse(response, exchange);
+                    return;
+                }
+                followerReadRouter.recordMiss(follower);
+            } catch (StatusRuntimeException e) {
+                if (isCancelled(e)) {
+                    exchange.close();
+                    return;
+                }
+                followerReadRouter.recordFailure(follower);
+            }
+        }
+
+        // Send request to leader order service until it responds or the budget runs out
+        // If it doesn't respond, wait for the leader monitor to elect a new leader
+        while (budget.tryAttempt()) {
+            OrderNodeClient leader = leaderMonitor.getLeader();
+            try {
+                OrderQueryResponse response = leader.getBlockingStub().withDeadline(budget.getDeadline())
+                        .queryOrderNumber(request);
                 // Send response data or error back to client
                 handleQueryOrderResponse(response, exchange);
-                break;
+                return;
             } catch (StatusRuntimeException e) {
-                electLeader(leaderId);
+                if (!awaitNewLeader(leader, e, exchange)) {
+                    return;
+                }
             }
         }
-
+        handleExhaustedBudgetResponse(budget, exchange);
     }
 
     /**
@@ -183,76 +252,311 @@ public class OrdersHandler implements HttpHandler {
         String requestURI = exchange.getRequestURI().toString();
         String[] uriParts = requestURI.split("/");
         int orderNumber = 0;
+        // A path of /orders or /orders/ has no order number
+        if (uriParts.length < 3) {
+            throw new NumberFormatException("Missing order number");
+        }
         orderNumber = Integer.parseInt(uriParts[2]);
         return orderNumber;
     }
 
     /**
-     * Handles buy requests by sending an OrderBuyRequest to leader and responding to client.
-     *  If leader is unresponsive, triggers leader election and sends request to new leader.
+     * Handles buy requests by sending an OrderBuyRequest to leader and responding to client,
+     * or an OrderCartRequest if the body is a cart with a list of lines.
+     *  If leader is unresponsive, waits for a new leader and sends request to it.
      * @param exchange The http exchange object
      * @throws IOException
      */
     private void handleBuyOrderRequest(HttpExchange exchange) throws IOException {
+        // Order every line of a cart together
+        JsonNode body = objectMapper.readTree(exchange.getRequestBody());
+        if (body != null && body.has("lines")) {
+            handleBuyCartRequest(objectMapper.treeToValue(body, Cart.class), exchange);
+            return;
+        }
+
         // Order product
-        Order order = objectMapper.readValue(exchange.getRequestBody(), Order.class);
+        Order order = objectMapper.treeToValue(body, Order.class);
         OrderBuyRequest request = OrderBuyRequest.newBuilder()
                 .setName(order.getName())
                 .setQuantity(order.getQuantity())
                 .build();
 
-        // Loop on request until leader order service responds
-        // If it doesn't respond, elect new leader
-        while (true) {
-            int leaderId = currentOrderServiceId;
+        // Answer from the rpc callback in async mode
+        CallBudget budget = newCallBudget();
+        if (asyncMode) {
+            buyAsync(request, budget, exchange);
+            return;
+        }
+
+        // Send request to leader order service until it responds or the budget runs out
+        // If it doesn't respond, wait for the leader monitor to elect a new leader
+        while (budget.tryAttempt()) {
+            OrderNodeClient leader = leaderMonitor.getLeader();
             try {
-                OrderBuyResponse response = orderStub.buy(request);
+                OrderBuyResponse response = leader.getBlockingStub().withDeadline(budget.getDeadline()).buy(request);
                 // Send response data or error back to client
-                handleBuyOrderResponse(response, exchange);
-                break;
+                handleBuyOrderResponse(request, response, exchange);
+                return;
+            } catch (StatusRuntimeException e) {
+                if (!awaitNewLeader(leader, e, exchange)) {
+                    return;
+                }
+            }
+        }
+        handleExhaustedBudgetResponse(budget, exchange);
+    }
+
+    /**
+     * Handles cart buy requests by sending an OrderCartRequest with every line to leader and responding to client.
+     *  If leader is unresponsive, waits for a new leader and sends request to it.
+     * @param cart The cart sent by the client
+     * @param exchange The http exchange object
+     * @throws IOException
+     */
+    private void handleBuyCartRequest(Cart cart, HttpExchange exchange) throws IOException {
+        // Order products
+        OrderCartRequest.Builder requestBuilder = OrderCartRequest.newBuilder();
+        if (cart.getLines() != null) {
+            for (Order order : cart.getLines()) {
+                requestBuilder.addLines(OrderBuyRequest.newBuilder()
+                        .setName(order.getName())
+                        .setQuantity(order.getQuantity())
+                        .build());
+            }
+        }
+        OrderCartRequest request = requestBuilder.build();
+
+        // Answer from the rpc callback in async mode
+        CallBudget budget = newCallBudget();
+        if (asyncMode) {
+            buyCartAsync(request, budget, exchange);
+            return;
+        }
+
+        // Send request to leader order service until it responds or the budget runs out
+        // If it doesn't respond, wait for the leader monitor to elect a new leader
+        while (budget.tryAttempt()) {
+            OrderNodeClient leader = leaderMonitor.getLeader();
+            try {
+                OrderCartResponse response = leader.getBlockingStub().withDeadline(budget.getDeadline()).buyCart(request);
+                // Send response data or error back to client
+                handleBuyCartResponse(request, response, exchange);
+                return;
             } catch (StatusRuntimeException e) {
-                electLeader(leaderId);
+                if (!awaitNewLeader(leader, e, exchange)) {
+                    return;
+                }
             }
         }
+        handleExhaustedBudgetResponse(budget, exchange);
+    }
 
+    /**
+     * Sends an OrderQueryRequest to the leader and responds to client from the rpc callback.
+     * If leader is unresponsive, waits for a new leader without blocking and resends request to it.
+     * @param request The order query request
+     * @param budget The time and attempts left for the request
+     * @param exchange The http exchange object
+     */
+    private void queryOrderAsync(OrderQueryRequest request, CallBudget budget, HttpExchange exchange) {
+        if (!budget.tryAttempt()) {
+            handleExhaustedBudgetResponseAsync(budget, exchange);
+            return;
+        }
+        OrderNodeClient leader = leaderMonitor.getLeader();
+        OrderServiceGrpc.OrderServiceFutureStub stub = leader.getFutureStub().withDeadline(budget.getDeadline());
+        FutureUtility.toCompletableFuture(stub.queryOrderNumber(request)).whenComplete((response, throwable) -> {
+            if (isResendable(throwable)) {
+                resendToNewLeader(leader, exchange, () -> queryOrderAsync(request, budget, exchange));
+                return;
+            }
+            try {
+                if (throwable != null) {
+                    HTTPHandlerUtility.handleFailedCallResponse(exchange, objectMapper, throwable);
+                } else {
+                    handleQueryOrderResponse(response, exchange);
+                }
+            } catch (IOException e) {
+                exchange.close();
+            }
+        });
+    }
 
+    /**
+     * Sends an OrderQueryRequest to a follower and responds to client from the rpc callback if the follower
+     * finds the order. If the follower misses or fails, sends the request to the leader instead.
+     * @param follower The follower that has applied the order
+     * @param request The order query request
+     * @param budget The time and attempts left for the request
+     * @param exchange The http exchange object
+     */
+    private void queryOrderFromFollowerAsync(OrderNodeClient follower, OrderQueryRequest request, CallBudget budget,
+                                             HttpExchange exchange) {
+        FutureUtility.toCompletableFuture(follower.getFutureStub()
+                .withDeadline(budget.getDeadlineWithin(timeoutSeconds, TimeUnit.SECONDS))
+                .queryOrderNumber(request)).whenComplete((response, throwable) -> {
+            if (isCancelled(throwable)) {
+                exchange.close();
+                return;
+            }
+            if (throwable != null) {
+                followerReadRouter.recordFailure(follower);
+                queryOrderAsync(request, budget, exchange);
+                return;
+            }
+            if (!response.getSuccess()) {
+                followerReadRouter.recordMiss(follower);
+                queryOrderAsync(request, budget, exchange);
+                return;
+            }
+            followerReadRouter.recordRead(follower);
+            try {
+                handleQueryOrderResponse(response, exchange);
+            } catch (IOException e) {
+                exchange.close();
+            }
+        });
+    }
+
+    /**
+     * Sends an OrderBuyRequest to the leader and responds to client from the rpc callback.
+     * If leader is unresponsive, waits for a new leader without blocking and resends request to it.
+     * @param request The order buy request
+     * @param budget The time and attempts left for the request
+     * @param exchange The http exchange object
+     */
+    private void buyAsync(OrderBuyRequest request, CallBudget budget, HttpExchange exchange) {
+        if (!budget.tryAttempt()) {
+            handleExhaustedBudgetResponseAsync(budget, exchange);
+            return;
+        }
+        OrderNodeClient leader = leaderMonitor.getLeader();
+        OrderServiceGrpc.OrderServiceFutureStub stub = leader.getFutureStub().withDeadline(budget.getDeadline());
+        FutureUtility.toCompletableFuture(stub.buy(request)).whenComplete((response, throwable) -> {
+            if (isResendable(throwable)) {
+                resendToNewLeader(leader, exchange, () -> buyAsync(request, budget, exchange));
+                return;
+            }
+            try {
+                if (throwable != null) {
+                    HTTPHandlerUtility.handleFailedCallResponse(exchange, objectMapper, throwable);
+                } else {
+                    handleBuyOrderResponse(request, response, exchange);
+                }
+            } catch (IOException e) {
+                exchange.close();
+            }
+        });
+    }
+
+    /**
+     * Sends an OrderCartRequest to the leader and responds to client from the rpc callback.
+     * If leader is unresponsive, waits for a new leader without blocking and resends request to it.
+     * @param request The order cart request
+     * @param budget The time and attempts left for the request
+     * @param exchange The http exchange object
+     */
+    private void buyCartAsync(OrderCartRequest request, CallBudget budget, HttpExchange exchange) {
+        if (!budget.tryAttempt()) {
+            handleExhaustedBudgetResponseAsync(budget, exchange);
+            return;
+        }
+        OrderNodeClient leader = leaderMonitor.getLeader();
+        OrderServiceGrpc.OrderServiceFutureStub stub = leader.getFutureStub().withDeadline(budget.getDeadline());
+        FutureUtility.toCompletableFuture(stub.buyCart(request)).whenComplete((response, throwable) -> {
+            if (isResendable(throwable)) {
+                resendToNewLeader(leader, exchange, () -> buyCartAsync(request, budget, exchange));
+                return;
+            }
+            try {
+                if (throwable != null) {
+                    HTTPHandlerUtility.handleFailedCallResponse(exchange, objectMapper, throwable);
+                } else {
+                    handleBuyCartResponse(request, response, exchange);
+                }
+            } catch (IOException e) {
+                exchange.close();
+            }
+        });
     }
 
     /**
-     * Sends data object back to client if order is successful,
+     * Sends data object back to client if order is successful, caching the new order for later lookups,
      * else sends error object
+     * @param request The order buy request
      * @param response The response object from the order service
      * @param exchange The http exchange object
      * @throws IOException
      */
-    private void handleBuyOrderResponse(OrderBuyResponse response, HttpExchange exchange) throws IOException {
-        OutputStream outputStream = exchange.getResponseBody();
-
+    private void handleBuyOrderResponse(OrderBuyRequest request, OrderBuyResponse response, HttpExchange exchange) throws IOException {
         // Build reply object based on success
-        String reply;
+        byte[] reply;
+        int code;
         if (response.getSuccess()) {
+            // The request holds everything a lookup of the new order returns
+            cacheOrder(response.getOrderNumber(), request);
+
             // Build data object response
             Data data = Data.builder().orderNumber(response.getOrderNumber()).build();
-            reply = objectMapper.writeValueAsString(DataWrapper.builder().data(data).build());
-            exchange.sendResponseHeaders(200, 0);
+            reply = objectMapper.writeValueAsBytes(DataWrapper.builder().data(data).build());
+            code = 200;
         } else {
             // Build error object response
             Error error = Error.builder().code(404).message(response.getErrorMessage()).build();
-            reply = objectMapper.writeValueAsString(ErrorWrapper.builder().error(error).build());
-            exchange.sendResponseHeaders(404, 0);
+            reply = objectMapper.writeValueAsBytes(ErrorWrapper.builder().error(error).build());
+            code = 404;
         }
 
         // Optionally print response object
         if(testMode) {
             System.out.println("Order response object: ");
-            System.out.println(reply);
+            System.out.println(new String(reply));
             System.out.println();
         }
 
         // Send response
-        outputStream.write(reply.getBytes());
-        outputStream.flush();
-        outputStream.close();
+        HTTPHandlerUtility.sendResponse(exchange, code, reply);
+    }
+
+    /**
+     * Sends data object with the order number of every cart line back to client if the cart order is successful,
+     * caching the new orders for later lookups, else sends error object
+     * @param request The order cart request
+     * @param response The response object from the order service
+     * @param exchange The http exchange object
+     * @throws IOException
+     */
+    private void handleBuyCartResponse(OrderCartRequest request, OrderCartResponse response, HttpExchange exchange) throws IOException {
+        // Build reply object based on success
+        byte[] reply;
+        int code;
+        if (response.getSuccess()) {
+            // Each cart line is placed as its own order, numbered in cart order
+            for (int i = 0; i < response.getOrderNumbersCount(); i++) {
+                cacheOrder(response.getOrderNumbers(i), request.getLines(i));
+            }
+
+            // Build data object response
+            CartData data = CartData.builder().orderNumbers(response.getOrderNumbersList()).build();
+            reply = objectMapper.writeValueAsBytes(CartDataWrapper.builder().data(data).build());
+            code = 200;
+        } else {
+            // Build error object response
+            Error error = Error.builder().code(404).message(response.getErrorMessage()).build();
+            reply = objectMapper.writeValueAsBytes(ErrorWrapper.builder().error(error).build());
+            code = 404;
+        }
+
+        // Optionally print response object
+        if(testMode) {
+            System.out.println("Cart order response object: ");
+            System.out.println(new String(reply));
+            System.out.println();
+        }
+
+        // Send response
+        HTTPHandlerUtility.sendResponse(exchange, code, reply);
     }
 
     /**
@@ -263,111 +567,184 @@ public class OrdersHandler implements HttpHandler {
      * @throws IOException
      */
     private void handleQueryOrderResponse(OrderQueryResponse response, HttpExchange exchange) throws IOException {
-        OutputStream outputStream = exchange.getResponseBody();
-
         // Build reply object based on success
-        String reply;
+        byte[] reply;
+        int code;
         if (response.getSuccess()) {
             // Get the order record from the response
             OrderRecord orderRecord = response.getOrder();
 
-            // Build data object response
-            OrderData data = OrderData.builder()
-                                    .number(orderRecord.getOrderNumber())
-                                    .name(orderRecord.getName())
-                                    .quantity(orderRecord.getQuantity())
-                                    .build();
-            reply = objectMapper.writeValueAsString(OrderDataWrapper.builder().data(data).build());
-            exchange.sendResponseHeaders(200, 0);
+            // Build data object response and cache it for later lookups
+            reply = encodeOrder(orderRecord.getOrderNumber(), orderRecord.getName(), orderRecord.getQuantity());
+            orderCache.put(orderRecord.getOrderNumber(), reply);
+            code = 200;
         } else {
             // Build error object response
             Error error = Error.builder().code(404).message(response.getErrorMessage()).build();
-            reply = objectMapper.writeValueAsString(ErrorWrapper.builder().error(error).build());
-            exchange.sendResponseHeaders(404, 0);
+            reply = objectMapper.writeValueAsBytes(ErrorWrapper.builder().error(error).build());
+            code = 404;
         }
 
         // Optionally print response object
         if(testMode) {
             System.out.println("Query Order response object: ");
-            System.out.println(reply);
+            System.out.println(new String(reply));
             System.out.println();
         }
 
         // Send response
-        outputStream.write(reply.getBytes());
-        outputStream.flush();
-        outputStream.close();
+        HTTPHandlerUtility.sendResponse(exchange, code, reply);
     }
 
     /**
-     * Elects a new leader order service node
-     * @param offlineLeaderId The previous leader that is unresponsive,
-     *                       -1 indicates that a leader has not been elected yet
+     * Gives the current leader and the election counts
+     * @return Map of the statistic names to their values
      */
-    private synchronized void electLeader(int offlineLeaderId) {
-        // handle elections triggered while an election was already in place
-        if (currentOrderServiceId != offlineLeaderId) {
-            return;
-        }
-        System.out.println("Electing a new leader Order Service...");
+    public Map<String, Long> getLeaderStats() {
+        return leaderMonitor.getStats();
+    }
 
-        HealthRequest req = HealthRequest.newBuilder().setMessage("Are you online?").build();
+    /**
+     * Gives the lookup counts of the followers and the leader, and the watermark of every healthy node
+     * @return Map of the statistic names to their values
+     */
+    public Map<String, Long> getFollowerReadStats() {
+        return followerReadRouter.getStats();
+    }
 
-        int idIndex = 0;
-        Address leaderAddress = null;
-        OrderServiceGrpc.OrderServiceBlockingStub stub = null;
+    /**
+     * Caches the lookup response of an order placed through the gateway
+     * @param orderNumber The order number given to the order
+     * @param request The buy request of the order
+     * @throws IOException
+     */
+    private void cacheOrder(int orderNumber, OrderBuyRequest request) throws IOException {
+        orderCache.put(orderNumber, encodeOrder(orderNumber, request.getName(), request.getQuantity()));
+    }
 
-        while (idIndex < totalIds) {
-            leaderAddress = orderAddresses.get(orderIds[idIndex]);
-            String target = leaderAddress.toString();
-            ManagedChannel channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
-            stub = OrderServiceGrpc.newBlockingStub(channel);
+    /**
+     * Serializes the response to a lookup of an order
+     * @param orderNumber The order number
+     * @param name Product name of the order
+     * @param quantity Quantity of items in the order
+     * @return The serialized order response
+     * @throws IOException
+     */
+    private byte[] encodeOrder(int orderNumber, String name, int quantity) throws IOException {
+        OrderData data = OrderData.builder()
+                                .number(orderNumber)
+                                .name(name)
+                                .quantity(quantity)
+                                .build();
+        return objectMapper.writeValueAsBytes(OrderDataWrapper.builder().data(data).build());
+    }
 
-            try {
-                HealthResponse response = stub.withWaitForReady().withDeadlineAfter(timeoutSeconds, TimeUnit.SECONDS).checkHealth(req);
-                break;
-            } catch (StatusRuntimeException e) {}
-            idIndex++;
-        }
+    /**
+     * Starts the time and attempt budget of a request. A request is sent to at most as many leaders as there
+     * are order service nodes, since each election replaces the leader with a node that is still online.
+     * @return The budget
+     */
+    private CallBudget newCallBudget() {
+        return new CallBudget(orderDeadlineMillis, leaderMonitor.getNodes().size());
+    }
 
-        // Check if no services responded
-        if (idIndex == totalIds) {
-            System.out.println("No active order service found.");
-            System.out.println("Exiting gracefully.");
-            System.exit(0);
-            return;
+    /**
+     * Gives whether a request failed because the client disconnected
+     * @param throwable The failure of the request, or null if it succeeded
+     * @return True if the request was cancelled
+     */
+    private boolean isCancelled(Throwable throwable) {
+        return throwable != null && Status.fromThrowable(throwable).getCode() == Status.Code.CANCELLED;
+    }
+
+    /**
+     * Gives whether a request that failed on the leader may be resent to a new leader. A request that ran out of
+     * time is not resent, since it has no time left and a buy may have been placed before the deadline passed,
+     * nor is a request cancelled because the client disconnected.
+     * @param throwable The failure of the request, or null if it succeeded
+     * @return True if the request failed on the leader and may be resent
+     */
+    private boolean isResendable(Throwable throwable) {
+        if (!(throwable instanceof StatusRuntimeException)) {
+            return false;
         }
+        Status.Code code = ((StatusRuntimeException) throwable).getStatus().getCode();
+        return code != Status.Code.CANCELLED && code != Status.Code.DEADLINE_EXCEEDED;
+    }
 
-        orderStub = stub;
-        currentOrderServiceId = orderIds[idIndex];
-        int newLeaderIndex = idIndex;
+    /**
+     * Answers a request whose budget ran out before a leader answered it: with a 504 error if its deadline passed,
+     * or a 503 error if it was sent to as many leaders as there are nodes
+     * @param budget The budget of the request
+     * @param exchange The http exchange object
+     * @throws IOException
+     */
+    private void handleExhaustedBudgetResponse(CallBudget budget, HttpExchange exchange) throws IOException {
+        if (budget.isExpired()) {
+            HTTPHandlerUtility.handleTimeoutResponse(exchange, objectMapper);
+        } else {
+            HTTPHandlerUtility.handleUnavailableResponse(exchange, objectMapper);
+        }
+    }
 
-        System.out.println("Elected a new leader Order Service with id " + orderIds[idIndex]);
+    /**
+     * Answers a request whose budget ran out from an rpc or election callback
+     * @param budget The budget of the request
+     * @param exchange The http exchange object
+     */
+    private void handleExhaustedBudgetResponseAsync(CallBudget budget, HttpExchange exchange) {
+        try {
+            handleExhaustedBudgetResponse(budget, exchange);
+        } catch (IOException e) {
+            exchange.close();
+        }
+    }
 
-        // Create leader assignment
-        LeaderAssignment assignment = LeaderAssignment.newBuilder()
-                .setId(orderIds[idIndex])
-                .setHost(leaderAddress.getHost())
-                .setPort(leaderAddress.getPort())
-                .build();
+    /**
+     * Waits for the leader monitor to replace the leader a request failed on. Answers the client with an error
+     * if the request may not be resent, if no order service is online, or if the leader is still the online node
+     * with the highest id, since the request then did not fail because the leader was down
+     * @param failedLeader The leader the request failed on
+     * @param failure The failure of the request
+     * @param exchange The http exchange object
+     * @return True if a new leader was elected and the request should be resent to it
+     * @throws IOException
+     */
+    private boolean awaitNewLeader(OrderNodeClient failedLeader, StatusRuntimeException failure, HttpExchange exchange)
+            throws IOException {
+        if (!isResendable(failure)) {
+            HTTPHandlerUtility.handleFailedCallResponse(exchange, objectMapper, failure);
+            return false;
+        }
+        OrderNodeClient newLeader = leaderMonitor.replaceLeader(failedLeader).exceptionally(throwable -> null).join();
+        if (newLeader == null || newLeader == failedLeader) {
+            HTTPHandlerUtility.handleUnavailableResponse(exchange, objectMapper);
+            return false;
+        }
+        return true;
+    }
 
-        // Notify online nodes of assignment
-        while (idIndex < totalIds) {
+    /**
+     * Resends a request once the leader monitor replaces the leader it failed on, from the callback of the election
+     * so no thread waits on it. Answers the client with an error if no new leader is elected.
+     * @param failedLeader The leader the request failed on
+     * @param exchange The http exchange object
+     * @param resend Resends the request to the current leader
+     */
+    private void resendToNewLeader(OrderNodeClient failedLeader, HttpExchange exchange, Runnable resend) {
+        // Resend in the context of the failed request, so the resent request is still cancelled if the client disconnects
+        Runnable resendInContext = Context.current().wrap(resend);
+        leaderMonitor.replaceLeader(failedLeader).whenComplete((newLeader, throwable) -> {
+            if (newLeader != null && newLeader != failedLeader) {
+                resendInContext.run();
+                return;
+            }
             try {
-                LeaderAssignmentResponse response = stub.assignLeader(assignment);
-                if (idIndex > newLeaderIndex) {
-                    // close channel after sending
-                    ((ManagedChannel) stub.getChannel()).shutdown();
-                }
-            } catch (StatusRuntimeException e) {}
-            idIndex++;
-            if (idIndex < totalIds) {
-                leaderAddress = orderAddresses.get(orderIds[idIndex]);
-                String target = leaderAddress.toString();
-                ManagedChannel channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
-                stub = OrderServiceGrpc.newBlockingStub(channel);
+                HTTPHandlerUtility.handleUnavailableResponse(exchange, objectMapper);
+            } catch (IOException e) {
+                exchange.close();
             }
-        }
+        });
     }
 
     /**
@@ -397,6 +774,33 @@ public class OrdersHandler implements HttpHandler {
     }
 
 
+    /**
+     * Data to be sent to client upon successful cart order
+     */
+    @lombok.Data
+    @Builder
+    @Jacksonized
+    private static class CartData {
+        /**
+         * Order numbers of the cart lines, in cart order
+         */
+        private List<Integer> orderNumbers;
+    }
+
+    /**
+     * Wrapper for data object for serialization
+     */
+    @lombok.Data
+    @Builder
+    @Jacksonized
+    private static class CartDataWrapper {
+        /**
+         * Wrapped data
+         */
+        private CartData data;
+    }
+
+
     /**
      * Data to be sent to client upon successful order
      */
@@ -0,0 +1,46 @@
+package com.dixon.gateway;
+
+/**
+ * A cache of product stock and price data for recently queried items, keyed by product name
+ */
+public interface ProductCache {
+    /**
+     * Retrieves the data for the specified product if it exists in the cache
+     * @param item The desired product
+     * @return The data object containing the product stock and price information if it exists in the cache,
+     * else returns null
+     */
+    Data get(String item);
+
+    /**
+     * Retrieves the node holding the data for the specified product if it exists in the cache,
+     * recording the access the same way as get
+     * @param item The desired product
+     * @return The node containing the product data and the time it was loaded if it exists in the cache,
+     * else returns null
+     */
+    LRUNode getNode(String item);
+
+    /**
+     * Adds new data to the cache
+     * @param data The data to be added to the cache
+     */
+    void put(Data data);
+
+    /**
+     * Invalidates an item, removing it from the cache
+     * @param item The item to be invalidated
+     */
+    void invalidate(String item);
+
+    /**
+     * Invalidates every item, emptying the cache
+     */
+    void invalidateAll();
+
+    /**
+     * Gives the hit and miss counts of the cache
+     * @return The current cache statistics
+     */
+    CacheStats getStats();
+}
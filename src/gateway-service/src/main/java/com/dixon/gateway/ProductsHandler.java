@@ -1,5 +1,7 @@
 package com.dixon.gateway;
 
+import com.dixon.CatalogBatchQueryRequest;
+import com.dixon.CatalogBatchQueryResponse;
 import com.dixon.CatalogQueryRequest;
 import com.dixon.CatalogQueryResponse;
 import com.dixon.CatalogServiceGrpc;
@@ -8,16 +10,25 @@ import com.dixon.common.ErrorWrapper;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
+import io.grpc.Deadline;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.StatusRuntimeException;
 import lombok.Builder;
 import lombok.extern.jackson.Jacksonized;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles query requests from a client
@@ -34,9 +45,40 @@ public class ProductsHandler implements HttpHandler {
     protected final ObjectMapper objectMapper;
 
     /**
-     * gRPC stub to make rpc calls the catalog service
+     * Default time in milliseconds a catalog query may take
      */
-    protected final CatalogServiceGrpc.CatalogServiceBlockingStub catalogStub;
+    public static final long DEFAULT_QUERY_DEADLINE_MILLIS = 1000;
+
+    /**
+     * gRPC future stub to make asynchronous rpc calls to the catalog service
+     */
+    protected final CatalogServiceGrpc.CatalogServiceFutureStub catalogFutureStub;
+
+    /**
+     * gRPC future stub on a second channel to the catalog service, which hedged queries are sent on,
+     * null if queries are not hedged
+     */
+    private final CatalogServiceGrpc.CatalogServiceFutureStub hedgeFutureStub;
+
+    /**
+     * Hedges catalog queries that are slower than most, null if queries are not hedged
+     */
+    private final Hedger hedger;
+
+    /**
+     * Time in milliseconds a catalog query may take, 0 for no deadline
+     */
+    private final long queryDeadlineMillis;
+
+    /**
+     * Communication channel to the catalog service
+     */
+    protected final ManagedChannel catalogChannel;
+
+    /**
+     * Boolean to indicate whether requests are answered from gRPC callbacks instead of blocking the handler thread
+     */
+    protected final boolean asyncMode;
 
     /**
      * Boolean to indicate whether test mode is activated to show response before sending
@@ -50,6 +92,34 @@ public class ProductsHandler implements HttpHandler {
      * @param testMode Indicates whether the handler should show testing mode output
      */
     public ProductsHandler(String host, int port, boolean testMode) {
+        this(host, port, false, testMode);
+    }
+
+    /**
+     * Instantiates a ProductsHandler instance, obtaining a gRPC stub to the catalog service at host:port
+     * @param host The host address of the catalog service
+     * @param port The port address of the catalog service
+     * @param asyncMode Indicates whether requests are answered from gRPC callbacks, releasing the handler thread
+     *                  while the catalog service is queried
+     * @param testMode Indicates whether the handler should show testing mode output
+     */
+    public ProductsHandler(String host, int port, boolean asyncMode, boolean testMode) {
+        this(host, port, DEFAULT_QUERY_DEADLINE_MILLIS, false, asyncMode, testMode);
+    }
+
+    /**
+     * Instantiates a ProductsHandler instance, obtaining a gRPC stub to the catalog service at host:port,
+     * and a second one on its own channel if queries are hedged
+     * @param host The host address of the catalog service
+     * @param port The port address of the catalog service
+     * @param queryDeadlineMillis Time in milliseconds a catalog query may take, 0 for no deadline
+     * @param hedging Indicates whether queries slower than most are sent a second time on the second channel
+     * @param asyncMode Indicates whether requests are answered from gRPC callbacks, releasing the handler thread
+     *                  while the catalog service is queried
+     * @param testMode Indicates whether the handler should show testing mode output
+     */
+    public ProductsHandler(String host, int port, long queryDeadlineMillis, boolean hedging, boolean asyncMode,
+                           boolean testMode) {
         super();
         // Create object mapper
         JsonFactory jsonFactory = new JsonFactory();
@@ -59,10 +129,21 @@ public class ProductsHandler implements HttpHandler {
 
         // Create a communication channel to the server and get stub
         String target = host + ":" + port;
-        ManagedChannel channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
-        catalogStub = CatalogServiceGrpc.newBlockingStub(channel);
+        catalogChannel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
+        catalogFutureStub = CatalogServiceGrpc.newFutureStub(catalogChannel);
 
-        // Set test mode
+        // A hedged query must not wait behind the first attempt on the same connection
+        if (hedging) {
+            hedgeFutureStub = CatalogServiceGrpc.newFutureStub(ManagedChannelBuilder.forTarget(target).usePlaintext().build());
+            hedger = new Hedger();
+        } else {
+            hedgeFutureStub = null;
+            hedger = null;
+        }
+        this.queryDeadlineMillis = queryDeadlineMillis;
+
+        // Set handler and test mode
+        this.asyncMode = asyncMode;
         this.testMode = testMode;
     }
 
@@ -79,13 +160,145 @@ public class ProductsHandler implements HttpHandler {
             return;
         }
 
+        // Handle batch queries of the form /products?names=a,b,c
+        List<String> batchProductNames = HTTPHandlerUtility.getBatchProductNames(exchange);
+        if (batchProductNames != null) {
+            if (batchProductNames.size() > HTTPHandlerUtility.MAX_BATCH_NAMES) {
+                HTTPHandlerUtility.handleBatchTooLargeResponse(exchange, objectMapper);
+                return;
+            }
+            handleBatchQuery(batchProductNames, exchange);
+            return;
+        }
+
         // Get product name
         String productName = HTTPHandlerUtility.getProductName(exchange);
 
-        // Query catalog service
+        // Query catalog service, answering from the rpc callback in async mode
         CatalogQueryRequest request = CatalogQueryRequest.newBuilder().setName(productName).build();
-        CatalogQueryResponse response = catalogStub.query(request);
+        if (asyncMode) {
+            completeAsync(queryCatalog(request), exchange);
+            return;
+        }
+        CatalogQueryResponse response;
+        try {
+            response = FutureUtility.join(queryCatalog(request));
+        } catch (StatusRuntimeException e) {
+            HTTPHandlerUtility.handleFailedCallResponse(exchange, objectMapper, e);
+            return;
+        }
+
+        // Send response data or error back to client
+        handleQueryResponse(response, exchange);
+    }
 
+    /**
+     * Queries the catalog service for a product within the query deadline, hedging the query if enabled
+     * @param request The catalog query request
+     * @return The future of the catalog query response
+     */
+    protected CompletableFuture<CatalogQueryResponse> queryCatalog(CatalogQueryRequest request) {
+        Deadline deadline = getQueryDeadline();
+        if (hedger == null) {
+            return FutureUtility.toCompletableFuture(catalogFutureStub.withDeadline(deadline).query(request));
+        }
+        return hedger.call(catalogFutureStub, hedgeFutureStub, stub -> stub.withDeadline(deadline).query(request));
+    }
+
+    /**
+     * Queries the catalog service for several products in a single rpc within the query deadline,
+     * hedging the query if enabled
+     * @param request The catalog batch query request
+     * @return The future of the catalog batch query response
+     */
+    protected CompletableFuture<CatalogBatchQueryResponse> queryCatalogBatch(CatalogBatchQueryRequest request) {
+        Deadline deadline = getQueryDeadline();
+        if (hedger == null) {
+            return FutureUtility.toCompletableFuture(catalogFutureStub.withDeadline(deadline).queryBatch(request));
+        }
+        return hedger.call(catalogFutureStub, hedgeFutureStub, stub -> stub.withDeadline(deadline).queryBatch(request));
+    }
+
+    /**
+     * Gives the deadline of a catalog query starting now
+     * @return The deadline, or null if queries have no deadline
+     */
+    private Deadline getQueryDeadline() {
+        return queryDeadlineMillis > 0 ? Deadline.after(queryDeadlineMillis, TimeUnit.MILLISECONDS) : null;
+    }
+
+    /**
+     * Gives the number of catalog queries, of hedged attempts and of queries the hedged attempt answered,
+     * and the delay after which queries are hedged
+     * @return Map of the statistic names to their values
+     */
+    public Map<String, Long> getHedgingStats() {
+        return hedger == null ? Map.of() : hedger.getStats();
+    }
+
+    /**
+     * Handles batch query requests by querying the catalog service for every product in a single rpc
+     * @param productNames The distinct product names in request order
+     * @param exchange The http exchange object
+     * @throws IOException
+     */
+    protected void handleBatchQuery(List<String> productNames, HttpExchange exchange) throws IOException {
+        BatchResult result = new BatchResult(productNames);
+        CatalogBatchQueryRequest request = CatalogBatchQueryRequest.newBuilder().addAllNames(productNames).build();
+
+        // Answer from the rpc callback in async mode
+        if (asyncMode) {
+            completeBatchAsync(queryCatalogBatch(request), result, exchange);
+            return;
+        }
+        try {
+            FutureUtility.join(queryCatalogBatch(request)).getResponsesList().forEach(result::addResponse);
+        } catch (StatusRuntimeException e) {
+            HTTPHandlerUtility.handleFailedCallResponse(exchange, objectMapper, e);
+            return;
+        }
+        handleBatchResponse(result, exchange);
+    }
+
+    /**
+     * Answers a batch query once the catalog service responds, without holding the handler thread
+     * @param future The future of the catalog batch query response
+     * @param result The batch result, to which the catalog responses are added
+     * @param exchange The http exchange object
+     */
+    protected void completeBatchAsync(CompletableFuture<CatalogBatchQueryResponse> future, BatchResult result,
+                                      HttpExchange exchange) {
+        future.whenComplete((response, throwable) -> {
+            try {
+                if (throwable != null) {
+                    HTTPHandlerUtility.handleFailedCallResponse(exchange, objectMapper, throwable);
+                } else {
+                    response.getResponsesList().forEach(result::addResponse);
+                    handleBatchResponse(result, exchange);
+                }
+            } catch (IOException e) {
+                exchange.close();
+            }
+        });
+    }
+
+    /**
+     * Sends the data of every found product and an error object for every unknown product back to client
+     * @param result The batch result
+     * @param exchange The http exchange object
+     * @throws IOException
+     */
+    protected void handleBatchResponse(BatchResult result, HttpExchange exchange) throws IOException {
+        sendResponse(exchange, 200, objectMapper.writeValueAsBytes(result.toWrapper()));
+    }
+
+    /**
+     * Sends the product data back to client if the query was successful, else sends error object
+     * @param response The response object from the catalog service
+     * @param exchange The http exchange object
+     * @throws IOException
+     */
+    protected void handleQueryResponse(CatalogQueryResponse response, HttpExchange exchange) throws IOException {
         // Send error data back to client if error occurred
         if (!response.getSuccess()) {
             Error error = Error.builder().code(404).message(response.getErrorMessage()).build();
@@ -100,6 +313,27 @@ public class ProductsHandler implements HttpHandler {
         handleDataResponse(data, exchange);
     }
 
+    /**
+     * Answers a query once the catalog service responds, without holding the handler thread.
+     * The response is sent from the thread completing the future, and a failed query is answered with a 503 error,
+     * or a 504 error if it ran out of time.
+     * @param future The future of the catalog query response
+     * @param exchange The http exchange object
+     */
+    protected void completeAsync(CompletableFuture<CatalogQueryResponse> future, HttpExchange exchange) {
+        future.whenComplete((response, throwable) -> {
+            try {
+                if (throwable != null) {
+                    HTTPHandlerUtility.handleFailedCallResponse(exchange, objectMapper, throwable);
+                } else {
+                    handleQueryResponse(response, exchange);
+                }
+            } catch (IOException e) {
+                exchange.close();
+            }
+        });
+    }
+
     /**
      * Sends data object back to client
      * @param data The data object containing product name, price, and quantity
@@ -107,12 +341,8 @@ public class ProductsHandler implements HttpHandler {
      * @throws IOException
      */
     protected void handleDataResponse(Data data, HttpExchange exchange) throws IOException {
-        // Build data object response
-        String reply = objectMapper.writeValueAsString(DataWrapper.builder().data(data).build());
-        exchange.sendResponseHeaders(200, 0);
-
-        // Send response
-        sendResponse(exchange, reply);
+        // Send data object response
+        sendResponse(exchange, 200, encodeData(data));
     }
 
     /**
@@ -122,34 +352,136 @@ public class ProductsHandler implements HttpHandler {
      * @throws IOException
      */
     protected void handleErrorResponse(Error error, HttpExchange exchange) throws IOException {
-        // Build error object response
-        String reply = objectMapper.writeValueAsString(ErrorWrapper.builder().error(error).build());
-        exchange.sendResponseHeaders(404, 0);
+        // Send error object response
+        sendResponse(exchange, 404, encodeError(error));
+    }
 
-        // Send response
-        sendResponse(exchange, reply);
+    /**
+     * Serializes a data object response
+     * @param data The data object containing product name, price, and quantity
+     * @return The serialized response
+     */
+    protected byte[] encodeData(Data data) {
+        try {
+            return objectMapper.writeValueAsBytes(DataWrapper.builder().data(data).build());
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Serializes an error object response
+     * @param error The error object
+     * @return The serialized response
+     */
+    protected byte[] encodeError(Error error) {
+        try {
+            return objectMapper.writeValueAsBytes(ErrorWrapper.builder().error(error).build());
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
      * Sends response back to client
      * @param exchange The http exchange object
-     * @param reply The response object as a string
+     * @param code The response status code
+     * @param reply The serialized response object
      * @throws IOException
      */
-    protected void sendResponse(HttpExchange exchange, String reply) throws IOException {
-        OutputStream outputStream = exchange.getResponseBody();
-
+    protected void sendResponse(HttpExchange exchange, int code, byte[] reply) throws IOException {
         // Optionally print response object
         if(testMode) {
             System.out.println("Query response object: ");
-            System.out.println(reply);
+            System.out.println(new String(reply));
             System.out.println();
         }
 
         // Send response
-        outputStream.write(reply.getBytes());
-        outputStream.flush();
-        outputStream.close();
+        HTTPHandlerUtility.sendResponse(exchange, code, reply);
+    }
+
+    /**
+     * Collects the results of a batch query, keeping the found products in request order
+     */
+    protected static class BatchResult {
+        /**
+         * Maps each requested product name to its data, null until the product is found
+         */
+        private final Map<String, Data> data = new LinkedHashMap<>();
+
+        /**
+         * Errors for the products that do not exist
+         */
+        private final List<Error> errors = new ArrayList<>();
+
+        /**
+         * Instantiates a BatchResult
+         * @param productNames The distinct product names in request order
+         */
+        protected BatchResult(List<String> productNames) {
+            productNames.forEach(productName -> data.put(productName, null));
+        }
+
+        /**
+         * Adds the data of a found product
+         * @param productData The product data
+         */
+        protected void addData(Data productData) {
+            data.put(productData.getName(), productData);
+        }
+
+        /**
+         * Adds an error for a product that does not exist
+         * @param errorMessage The error message returned by the catalog service
+         */
+        protected void addError(String errorMessage) {
+            errors.add(Error.builder().code(404).message(errorMessage).build());
+        }
+
+        /**
+         * Adds the result of a catalog query
+         * @param response The response object from the catalog service
+         */
+        protected void addResponse(CatalogQueryResponse response) {
+            if (response.getSuccess()) {
+                addData(Data.builder().name(response.getName()).price(response.getPrice()).quantity(response.getQuantity()).build());
+            } else {
+                addError(response.getErrorMessage());
+            }
+        }
+
+        /**
+         * Gives the wrapper serialized as the batch query response
+         * @return The batch data wrapper
+         */
+        private BatchDataWrapper toWrapper() {
+            List<Data> found = new ArrayList<>();
+            data.values().forEach(productData -> {
+                if (productData != null) {
+                    found.add(productData);
+                }
+            });
+            return BatchDataWrapper.builder().data(found).errors(errors).build();
+        }
+    }
+
+    /**
+     * Wrapper for batch query data and error objects for serialization
+     */
+    @lombok.Data
+    @Builder
+    @Jacksonized
+    private static class BatchDataWrapper {
+        /**
+         * Data of the found products
+         */
+        private List<Data> data;
+
+        /**
+         * Errors for the products that do not exist
+         */
+        private List<Error> errors;
     }
 
     /**
@@ -0,0 +1,114 @@
+package com.dixon.gateway;
+
+import com.dixon.common.Error;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Handles query requests from a client by answering them from a CatalogReplica, a full copy of the catalog
+ * kept up to date from the catalog service's replication stream, so queries never leave the gateway
+ * while the replica is synced. While the replica resyncs, queries are sent to the catalog service instead.
+ */
+public class ReplicaProductsHandler extends ProductsHandler {
+
+    /**
+     * Local copy of the price and stock of every product
+     */
+    private final CatalogReplica replica;
+
+    /**
+     * Instantiates a ReplicaProductsHandler instance, obtaining a gRPC stub to the catalog service at host:port
+     * and subscribing to its replication stream
+     * @param host The host address of the catalog service
+     * @param port The port address of the catalog service
+     * @param subscriberName Name identifying this gateway to the catalog service
+     * @param asyncMode Indicates whether queries sent to the catalog service while the replica resyncs are answered
+     *                  from gRPC callbacks, releasing the handler thread
+     * @param testMode Indicates whether the handler should show testing mode output
+     */
+    public ReplicaProductsHandler(String host, int port, String subscriberName, boolean asyncMode, boolean testMode) {
+        super(host, port, asyncMode, testMode);
+        this.replica = new CatalogReplica(catalogChannel, subscriberName);
+        replica.start();
+    }
+
+    /**
+     * Handles query requests
+     * @param exchange The http exchange object
+     * @throws IOException
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        // Query catalog service while the replica resyncs
+        if (!replica.isSynced()) {
+            super.handle(exchange);
+            return;
+        }
+
+        // Check that http method is GET
+        if(!exchange.getRequestMethod().equals(GET_METHOD)) {
+            HTTPHandlerUtility.handleUnknownMethodResponse(exchange, super.objectMapper);
+            return;
+        }
+
+        // Handle batch queries of the form /products?names=a,b,c
+        List<String> batchProductNames = HTTPHandlerUtility.getBatchProductNames(exchange);
+        if (batchProductNames != null) {
+            if (batchProductNames.size() > HTTPHandlerUtility.MAX_BATCH_NAMES) {
+                HTTPHandlerUtility.handleBatchTooLargeResponse(exchange, super.objectMapper);
+                return;
+            }
+            handleBatchQuery(batchProductNames, exchange);
+            return;
+        }
+
+        // Get product name
+        String productName = HTTPHandlerUtility.getProductName(exchange);
+
+        // The replica holds every product, so a product missing from it does not exist in the catalog
+        LRUNode node = replica.get(productName);
+        if (node == null) {
+            handleErrorResponse(Error.builder().code(404).message(productName + " does not exist in catalog.").build(), exchange);
+            return;
+        }
+
+        // Send the replicated response, which is only serialized on the first query after the data changes
+        sendResponse(exchange, 200, node.getResponse(this::encodeData));
+    }
+
+    /**
+     * Handles batch query requests, answering every product from the replica while it is synced
+     * @param productNames The distinct product names in request order
+     * @param exchange The http exchange object
+     * @throws IOException
+     */
+    @Override
+    protected void handleBatchQuery(List<String> productNames, HttpExchange exchange) throws IOException {
+        if (!replica.isSynced()) {
+            super.handleBatchQuery(productNames, exchange);
+            return;
+        }
+
+        BatchResult result = new BatchResult(productNames);
+        for (String productName : productNames) {
+            LRUNode node = replica.get(productName);
+            if (node != null) {
+                result.addData(node.getData());
+            } else {
+                result.addError(productName + " does not exist in catalog.");
+            }
+        }
+        handleBatchResponse(result, exchange);
+    }
+
+    /**
+     * Gives the size, sync state, update counts and replication lag of the replica
+     * @return Map of the statistic names to their values
+     */
+    public Map<String, Long> getReplicaStats() {
+        return replica.getStats();
+    }
+}
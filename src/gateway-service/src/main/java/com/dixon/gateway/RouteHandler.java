@@ -0,0 +1,63 @@
+package com.dixon.gateway;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+
+/**
+ * Passes on to another handler only the requests for a route's path itself or a path below it. An HttpServer context
+ * matches any path starting with its own, so the context of /products would otherwise also serve /productsX.
+ * Other requests are answered right away with a 404, before they reach admission control or a lane.
+ */
+public class RouteHandler implements HttpHandler {
+    /**
+     * Object mapper used for marshaling and unmarshalling
+     */
+    private final ObjectMapper objectMapper;
+
+    /**
+     * The route's path, without a trailing slash
+     */
+    private final String route;
+
+    /**
+     * The handler serving the route
+     */
+    private final HttpHandler delegate;
+
+    /**
+     * Instantiates a RouteHandler
+     * @param route The route's path, without a trailing slash
+     * @param delegate The handler serving the route
+     */
+    public RouteHandler(String route, HttpHandler delegate) {
+        super();
+        // Create object mapper
+        JsonFactory jsonFactory = new JsonFactory();
+        jsonFactory.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+        jsonFactory.configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
+        this.objectMapper = new ObjectMapper(jsonFactory);
+
+        this.route = route;
+        this.delegate = delegate;
+    }
+
+    /**
+     * Passes a request on to the route's handler, or rejects it if its path is not the route's
+     * @param exchange The http exchange object
+     * @throws IOException
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!HTTPHandlerUtility.isRoutePath(exchange.getRequestURI().getPath(), route)) {
+            HTTPHandlerUtility.handleNotFoundResponse(exchange, objectMapper);
+            return;
+        }
+        delegate.handle(exchange);
+    }
+}
@@ -0,0 +1,91 @@
+package com.dixon.gateway;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls for the same key so that only one call is in flight per key,
+ * and every caller receives the result of that call
+ * @param <K> The key type
+ * @param <V> The result type
+ */
+public class SingleFlight<K, V> {
+    /**
+     * Maps each key to the future of its in-flight call
+     */
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Number of calls that were started
+     */
+    private final LongAdder calls = new LongAdder();
+
+    /**
+     * Number of callers that joined a call already in flight
+     */
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Starts a call for the key, or joins the call already in flight for the key
+     * @param key The key
+     * @param call Starts the call and gives the future of its result, only invoked if no call is in flight
+     * @return The future of the in-flight call's result
+     */
+    public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalesced.increment();
+            return existing;
+        }
+        calls.increment();
+
+        // Start the call, removing it from the in-flight map before completing the callers
+        CompletableFuture<V> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((value, throwable) -> {
+            inFlight.remove(key, future);
+            if (throwable != null) {
+                future.completeExceptionally(throwable);
+            } else {
+                future.complete(value);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Detaches the call in flight for a key so that later callers start a new call,
+     * used when the result of the in-flight call is known to be out of date
+     * @param key The key
+     */
+    public void forget(K key) {
+        inFlight.remove(key);
+    }
+
+    /**
+     * Detaches every call in flight so that later callers start new calls
+     */
+    public void forgetAll() {
+        inFlight.clear();
+    }
+
+    /**
+     * Gives the started and coalesced call counts
+     * @return Map of the statistic names to their values
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("calls", calls.sum());
+        stats.put("coalesced", coalesced.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,77 @@
+package com.dixon.gateway;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Handles requests for gateway statistics, such as the cache hit ratio, used when benchmarking
+ */
+public class StatsHandler implements HttpHandler {
+    /**
+     * String representation of GET method
+     */
+    private static final String GET_METHOD = "GET";
+
+    /**
+     * Object mapper used for marshaling and unmarshalling
+     */
+    private final ObjectMapper objectMapper;
+
+    /**
+     * Maps the name of each statistics section to the supplier of its current value
+     */
+    private final Map<String, Supplier<Object>> sources = new LinkedHashMap<>();
+
+    /**
+     * Instantiates a StatsHandler with no statistics sources
+     */
+    public StatsHandler() {
+        super();
+        // Create object mapper
+        JsonFactory jsonFactory = new JsonFactory();
+        jsonFactory.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+        jsonFactory.configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
+        this.objectMapper = new ObjectMapper(jsonFactory);
+    }
+
+    /**
+     * Registers a statistics section, must be called before the server is started
+     * @param name The name of the section in the response
+     * @param source Supplier of the current statistics for the section
+     */
+    public void register(String name, Supplier<Object> source) {
+        sources.put(name, source);
+    }
+
+    /**
+     * Handles statistics requests
+     * @param exchange The http exchange object
+     * @throws IOException
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        // Check that http method is GET
+        if (!exchange.getRequestMethod().equals(GET_METHOD)) {
+            HTTPHandlerUtility.handleUnknownMethodResponse(exchange, objectMapper);
+            return;
+        }
+
+        // Collect the current value of every section
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Map.Entry<String, Supplier<Object>> entry : sources.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().get());
+        }
+
+        // Send response
+        HTTPHandlerUtility.sendResponse(exchange, 200, objectMapper.writeValueAsBytes(stats));
+    }
+}
@@ -0,0 +1,200 @@
+package com.dixon.gateway;
+
+/**
+ * W-TinyLFU eviction policy. New nodes enter a small LRU admission window. Nodes leaving the window
+ * are only admitted to the main cache if the FrequencySketch estimates they are accessed more often than
+ * the node the main cache would evict, so a single query for a cold product cannot push out a hot one.
+ * The main cache is a segmented LRU, where nodes accessed again while on probation are promoted to a
+ * protected segment.
+ */
+public class TinyLFUEvictionPolicy implements EvictionPolicy {
+    /**
+     * Percentage of the capacity given to the admission window
+     */
+    private static final int WINDOW_PERCENT = 1;
+
+    /**
+     * Percentage of the main cache given to the protected segment
+     */
+    private static final int PROTECTED_PERCENT = 80;
+
+    /**
+     * Queue of recently inserted nodes that have not been through admission yet
+     */
+    private final LRUQueue window = new LRUQueue();
+
+    /**
+     * Queue of admitted nodes that have not been accessed since admission
+     */
+    private final LRUQueue probation = new LRUQueue();
+
+    /**
+     * Queue of admitted nodes that have been accessed since admission
+     */
+    private final LRUQueue protectedQueue = new LRUQueue();
+
+    /**
+     * Frequency estimates of recently accessed products
+     */
+    private final FrequencySketch sketch;
+
+    /**
+     * Maximum number of nodes
+     */
+    private final int capacity;
+
+    /**
+     * Maximum number of nodes in the admission window
+     */
+    private final int windowCapacity;
+
+    /**
+     * Maximum number of nodes in the protected segment
+     */
+    private final int protectedCapacity;
+
+    /**
+     * Current number of nodes in the admission window
+     */
+    private int windowSize;
+
+    /**
+     * Current number of nodes in the probation segment
+     */
+    private int probationSize;
+
+    /**
+     * Current number of nodes in the protected segment
+     */
+    private int protectedSize;
+
+    /**
+     * Instantiates a new TinyLFUEvictionPolicy
+     * @param capacity Maximum number of nodes in the cache
+     */
+    public TinyLFUEvictionPolicy(int capacity) {
+        this.capacity = capacity;
+        this.windowCapacity = Math.max(1, capacity * WINDOW_PERCENT / 100);
+        this.protectedCapacity = (capacity - windowCapacity) * PROTECTED_PERCENT / 100;
+        this.sketch = new FrequencySketch(capacity);
+    }
+
+    /**
+     * Gives the name of the policy
+     * @return The policy name
+     */
+    @Override
+    public String getName() {
+        return "tinylfu";
+    }
+
+    /**
+     * Records an access in the frequency sketch and updates the node's recency,
+     * promoting nodes on probation to the protected segment
+     * @param node The accessed node
+     */
+    @Override
+    public void onAccess(LRUNode node) {
+        sketch.increment(node.getData().getName());
+        switch (node.getRegion()) {
+            case WINDOW:
+                window.moveFront(node);
+                break;
+            case PROBATION:
+                // Promote node, demoting the protected segment's least recently used node if it is full
+                probation.evict(node);
+                probationSize--;
+                node.setRegion(CacheRegion.PROTECTED);
+                protectedQueue.enqueue(node);
+                protectedSize++;
+                if (protectedSize > protectedCapacity) {
+                    LRUNode demoted = protectedQueue.dequeue();
+                    protectedSize--;
+                    demoted.setRegion(CacheRegion.PROBATION);
+                    probation.enqueue(demoted);
+                    probationSize++;
+                }
+                break;
+            case PROTECTED:
+                protectedQueue.moveFront(node);
+                break;
+        }
+    }
+
+    /**
+     * Adds a new node to the admission window. If the window overflows, its least recently used node
+     * competes with the main cache's eviction candidate and the less frequently accessed of the two is evicted.
+     * @param node The new node
+     * @return The node that lost admission if the cache is over capacity, else null
+     */
+    @Override
+    public LRUNode onInsert(LRUNode node) {
+        sketch.increment(node.getData().getName());
+        node.setRegion(CacheRegion.WINDOW);
+        window.enqueue(node);
+        windowSize++;
+        if (windowSize <= windowCapacity) {
+            return null;
+        }
+
+        // Move the window's least recently used node to probation
+        LRUNode candidate = window.dequeue();
+        windowSize--;
+        candidate.setRegion(CacheRegion.PROBATION);
+        probation.enqueue(candidate);
+        probationSize++;
+        if (windowSize + probationSize + protectedSize <= capacity) {
+            return null;
+        }
+
+        // Cache is over capacity, the candidate must beat the main cache's victim to stay
+        LRUNode victim = probation.peekTail();
+        if (victim == candidate) {
+            victim = protectedQueue.peekTail();
+        }
+        LRUNode evicted = (victim != null && admit(candidate, victim)) ? victim : candidate;
+        onRemove(evicted);
+        return evicted;
+    }
+
+    /**
+     * Removes a node from the queue of the region it is held in
+     * @param node The removed node
+     */
+    @Override
+    public void onRemove(LRUNode node) {
+        switch (node.getRegion()) {
+            case WINDOW:
+                window.evict(node);
+                windowSize--;
+                break;
+            case PROBATION:
+                probation.evict(node);
+                probationSize--;
+                break;
+            case PROTECTED:
+                protectedQueue.evict(node);
+                protectedSize--;
+                break;
+        }
+    }
+
+    /**
+     * Decides whether a candidate leaving the admission window should replace the main cache's victim
+     * @param candidate The node leaving the admission window
+     * @param victim The main cache's eviction candidate
+     * @return true if the candidate is estimated to be accessed more often than the victim
+     */
+    private boolean admit(LRUNode candidate, LRUNode victim) {
+        return sketch.frequency(candidate.getData().getName()) > sketch.frequency(victim.getData().getName());
+    }
+
+    /**
+     * Gives the string representation of a TinyLFUEvictionPolicy
+     * @return String representation of a TinyLFUEvictionPolicy
+     */
+    @Override
+    public String toString() {
+        return "WINDOW: " + window + "\n" + "PROBATION: " + probation + "\n" + "PROTECTED: " + protectedQueue;
+    }
+}
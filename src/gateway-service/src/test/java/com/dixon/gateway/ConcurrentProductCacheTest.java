@@ -0,0 +1,106 @@
+package com.dixon.gateway;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+public class ConcurrentProductCacheTest {
+    public static void main(String args[]) throws InterruptedException {
+        Data[] data = new Data[] {
+                Data.builder().name("Tux").quantity(10).price(9.99).build(),
+                Data.builder().name("Whale").quantity(20).price(19.99).build(),
+                Data.builder().name("Elephant").quantity(30).price(29.99).build(),
+                Data.builder().name("Dolphin").quantity(40).price(39.99).build(),
+                Data.builder().name("Fox").quantity(50).price(49.99).build(),
+                Data.builder().name("Python").quantity(60).price(59.99).build(),
+                Data.builder().name("Shark").quantity(70).price(69.99).build(),
+                Data.builder().name("Panda").quantity(80).price(79.99).build(),
+                Data.builder().name("Duck").quantity(90).price(89.99).build(),
+                Data.builder().name("Turtle").quantity(100).price(99.99).build(),
+        };
+
+        // Create cache
+        ConcurrentProductCache cache = new ConcurrentProductCache(5);
+
+        // Test putting items in cache
+        System.out.println("TESTING PUTTING ITEMS:");
+        for (int i = 0; i < 10; i++) {
+            cache.put(data[i]);
+            System.out.println(cache);
+        }
+        System.out.println();
+
+        // Test getting items, the queue order is updated when the read buffer is drained
+        System.out.println("TESTING GETTING ITEMS:");
+        Data lastItem = cache.get("Python");
+        System.out.println("Last Item: " + lastItem.toString());
+        System.out.println(cache);
+        Data middleItem = cache.get("Duck");
+        System.out.println("Middle Item: " + middleItem.toString());
+        System.out.println(cache);
+        System.out.println("Missing Item: " + cache.get("Tux"));
+        System.out.println();
+
+        // Test invalidating items
+        System.out.println("TESTING INVALIDATING ITEMS:");
+        System.out.println("Invalidating Duck (first item)");
+        cache.invalidate("Duck");
+        System.out.println(cache);
+        System.out.println("Invalidating Shark (last item)");
+        cache.invalidate("Shark");
+        System.out.println(cache);
+        System.out.println();
+
+        // Test that the least recently read item is evicted
+        System.out.println("TESTING EVICTION AFTER READS:");
+        cache.put(data[0]);
+        cache.put(data[1]);
+        cache.get("Turtle");
+        cache.put(data[2]);
+        System.out.println(cache);
+        System.out.println(cache.getStats());
+        System.out.println();
+
+        // Test that the encoded response is reused until the data changes
+        System.out.println("TESTING ENCODED RESPONSES:");
+        LRUNode node = cache.getNode("Turtle");
+        byte[] first = node.getResponse(d -> d.toString().getBytes());
+        System.out.println("Reused: " + (first == node.getResponse(d -> d.toString().getBytes())));
+        cache.put(Data.builder().name("Turtle").quantity(99).price(99.99).build());
+        System.out.println("Re-encoded after put: " + new String(node.getResponse(d -> d.toString().getBytes())));
+        System.out.println();
+
+        // Compare hit ratio and throughput with the synchronized LRUCache
+        System.out.println("TESTING CONCURRENT THROUGHPUT:");
+        runThroughputTest(new LRUCache(7), data);
+        runThroughputTest(new ConcurrentProductCache(7), data);
+    }
+
+    /**
+     * Runs a mix of reads and writes on the cache from several threads and prints the throughput
+     * @param cache The cache under test
+     * @param data The products to read and write
+     */
+    private static void runThroughputTest(ProductCache cache, Data[] data) throws InterruptedException {
+        int threads = 8;
+        int operations = 1_000_000;
+        Thread[] workers = new Thread[threads];
+        long startTime = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < operations; i++) {
+                    Data item = data[random.nextInt(data.length)];
+                    if (cache.get(item.getName()) == null) {
+                        cache.put(item);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        CacheStats stats = cache.getStats();
+        System.out.println(stats.getType() + ": " + Math.round(threads * operations / seconds) + " ops/s, hit ratio " + stats.getHitRatio());
+    }
+}
@@ -0,0 +1,80 @@
+package com.dixon.gateway;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class EvictionPolicyTest {
+    public static void main(String args[]) {
+        // Test the admission window and promotion with a small cache
+        System.out.println("TESTING TINYLFU REGIONS:");
+        ConcurrentProductCache cache = new ConcurrentProductCache(5, new TinyLFUEvictionPolicy(5));
+        String[] toys = new String[]{"Tux", "Whale", "Elephant", "Dolphin", "Fox", "Python", "Shark", "Panda", "Duck", "Turtle"};
+        for (int i = 0; i < 5; i++) {
+            cache.put(Data.builder().name(toys[i]).quantity(10).price(9.99).build());
+        }
+        for (int i = 0; i < 3; i++) {
+            cache.get("Tux");
+            cache.get("Whale");
+        }
+        System.out.println(cache);
+
+        // A single query for a cold toy should not evict the hot toys
+        System.out.println("Putting cold toy Turtle");
+        cache.put(Data.builder().name("Turtle").quantity(10).price(9.99).build());
+        System.out.println(cache);
+        System.out.println("Tux cached: " + (cache.get("Tux") != null) + ", Whale cached: " + (cache.get("Whale") != null));
+        System.out.println();
+
+        // Compare hit ratios on Zipfian traffic
+        System.out.println("TESTING HIT RATIO ON ZIPFIAN TRAFFIC:");
+        compareHitRatios(10, 7, 100_000);
+        compareHitRatios(1000, 50, 1_000_000);
+        compareHitRatios(10_000, 500, 1_000_000);
+    }
+
+    /**
+     * Prints the hit ratio of the LRU and TinyLFU policies for the same Zipfian request trace
+     * @param products Number of distinct products
+     * @param cacheSize Maximum number of entries in the cache
+     * @param requests Number of requests in the trace
+     */
+    private static void compareHitRatios(int products, int cacheSize, int requests) {
+        int[] trace = zipfTrace(products, requests, 42);
+        ProductCache lru = new ConcurrentProductCache(cacheSize, new LRUEvictionPolicy(cacheSize));
+        ProductCache tinyLfu = new ConcurrentProductCache(cacheSize, new TinyLFUEvictionPolicy(cacheSize));
+        for (ProductCache cache : new ProductCache[]{lru, tinyLfu}) {
+            for (int product : trace) {
+                String name = "Toy" + product;
+                if (cache.get(name) == null) {
+                    cache.put(Data.builder().name(name).quantity(100).price(9.99).build());
+                }
+            }
+            CacheStats stats = cache.getStats();
+            System.out.println(products + " products, cache size " + cacheSize + ", " + stats.getPolicy() + ": hit ratio " + stats.getHitRatio());
+        }
+    }
+
+    /**
+     * Generates a trace of product indices following a Zipf distribution with exponent 1
+     * @param products Number of distinct products
+     * @param requests Number of requests in the trace
+     * @param seed Random seed
+     * @return The product index of each request
+     */
+    private static int[] zipfTrace(int products, int requests, long seed) {
+        double[] cumulative = new double[products];
+        double sum = 0;
+        for (int i = 0; i < products; i++) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+
+        Random random = new Random(seed);
+        int[] trace = new int[requests];
+        for (int i = 0; i < requests; i++) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            trace[i] = index >= 0 ? index : -index - 1;
+        }
+        return trace;
+    }
+}
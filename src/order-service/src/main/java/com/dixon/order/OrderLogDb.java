@@ -5,6 +5,7 @@ import com.dixon.OrderRecord;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -34,6 +35,11 @@ public class OrderLogDb {
      */
     private final Lock writeLock = readWriteLock.writeLock();
 
+    /**
+     * Largest order number inserted into the DB, kept in memory so health checks can report it without a query
+     */
+    private final AtomicInteger maxAppliedOrderNumber = new AtomicInteger();
+
     /**
      * Constructor for the Order DB
      * @param dbFilePath path to the sqlite db file
@@ -52,6 +58,25 @@ public class OrderLogDb {
 
         // Creating the order_log table
         createOrderLogTable();
+        maxAppliedOrderNumber.set(getMaxOrderNumber());
+    }
+
+    /**
+     * Returns the largest order number inserted into the DB without querying it
+     * @return int of the largest order number inserted
+     */
+    public int getMaxAppliedOrderNumber() {
+        return maxAppliedOrderNumber.get();
+    }
+
+    /**
+     * Raises the largest inserted order number to that of the given order records
+     * @param orderRecords the inserted order records
+     */
+    private void recordApplied(List<OrderRecord> orderRecords) {
+        for (OrderRecord orderRecord : orderRecords) {
+            maxAppliedOrderNumber.accumulateAndGet(orderRecord.getOrderNumber(), Math::max);
+        }
     }
 
     /**
@@ -217,6 +242,7 @@ public class OrderLogDb {
 
             // Execute the SQL statement
             int rowsInserted = stmt.executeUpdate();
+            recordApplied(List.of(orderRecord));
             return rowsInserted;
         } catch (SQLException e) {
             System.out.println(e.getMessage());
@@ -257,6 +283,7 @@ public class OrderLogDb {
 
             writeLock.lock();
             int[] rowsInserted = stmt.executeBatch(); // Execute the batch
+            recordApplied(orderRecords);
 
             for (int rows : rowsInserted) {
                 if (rows > 0) {
@@ -283,6 +310,57 @@ public class OrderLogDb {
         return totalRowsInserted;
     }
 
+    /**
+     * Inserts the given order records into the DB in a single transaction, so either every record is inserted
+     * or none is
+     * @param orderRecords list of orderRecord objects containing name, quantity
+     * @return int indicating the number of records that were inserted, 0 if the transaction was rolled back
+     */
+    public int insertOrderRecordsAtomically(List<OrderRecord> orderRecords) {
+        PreparedStatement stmt = null;
+
+        writeLock.lock();
+        try {
+            conn.setAutoCommit(false);
+
+            // Prepare the SQL statement
+            String sql = "INSERT INTO order_log (order_num, product_name, quantity) VALUES (?, ?, ?)";
+            stmt = conn.prepareStatement(sql);
+
+            for (OrderRecord orderRecord : orderRecords) {
+                stmt.setInt(1, orderRecord.getOrderNumber());
+                stmt.setString(2, orderRecord.getName());
+                stmt.setInt(3, orderRecord.getQuantity());
+                stmt.addBatch(); // Add the statement to the batch
+            }
+
+            // Execute the batch and commit every record at once
+            stmt.executeBatch();
+            conn.commit();
+            recordApplied(orderRecords);
+            return orderRecords.size();
+        } catch (SQLException e) {
+            System.out.println(e.getMessage());
+            try {
+                conn.rollback();
+            } catch (SQLException rollbackException) {
+                System.out.println(rollbackException.getMessage());
+            }
+        } finally {
+            try {
+                if (stmt != null) {
+                    stmt.close();
+                }
+                conn.setAutoCommit(true);
+            } catch (SQLException e) {
+                System.out.println(e.getMessage());
+            }
+            writeLock.unlock();
+        }
+
+        return 0;
+    }
+
     /**
      * Creates an order log SQL table if the table does not exist
      */
@@ -1,35 +1,47 @@
 package com.dixon.order;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- * Generator for getting next order number
+ * Generator for getting next order number. Lock free, so order threads never block or pin
+ * a virtual thread carrier while taking a number.
  */
 public class OrderNumberGenerator {
 
     /**
      * Stores next order number
      */
-    private int orderNumber;
+    private final AtomicInteger orderNumber;
 
     /**
      * Initializes an OrderNumberGenerator with the initialNumber as the first order number
      * @param initialNumber
      */
     public OrderNumberGenerator(int initialNumber) {
-        orderNumber = initialNumber;
+        orderNumber = new AtomicInteger(initialNumber);
     }
 
     /**
      * Returns the next order number, then increments the order numbers
      * @return The next order number
      */
-    public synchronized int getOrderNumber() {
-        return orderNumber++;
+    public int getOrderNumber() {
+        return orderNumber.getAndIncrement();
+    }
+
+    /**
+     * Reserves a consecutive range of order numbers in a single step
+     * @param count The number of order numbers to reserve
+     * @return The first order number of the range
+     */
+    public int getOrderNumbers(int count) {
+        return orderNumber.getAndAdd(count);
     }
 
     /**
      * Update the max order number
      */
-    public synchronized void updateMaxOrderNumber(int maxOrderNumber) {
-        this.orderNumber = maxOrderNumber + 1;
+    public void updateMaxOrderNumber(int maxOrderNumber) {
+        orderNumber.set(maxOrderNumber + 1);
     }
 }
@@ -2,6 +2,7 @@ package com.dixon.order;
 
 import com.dixon.*;
 import com.dixon.common.Address;
+import com.dixon.common.ExecutorFactory;
 import com.dixon.common.OrderServiceNodesReader;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
@@ -11,11 +12,10 @@ import io.grpc.stub.StreamObserver;
 import org.apache.commons.cli.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -58,6 +58,11 @@ public class OrderServiceServer {
      */
     private static ReplicaManager replicaManager;
 
+    /**
+     * Time in milliseconds a peer node has to accept new orders before it is taken as offline
+     */
+    private static long replicationDeadlineMillis;
+
     /**
      * Instantiates a new order service server instance
      * @param catalogHost The catalog service host
@@ -172,15 +177,15 @@ public class OrderServiceServer {
      * Starts the server
      * @param port Port that the server will listen on
      * @param maxThreads Maximum number of threads in the dynamic thread pool
+     * @param executorMode Whether requests run on the dynamic pool ("pool") or on virtual threads ("virtual")
      * @throws IOException
      */
-    private void start(int port, int maxThreads) throws IOException {
+    private void start(int port, int maxThreads, String executorMode) throws IOException {
 
-        // Build server with dynamic pool
+        // Build server with dynamic pool or virtual threads
         server = ServerBuilder.forPort(port)
                 .addService(new OrderServiceImpl(catalogStub, orderNumberGenerator, testMode))
-                .executor(new ThreadPoolExecutor(0, maxThreads,
-                        60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>()))
+                .executor(ExecutorFactory.create(executorMode, maxThreads))
                 .build()
                 .start();
 
@@ -230,10 +235,12 @@ public class OrderServiceServer {
         Options options = new Options();
         options.addOption("p", "port", true, "port");
         options.addOption("m", "maxThreads", true, "maximum number of threads in dynamic pool");
+        options.addOption("em", "executorMode", true, "request executor (pool or virtual)");
         options.addOption("ch", "catalogHost", true, "catalog service server address");
         options.addOption("cp", "catalogPort", true, "catalog service server port");
         options.addOption("f", "filePath", true, "file path to the order log db file");
         options.addOption("te", "test", false, "testing mode activated");
+        options.addOption("rd", "replicationDeadline", true, "time in ms a peer node has to accept new orders");
 
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
@@ -247,9 +254,11 @@ public class OrderServiceServer {
         // Parse command line arguments
         int port = Integer.parseInt(cmd.getOptionValue("port", "1766"));
         int maxThreads = Integer.parseInt(cmd.getOptionValue("maxThreads", "50"));
+        String executorMode = cmd.getOptionValue("executorMode", ExecutorFactory.POOL_MODE);
         String catalogHost = cmd.getOptionValue("catalogHost", "0.0.0.0");
         int catalogPort = Integer.parseInt(cmd.getOptionValue("catalogPort", "1765"));
         testMode = cmd.hasOption("te");
+        replicationDeadlineMillis = Long.parseLong(cmd.getOptionValue("replicationDeadline", "1000"));
 
         // Check if this is being run in docker by reading the DOCKER_RUN env variable
         boolean dockerRun = false;
@@ -280,7 +289,7 @@ public class OrderServiceServer {
 
         // Create and start server
         final OrderServiceServer server = new OrderServiceServer(catalogHost, catalogPort, orderLogFilePath, dockerRun);
-        server.start(port, maxThreads);
+        server.start(port, maxThreads, executorMode);
         System.out.println("Order Service started, listening on port " + port);
         server.blockUntilShutdown();
     }
@@ -376,20 +385,10 @@ public class OrderServiceServer {
                 if (testMode) {
                     System.out.println("Sending order number: " + generatedOrderNumber + " to replicas");
                 }
-                List<OrderNode> activePeerNodes = replicaManager.getActivePeerNodes();
-                if (activePeerNodes.isEmpty()) return;
-                List<NodeAndListenableFuture> ordersDataFutures = activePeerNodes.stream()
-                        .map(peerNode ->
-                                new NodeAndListenableFuture(peerNode, null,
-                                        peerNode.getFutureStub()
-                                                .acceptOrdersFromLeader(
-                                                    AcceptOrdersRequest.newBuilder()
-                                                        .setOrder(orderRecord)
-                                                        .setRequesterId(replicaManager.getSelfId())
-                                                        .build())))
-                        // check that nodes accepted new orders
-                        .collect(Collectors.toList());
-                ordersDataFutures.forEach(this::completeFuturesForFollowers);
+                sendOrdersToFollowers(AcceptOrdersRequest.newBuilder()
+                        .setOrder(orderRecord)
+                        .setRequesterId(replicaManager.getSelfId())
+                        .build());
             } else {
                 // Create failed order reply
                 reply = OrderBuyResponse.newBuilder()
@@ -409,6 +408,137 @@ public class OrderServiceServer {
             }
         }
 
+        /**
+         * Purchases every line of a cart from the catalog in a single atomic catalog call, records one order
+         * per line in a single transaction and propagates all of them to the other active order service nodes
+         * in a single message, so the cost of a checkout barely grows with the number of lines
+         * @param req Client request
+         * @param responseObserver Response observer
+         */
+        @Override
+        public void buyCart(OrderCartRequest req, StreamObserver<OrderCartResponse> responseObserver) {
+            OrderCartResponse reply;
+            List<OrderRecord> orderRecords = new ArrayList<>(req.getLinesCount());
+            if (req.getLinesCount() == 0) {
+                reply = OrderCartResponse.newBuilder()
+                        .setSuccess(false)
+                        .setErrorMessage("Cart is empty.")
+                        .build();
+            } else {
+                // Reserve the stock of every line in one gRPC
+                CatalogBatchChangeRequest.Builder catalogReq = CatalogBatchChangeRequest.newBuilder();
+                for (OrderBuyRequest line : req.getLinesList()) {
+                    catalogReq.addChanges(CatalogChangeRequest.newBuilder()
+                            .setIsIncrement(false)
+                            .setName(line.getName())
+                            .setQuantity(line.getQuantity())
+                            .build());
+                }
+                CatalogBatchChangeResponse catalogReply = catalogStub.changeStockBatch(catalogReq.build());
+
+                if (catalogReply.getSuccess()) {
+                    reply = placeCartOrders(req, orderRecords);
+                } else {
+                    // Create failed order reply
+                    reply = OrderCartResponse.newBuilder()
+                            .setSuccess(false)
+                            .setErrorMessage(catalogReply.getErrorMessage())
+                            .build();
+                }
+            }
+
+            // Optionally print response object
+            if (testMode) {
+                System.out.println("Buy cart response object:");
+                System.out.println(reply);
+            }
+
+            // Send reply
+            responseObserver.onNext(reply);
+            responseObserver.onCompleted();
+
+            // Send orders to followers
+            if (!orderRecords.isEmpty()) {
+                if (testMode) {
+                    System.out.println("Sending order numbers: " + reply.getOrderNumbersList() + " to replicas");
+                }
+                sendOrdersToFollowers(AcceptOrdersRequest.newBuilder()
+                        .addAllOrders(orderRecords)
+                        .setRequesterId(replicaManager.getSelfId())
+                        .build());
+            }
+        }
+
+        /**
+         * Records one order per line of a cart whose stock has been reserved in the catalog. If the orders cannot be
+         * recorded, the reserved stock is given back to the catalog and the cart fails.
+         * @param req The cart request
+         * @param orderRecords Collects the recorded orders, to be propagated to the other active order service nodes
+         * once the reply is sent
+         * @return The reply containing the order numbers of the lines, or the error if the orders were not recorded
+         */
+        private OrderCartResponse placeCartOrders(OrderCartRequest req, List<OrderRecord> orderRecords) {
+            // Generate consecutive order numbers for the lines and add the order records to the db
+            int firstOrderNumber = orderNumberGenerator.getOrderNumbers(req.getLinesCount());
+            OrderCartResponse.Builder reply = OrderCartResponse.newBuilder().setSuccess(true);
+            for (int i = 0; i < req.getLinesCount(); i++) {
+                OrderBuyRequest line = req.getLines(i);
+                orderRecords.add(OrderRecord.newBuilder()
+                        .setName(line.getName())
+                        .setOrderNumber(firstOrderNumber + i)
+                        .setQuantity(line.getQuantity())
+                        .build());
+                reply.addOrderNumbers(firstOrderNumber + i);
+            }
+            if (orderLogDb.insertOrderRecordsAtomically(orderRecords) != orderRecords.size()) {
+                orderRecords.clear();
+                returnCartStock(req);
+                return OrderCartResponse.newBuilder()
+                        .setSuccess(false)
+                        .setErrorMessage("Unable to record the orders of the cart.")
+                        .build();
+            }
+            return reply.build();
+        }
+
+        /**
+         * Gives the stock reserved for a cart back to the catalog in one gRPC, when its orders could not be recorded
+         * @param req The cart request
+         */
+        private void returnCartStock(OrderCartRequest req) {
+            CatalogBatchChangeRequest.Builder catalogReq = CatalogBatchChangeRequest.newBuilder();
+            for (OrderBuyRequest line : req.getLinesList()) {
+                catalogReq.addChanges(CatalogChangeRequest.newBuilder()
+                        .setIsIncrement(true)
+                        .setName(line.getName())
+                        .setQuantity(line.getQuantity())
+                        .build());
+            }
+            CatalogBatchChangeResponse catalogReply = catalogStub.changeStockBatch(catalogReq.build());
+            if (!catalogReply.getSuccess()) {
+                System.out.println("Unable to return the stock of an unrecorded cart: " + catalogReply.getErrorMessage());
+            }
+        }
+
+        /**
+         * Sends new orders to every active peer order service node and waits for them to accept the orders, taking a
+         * node that does not accept them within the replication deadline as offline
+         * @param request The request containing the new orders
+         */
+        private void sendOrdersToFollowers(AcceptOrdersRequest request) {
+            List<OrderNode> activePeerNodes = replicaManager.getActivePeerNodes();
+            if (activePeerNodes.isEmpty()) return;
+            List<NodeAndListenableFuture> ordersDataFutures = activePeerNodes.stream()
+                    .map(peerNode ->
+                            new NodeAndListenableFuture(peerNode, null,
+                                    peerNode.getFutureStub()
+                                            .withDeadlineAfter(replicationDeadlineMillis, TimeUnit.MILLISECONDS)
+                                            .acceptOrdersFromLeader(request)))
+                    // check that nodes accepted new orders
+                    .collect(Collectors.toList());
+            ordersDataFutures.forEach(this::completeFuturesForFollowers);
+        }
+
         /**
          * Gets the AcceptOrdersResponse from a peer order service node,
          * or recognizes the node is offline and changes the nodes' status in the replica manager
@@ -462,7 +592,8 @@ public class OrderServiceServer {
         }
 
         /**
-         * Checks if an order service server node is online
+         * Checks if an order service server node is online, reporting the largest order number it has applied
+         * so that the gateway knows which orders it can look up on this node
          * @param req The request object asking if the node is online
          * @param responseObserver Response observer
          */
@@ -470,6 +601,7 @@ public class OrderServiceServer {
         public void checkHealth(HealthRequest req, StreamObserver<HealthResponse> responseObserver) {
             HealthResponse reply = HealthResponse.newBuilder()
                     .setMessage("I am online!")
+                    .setMaxOrderNumber(orderLogDb.getMaxAppliedOrderNumber())
                     .build();
 
             // Optionally print response object
@@ -562,16 +694,21 @@ public class OrderServiceServer {
 
         /**
          * Accept the orders from the leader node and insert into the database
-         * @param req Request consisting of order record
+         * @param req Request consisting of an order record, or the order records of a cart
          * @param responseObserver Response observer
          */
         @Override
         public void acceptOrdersFromLeader(AcceptOrdersRequest req,
                                        StreamObserver<AcceptOrdersResponse> responseObserver) {
-            // insert the record from the leader
-            int insertedRows = orderLogDb.insertOrderRecord(req.getOrder());
+            // insert the record from the leader, or all records of a cart in one transaction
+            boolean success;
+            if (req.getOrdersCount() > 0) {
+                success = orderLogDb.insertOrderRecordsAtomically(req.getOrdersList()) == req.getOrdersCount();
+            } else {
+                success = orderLogDb.insertOrderRecord(req.getOrder()) == 1;
+            }
             AcceptOrdersResponse reply = AcceptOrdersResponse.newBuilder()
-                    .setSuccess(insertedRows == 1)
+                    .setSuccess(success)
                     .build();
 
             // Optionally print response object